@@ -29,13 +29,18 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.UUID;
-
-import static com.orinati.android.servoble.BluetoothLeService.ACTION_DATA_AVAILABLE;
+import java.util.concurrent.Executor;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -47,23 +52,183 @@ public class BluetoothLeService extends Service {
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
     private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
-
-    public final static String ACTION_GATT_CONNECTED =
-            "com.orinati.bluetooth.le.ACTION_GATT_CONNECTED";
-    public final static String ACTION_GATT_DISCONNECTED =
-            "com.orinati.bluetooth.le.ACTION_GATT_DISCONNECTED";
-    public final static String ACTION_GATT_SERVICES_DISCOVERED =
-            "com.orinati.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE =
-            "com.orinati.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.orinati.bluetooth.le.EXTRA_DATA";
+    private volatile BluetoothGatt mBluetoothGatt;
+    // Connection id given to mBluetoothGatt by the state machine
+    private volatile int mConnectionId;
+    // Looks for the board after failed reconnects, created by initialize()
+    private BoardScanner mBoardScanner;
+    // Monitoring links to the other tables, created by initialize()
+    private TablePool mTablePool;
+    private BluetoothGattCharacteristic mWriteCharacteristic;
+    private BluetoothGattCharacteristic mGameStateCharacteristic;
+    private BluetoothGattCharacteristic mEchoCharacteristic;
+    private BluetoothGattCharacteristic mMotionCharacteristic;
+    private BluetoothGattCharacteristic mTelemetryCharacteristic;
+    // Resolved on the last setup, reused while the same BluetoothGatt reconnects
+    private volatile BoardHandles mBoardHandles;
+    // Samples per telemetry point requested, 0 off; see setTelemetryWindow()
+    private volatile int mTelemetryWindow;
+    private final ForceTelemetry mForceTelemetry = new ForceTelemetry();
+    // Uploaded on every connection, see setMotionProfiles()
+    private volatile MotionProfiles mMotionProfiles;
+    // Send flipper commands as write-without-response when the board supports it
+    private volatile boolean mLowLatencyMode = true;
+    private volatile int mLinkProfile = LINK_PROFILE_IDLE;
+    // Negotiated on every connection, see getMtu() and getTxPhy()
+    private volatile int mMtu = DEFAULT_MTU;
+    // Set while the setup waits for its own MTU exchange
+    private volatile boolean mMtuRequested;
+    private volatile int mTxPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile int mRxPhy = BluetoothDevice.PHY_LE_1M;
+
+    private final byte[] mGameCommandFrame = new byte[1];
+    private final byte[] mTelemetryFrame = new byte[1];
+
+    // Drain sensor to game state applied in the app, see getDrainLatency()
+    private final LatencyHistogram mDrainLatency = new LatencyHistogram("drain");
+
+    // Flipper pipeline latency.  System.nanoTime() shares its time base with
+    // SystemClock.uptimeMillis(), the time base of the input events.
+    private final LatencyTracker mLatencyTracker = new LatencyTracker();
+    // Measures the round trip to the board if it echoes flipper commands
+    private final EchoCorrelator mEchoCorrelator = new EchoCorrelator(mLatencyTracker);
+    private volatile boolean mEchoMode = BuildConfig.DEBUG;
+
+    // The state machine's view of the link.  The first attempt to a board is a new direct
+    // connection.  The retries after a drop or a failed attempt reconnect the same
+    // BluetoothGatt with BluetoothGatt.connect(); it keeps the discovered services, so the setup
+    // skips the discovery.  Only a connection to another board or close() releases it.
+    private final ConnectionStateMachine.GattLayer mGattLayer =
+            new ConnectionStateMachine.GattLayer() {
+        @Override
+        public void connect(String address, int connectionId) {
+            mConnectionId = connectionId;
+            if (address.equals(mBluetoothDeviceAddress) && mBluetoothGatt != null) {
+                Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+                if (!mBluetoothGatt.connect()) {
+                    mConnection.onDisconnected(connectionId, BluetoothGatt.GATT_FAILURE);
+                }
+                return;
+            }
+            if (!connectGatt(address)) {
+                mConnection.onDisconnected(connectionId, BluetoothGatt.GATT_FAILURE);
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            // Late callbacks of the connection match no attempt
+            mConnectionId = 0;
+            mMtuRequested = false;
+            mWriteQueue.clear();
+            if (mBluetoothGatt != null) {
+                mBluetoothGatt.disconnect();
+            }
+        }
+
+        @Override
+        public void close() {
+            closeGatt();
+        }
+
+        @Override
+        public void setUp() {
+            final BluetoothGatt gatt = mBluetoothGatt;
+            if (gatt == null) {
+                return;
+            }
+            negotiatePhy(gatt);
+            // Only one GATT operation may be pending, so the discovery waits for the MTU
+            // exchange if there is one
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                // Set first, the exchange may complete before requestMtu() returns
+                mMtuRequested = true;
+                if (gatt.requestMtu(DESIRED_MTU)) {
+                    return;
+                }
+                mMtuRequested = false;
+            }
+            resolveBoard(gatt);
+        }
+
+        @Override
+        public void startScan(String address) {
+            mBoardScanner.start(address);
+        }
+
+        @Override
+        public void stopScan() {
+            mBoardScanner.stop();
+        }
+    };
+
+    // Owns the connection, confined to the main thread
+    private final ConnectionStateMachine mConnection = new ConnectionStateMachine(mGattLayer,
+            new HandlerScheduler(new Handler(Looper.getMainLooper())));
+
+    // Serializes writes to the board, only one GATT operation may be in flight at a time
+    private final GattWriteQueue mWriteQueue = new GattWriteQueue(new GattWriteQueue.Sink() {
+        @Override
+        public boolean submit(int slot, long command) {
+            final BluetoothGatt gatt = mBluetoothGatt;
+            if (gatt == null) {
+                return false;
+            }
+            final BluetoothGattCharacteristic characteristic;
+            if (slot == GattWriteQueue.SLOT_GAME_COMMAND) {
+                characteristic = mGameStateCharacteristic;
+                if (characteristic == null) {
+                    return false;
+                }
+                mLink.submitUntimedWrite();
+                mGameCommandFrame[0] = (byte) command;
+                characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                characteristic.setValue(mGameCommandFrame);
+            } else if (slot == GattWriteQueue.SLOT_TELEMETRY) {
+                characteristic = mTelemetryCharacteristic;
+                if (characteristic == null) {
+                    return false;
+                }
+                mLink.submitUntimedWrite();
+                mTelemetryFrame[0] = (byte) command;
+                characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                characteristic.setValue(mTelemetryFrame);
+            } else {
+                characteristic = mWriteCharacteristic;
+                if (characteristic == null) {
+                    return false;
+                }
+                characteristic.setWriteType(getWriteType(characteristic));
+                characteristic.setValue(mLink.submitState(command, System.nanoTime()));
+            }
+            return gatt.writeCharacteristic(characteristic);
+        }
+    });
+
+    // Delivers connection events and notifications to bound clients on the main thread
+    private final BoardEventBus mEventBus = new BoardEventBus(new Executor() {
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            mMainHandler.post(command);
+        }
+    });
+
+    // Handles the GATT callbacks of the connection, shared with the replay engine
+    private final BoardLink mLink = new BoardLink(mEventBus, mConnection, mWriteQueue,
+            mLatencyTracker, mEchoCorrelator);
+
+    // ATT MTU of a new connection, and the one requested: a 251 byte LE data packet less the
+    // 4 byte L2CAP header, so an ATT packet fits a single extended data packet
+    private static final int DEFAULT_MTU = 23;
+    private static final int DESIRED_MTU = 247;
+    private static final int ATT_HEADER_LENGTH = 3;
+
+    // Link profiles, see setLinkProfile(int)
+    public static final int LINK_PROFILE_IDLE = 0;
+    public static final int LINK_PROFILE_COMPETITIVE = 1;
+
     public static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
 
@@ -72,80 +237,180 @@ public class BluetoothLeService extends Service {
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
+            final long now = SystemClock.elapsedRealtimeNanos();
+            if (gatt != mBluetoothGatt) {
+                // Closed by the state machine meanwhile
+                return;
+            }
+            final int connectionId = mConnectionId;
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
+                // The idle profile would slow the discovery down, it's left to the board
+                if (mLinkProfile == LINK_PROFILE_COMPETITIVE) {
+                    requestLinkProfile();
+                }
                 Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
+                mLink.onConnected(connectionId, now);
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+                Log.i(TAG, "Disconnected from GATT server. " + mWriteQueue + " " + mDrainLatency);
+                mLink.onDisconnected(connectionId, status, now);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+            } else {
+                Log.w(TAG, "onMtuChanged received: " + status);
+            }
+            Log.i(TAG, "MTU " + mMtu);
+            // The board or the stack may exchange the MTU again on a link already set up
+            if (mMtuRequested) {
+                mMtuRequested = false;
+                resolveBoard(gatt);
             }
         }
 
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            onPhy(txPhy, rxPhy, status);
+        }
+
+        @Override
+        public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            onPhy(txPhy, rxPhy, status);
+        }
+
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+                final BoardHandles board = BoardHandles.resolve(gatt);
+                if (board == null) {
+                    Log.w(TAG, "Board service not found");
+                    mConnection.onSetUp(mConnectionId, false);
+                    return;
+                }
+                onBoardResolved(board);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
+                mConnection.onSetUp(mConnectionId, false);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            final BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+            if (characteristic == null) {
+                return;
+            }
+            if (characteristic == mEchoCharacteristic) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.w(TAG, "Enabling the echo mode failed: " + status);
+                }
+                enableTelemetry(gatt);
+            } else if (characteristic == mTelemetryCharacteristic) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.w(TAG, "Enabling telemetry notifications failed: " + status);
+                }
+                setCharacteristicNotification(gatt, mGameStateCharacteristic, true);
+            } else if (characteristic == mGameStateCharacteristic) {
+                // Notifications are on, so no change can be missed after the read
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.w(TAG, "Enabling game state notifications failed: " + status);
+                }
+                if (!gatt.readCharacteristic(characteristic)) {
+                    Log.e(TAG, "Reading the game state failed");
+                    mConnection.onSetUp(mConnectionId, false);
+                }
             }
         }
 
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onCharacteristicRead received: " + status);
+                if (characteristic == mGameStateCharacteristic) {
+                    mConnection.onSetUp(mConnectionId, false);
+                }
+                return;
+            }
+            final long now = SystemClock.elapsedRealtimeNanos();
+            if (characteristic == mGameStateCharacteristic) {
+                onBoardReady(gatt);
+            }
+            mLink.onRead(characteristic.getUuid(), characteristic.getValue(), now);
+        }
+
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt,
                                           BluetoothGattCharacteristic characteristic,
                                           int status) {
+            if (characteristic == mMotionCharacteristic) {
+                // Part of the setup, not a queued write
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.w(TAG, "Uploading the motion profiles failed: " + status);
+                }
+                subscribe(gatt);
+                return;
+            }
             if (status != BluetoothGatt.GATT_SUCCESS) {
                 Log.e(TAG, "Write failed");
             }
+            // Submits the next pending command, if any
+            mLink.onWriteComplete(status == BluetoothGatt.GATT_SUCCESS, System.nanoTime());
         }
 
+        // Characteristic notification
         @Override
-// Characteristic notification
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            Log.d(TAG, "Hello from onCharacteristicChanged");
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            // Stamp first, the value is copied into a pooled event as raw bytes
+            final long now = SystemClock.elapsedRealtimeNanos();
+            final byte[] data = characteristic.getValue();
+            if (data == null || data.length == 0) {
+                return;
+            }
+            if (characteristic == mEchoCharacteristic) {
+                mLink.onEcho(data, data.length, System.nanoTime());
+                return;
+            }
+            if (characteristic == mTelemetryCharacteristic) {
+                // Too frequent for the event bus, the chart polls the ring buffer
+                mForceTelemetry.onPacket(data, data.length);
+                return;
+            }
+            mLink.onNotification(characteristic.getUuid(), data, now);
         }
     };
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
-    }
-
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-
-        // Writes the data of the profile formatted in HEX.
-        final byte[] data = characteristic.getValue();
-        Log.d(TAG, "write data to extra data");
-        final byte[] rx = characteristic.getValue();
-        Log.d(TAG, "rx[0] = " + rx[0]);
-        if (data != null && data.length > 0) {
-            final StringBuilder stringBuilder = new StringBuilder(data.length);
-            for (byte byteChar : data)
-                //stringBuilder.append(String.format("%02X ", byteChar));
-                stringBuilder.append(String.valueOf(byteChar));
-            intent.putExtra(EXTRA_DATA, stringBuilder.toString());
-            sendBroadcast(intent);
+    public class LocalBinder extends Binder {
+        BluetoothLeService getService() {
+            return BluetoothLeService.this;
         }
+    }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mConnection.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int oldState, int newState) {
+                Log.i(TAG, "Connection " + ConnectionStateMachine.getStateName(oldState)
+                        + " -> " + ConnectionStateMachine.getStateName(newState));
+            }
+        });
     }
 
-    public class LocalBinder extends Binder {
-        BluetoothLeService getService() {
-            return BluetoothLeService.this;
+    @Override
+    public void onDestroy() {
+        if (mTablePool != null) {
+            mTablePool.close();
         }
+        super.onDestroy();
     }
 
     @Override
@@ -164,6 +429,18 @@ public class BluetoothLeService extends Service {
 
     private final IBinder mBinder = new LocalBinder();
 
+    /**
+     * Registers a listener for connection events and notifications.  Listeners are called on
+     * the main thread.
+     */
+    public void registerListener(BoardEventBus.Listener listener) {
+        mEventBus.register(listener);
+    }
+
+    public void unregisterListener(BoardEventBus.Listener listener) {
+        mEventBus.unregister(listener);
+    }
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -185,63 +462,82 @@ public class BluetoothLeService extends Service {
             Log.e(TAG, "Unable to obtain a BluetoothAdapter.");
             return false;
         }
+        if (mBoardScanner == null) {
+            mBoardScanner = new BoardScanner(mBluetoothAdapter, new Handler(Looper.getMainLooper()),
+                    new BoardScanner.Listener() {
+                @Override
+                public void onBoardFound(BluetoothDevice device) {
+                    mConnection.onScanResult(device.getAddress());
+                }
+            });
+        }
+        if (mTablePool == null) {
+            mTablePool = new TablePool(this, mBluetoothAdapter,
+                    new Handler(Looper.getMainLooper()));
+        }
 
         return true;
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device, and reconnects whenever
+     * the link drops until {@link #disconnect()}.  Calling it again while connected or
+     * connecting to the same device does nothing.
      *
      * @param address The device address of the destination device.
-     * @return Return true if the connection is initiated successfully. The connection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * @return Return true if the connection is initiated successfully. The progress is
+     * reported through the {@link ConnectionStateMachine}, the connection events as
+     * {@link BoardEvent}s.
      */
     public boolean connect(final String address) {
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
+        mConnection.connect(address);
+        return true;
+    }
 
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
-            }
-        }
-
+    private boolean connectGatt(String address) {
         final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
         if (device == null) {
             Log.w(TAG, "Device not found.  Unable to connect.");
             return false;
         }
+        closeGatt();
         // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
+        // parameter to false.  Dual mode phones could pick BR/EDR otherwise.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mBluetoothGatt = device.connectGatt(this, false, mGattCallback,
+                    BluetoothDevice.TRANSPORT_LE);
+        } else {
+            mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
+        }
         Log.d(TAG, "Trying to create a new connection.");
         mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
         return true;
     }
 
+    private void closeGatt() {
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+        }
+        mBoardHandles = null;
+        mMtuRequested = false;
+        mWriteQueue.clear();
+    }
+
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * Disconnects an existing connection or cancel a pending connection, and stops
+     * reconnecting.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        mConnection.disconnect();
     }
 
     /**
@@ -249,11 +545,161 @@ public class BluetoothLeService extends Service {
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
+        mConnection.disconnect();
+        closeGatt();
+    }
+
+    /**
+     * @return The monitoring links to the tables of the floor, null before
+     *         {@link #initialize()}.  Independent of the connection to the table being played.
+     */
+    public TablePool getTablePool() {
+        return mTablePool;
+    }
+
+    /**
+     * @return The connection's state machine, to observe its state.
+     */
+    public ConnectionStateMachine getConnectionStateMachine() {
+        return mConnection;
+    }
+
+    /**
+     * @return ATT MTU agreed on for the current connection, 23 before it's negotiated or if
+     *         either side doesn't support larger ones.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return Longest characteristic value a single write or notification can carry.
+     */
+    public int getMaxValueLength() {
+        return mMtu - ATT_HEADER_LENGTH;
+    }
+
+    /**
+     * @return PHY of the current connection from the phone to the board, e.g.
+     *         {@code BluetoothDevice.PHY_LE_2M}.  Phones before Android 8.0 only use the 1M PHY.
+     */
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    public int getRxPhy() {
+        return mRxPhy;
+    }
+
+    /**
+     * Appends "mtu 247, phy 2M/2M" for the debug overlay.
+     */
+    public void appendLinkSummary(StringBuilder out) {
+        out.append("mtu ").append(mMtu)
+                .append(", phy ").append(getPhyName(mTxPhy))
+                .append('/').append(getPhyName(mRxPhy));
+    }
+
+    private static String getPhyName(int phy) {
+        switch (phy) {
+            case BluetoothDevice.PHY_LE_1M:
+                return "1M";
+            case BluetoothDevice.PHY_LE_2M:
+                return "2M";
+            case BluetoothDevice.PHY_LE_CODED:
+                return "coded";
+            default:
+                return Integer.toString(phy);
+        }
+    }
+
+    // Asks for the 2M PHY if the phone supports it; the board may still refuse it.  Reads the
+    // current PHY either way, as an update is only reported if the PHY changes.
+    private void negotiatePhy(BluetoothGatt gatt) {
+        mMtu = DEFAULT_MTU;
+        mTxPhy = BluetoothDevice.PHY_LE_1M;
+        mRxPhy = BluetoothDevice.PHY_LE_1M;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return;
+        }
+        if (mBluetoothAdapter.isLe2MPhySupported()) {
+            gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                    BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+        gatt.readPhy();
+    }
+
+    private void onPhy(int txPhy, int rxPhy, int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "PHY update failed: " + status);
+            return;
+        }
+        mTxPhy = txPhy;
+        mRxPhy = rxPhy;
+        Log.i(TAG, "PHY " + getPhyName(txPhy) + "/" + getPhyName(rxPhy));
+    }
+
+    // Reuses the characteristics resolved before if the same BluetoothGatt reconnected, as it
+    // keeps its services.  Discovers the services otherwise; with a bonded board the stack
+    // serves them from its cache.
+    private void resolveBoard(BluetoothGatt gatt) {
+        final BoardHandles board = mBoardHandles;
+        if (board != null && board.getGatt() == gatt && !gatt.getServices().isEmpty()) {
+            Log.i(TAG, "Reusing the resolved characteristics");
+            onBoardResolved(board);
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        Log.i(TAG, "Attempting to start service discovery:" + gatt.discoverServices());
+    }
+
+    private void onBoardResolved(BoardHandles board) {
+        mBoardHandles = board;
+        mWriteCharacteristic = board.get(BoardProfile.ROLE_WRITE);
+        mGameStateCharacteristic = board.get(BoardProfile.ROLE_GAME_STATE);
+        mEchoCharacteristic = board.get(BoardProfile.ROLE_ECHO);
+        mMotionCharacteristic = board.get(BoardProfile.ROLE_MOTION);
+        mTelemetryCharacteristic = board.get(BoardProfile.ROLE_TELEMETRY);
+        mForceTelemetry.restart();
+        mEventBus.post(BoardEvent.TYPE_SERVICES_DISCOVERED, SystemClock.elapsedRealtimeNanos());
+        if (!uploadMotionProfiles(board.getGatt())) {
+            subscribe(board.getGatt());
+        }
+    }
+
+    // Continues the setup once the motion profiles are on the board
+    private void subscribe(BluetoothGatt gatt) {
+        if (mGameStateCharacteristic != null) {
+            enableGameState(gatt);
+        } else {
+            onBoardReady(gatt);
+        }
+    }
+
+    // Writes the motion profiles before anything else, with a response, so they're in place
+    // before the first flipper command.  Returns true if the write was started.
+    private boolean uploadMotionProfiles(BluetoothGatt gatt) {
+        final MotionProfiles profiles = mMotionProfiles;
+        if (profiles == null || mMotionCharacteristic == null) {
+            return false;
+        }
+        mMotionCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        mMotionCharacteristic.setValue(profiles.encode());
+        if (!gatt.writeCharacteristic(mMotionCharacteristic)) {
+            Log.w(TAG, "Uploading the motion profiles failed to start");
+            return false;
+        }
+        return true;
+    }
+
+    // Notifications are restored and the game state is known
+    private void onBoardReady(BluetoothGatt gatt) {
+        mConnection.onSetUp(mConnectionId, true);
+        // Bonding lets the stack cache the board's services, and the board keep the client
+        // configurations, for the next connection
+        final BluetoothDevice device = gatt.getDevice();
+        if (device.getBondState() == BluetoothDevice.BOND_NONE && !device.createBond()) {
+            Log.w(TAG, "Bonding failed to start");
+        }
     }
 
     /**
@@ -268,25 +714,258 @@ public class BluetoothLeService extends Service {
         return mBluetoothGatt.getServices();
     }
 
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic,
-                                    byte[] value) {
+    /**
+     * Queues the state of all flippers for the board.  A state still waiting for an earlier
+     * write to complete is replaced by the newer one.
+     *
+     * @param characteristic The characteristic to write to.
+     * @param state Bitmask of the engaged actuators, see {@code FlipperStateFrame}.
+     * @param eventTime Time of the input event that changed the state, in
+     *                  {@code SystemClock.uptimeMillis()} time base.
+     */
+    public void writeFlipperState(BluetoothGattCharacteristic characteristic,
+                                  int state, long eventTime) {
         if (mBluetoothGatt == null || characteristic == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
 
-        characteristic.setValue(value);
-        mBluetoothGatt.writeCharacteristic(characteristic);
+        mWriteCharacteristic = characteristic;
+        mLink.onEnqueue(eventTime, System.nanoTime());
+        if (!mWriteQueue.offer(GattWriteQueue.SLOT_FLIPPER_STATE,
+                CommandEncoder.packState(state, eventTime))) {
+            Log.w(TAG, "Write queue full, command dropped. " + mWriteQueue);
+        }
+    }
+
+    // Subscribes to the board's game state and reads its current value, on every connection
+    // since unbonded boards forget the subscriptions.  The read result is delivered as a
+    // TYPE_READ event, later changes as notifications.  Runs before any command is written,
+    // i.e. while the link is idle.  The echo is subscribed to first if the echo mode is on,
+    // then the telemetry if the board has it.
+    private void enableGameState(BluetoothGatt gatt) {
+        if (mEchoCharacteristic != null && mEchoMode) {
+            setCharacteristicNotification(gatt, mEchoCharacteristic, true);
+        } else {
+            enableTelemetry(gatt);
+        }
+    }
+
+    // The board only streams once a window was written, see setTelemetryWindow()
+    private void enableTelemetry(BluetoothGatt gatt) {
+        if (mTelemetryCharacteristic != null) {
+            setCharacteristicNotification(gatt, mTelemetryCharacteristic, true);
+        } else {
+            setCharacteristicNotification(gatt, mGameStateCharacteristic, true);
+        }
+    }
+
+    /**
+     * Enables or disables the echo mode for the next connection.  In echo mode the board
+     * notifies every flipper command back, so the round trip shows in the
+     * {@link LatencyTracker}.  On by default in debug builds.
+     */
+    public void setEchoMode(boolean enabled) {
+        mEchoMode = enabled;
+    }
+
+    public boolean isEchoMode() {
+        return mEchoMode;
+    }
+
+    /**
+     * Sets the flipper trajectories the board runs, uploaded on every connection from the
+     * next one on.  Null leaves the board's table alone; boards without the motion
+     * characteristic keep their fixed positions.  Pass a new instance to change them, the
+     * profiles are encoded on the binder thread.
+     */
+    public void setMotionProfiles(MotionProfiles profiles) {
+        mMotionProfiles = profiles;
+    }
+
+    public MotionProfiles getMotionProfiles() {
+        return mMotionProfiles;
+    }
+
+    /**
+     * Starts the drain force sensor telemetry with the given samples per point, or stops it
+     * with 0.  Windows below {@link ForceTelemetry#MIN_WINDOW} are raised to it, so the stream
+     * leaves room for the flipper commands.  The board stops the stream on disconnection, so
+     * call it again once the board is ready.  Must be called from the thread writing the
+     * flipper states.
+     */
+    public void setTelemetryWindow(int window) {
+        if (window != 0) {
+            window = Math.max(ForceTelemetry.MIN_WINDOW, Math.min(window, 0xFF));
+        }
+        mTelemetryWindow = window;
+        if (mBluetoothGatt == null || mTelemetryCharacteristic == null) {
+            return;
+        }
+        if (!mWriteQueue.offer(GattWriteQueue.SLOT_TELEMETRY, window)) {
+            Log.w(TAG, "Write queue full, telemetry window dropped. " + mWriteQueue);
+        }
+    }
+
+    public int getTelemetryWindow() {
+        return mTelemetryWindow;
+    }
+
+    /**
+     * @return Whether the board on the current connection has the telemetry stream.
+     */
+    public boolean hasTelemetry() {
+        return mTelemetryCharacteristic != null;
+    }
+
+    /**
+     * @return The telemetry points received, across connections.
+     */
+    public ForceTelemetry getForceTelemetry() {
+        return mForceTelemetry;
+    }
+
+    public EchoCorrelator getEchoCorrelator() {
+        return mEchoCorrelator;
+    }
+
+    /**
+     * @return The board's flipper command characteristic on the current connection, null
+     *         before the services were resolved.
+     */
+    public BluetoothGattCharacteristic getWriteCharacteristic() {
+        return mWriteCharacteristic;
+    }
+
+    /**
+     * @return The board's game state characteristic on the current connection, null if the
+     *         board has none.
+     */
+    public BluetoothGattCharacteristic getGameStateCharacteristic() {
+        return mGameStateCharacteristic;
+    }
+
+    /**
+     * Queues a one byte game command, e.g. {@link GameState#COMMAND_NEW_GAME}.  Must be called
+     * from the thread writing the flipper states.
+     */
+    public void writeGameCommand(byte command) {
+        if (mBluetoothGatt == null || mGameStateCharacteristic == null) {
+            Log.w(TAG, "Game state characteristic not available");
+            return;
+        }
+        if (!mWriteQueue.offer(GattWriteQueue.SLOT_GAME_COMMAND, command & 0xFF)) {
+            Log.w(TAG, "Write queue full, game command dropped. " + mWriteQueue);
+        }
+    }
+
+    /**
+     * @return Latency of ball drains: the time the event waited on the board, as reported
+     *         in the game state, plus the time from the notification's receipt until the
+     *         app applied it.  The radio hop in between isn't included.
+     */
+    public LatencyHistogram getDrainLatency() {
+        return mDrainLatency;
+    }
 
+    /**
+     * @return Per stage latency of the flipper pipeline.
+     */
+    public LatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    // adb shell dumpsys activity service com.orinati.android.servoble/.BluetoothLeService
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        final StringBuilder link = new StringBuilder();
+        appendLinkSummary(link);
+        writer.println(link);
+        writer.println(mWriteQueue);
+        writer.println(mDrainLatency);
+        writer.println(mConnection);
+        if (mTablePool != null) {
+            // The tables themselves are confined to the main thread
+            writer.println(mTablePool);
+        }
+        writer.println("echo matched=" + mEchoCorrelator.getMatchedCount()
+                + ", unmatched=" + mEchoCorrelator.getUnmatchedCount());
+        writer.println();
+        mLatencyTracker.dump(writer);
+    }
+
+    /**
+     * Enables or disables the low latency mode.  In low latency mode commands are sent as
+     * write-without-response, saving the connection event the acknowledgement costs.  Writes
+     * fall back to acknowledged writes if the board doesn't advertise the property.
+     */
+    public void setLowLatencyMode(boolean enabled) {
+        mLowLatencyMode = enabled;
+    }
+
+    public boolean isLowLatencyMode() {
+        return mLowLatencyMode;
+    }
+
+    /**
+     * Selects the link profile: {@link #LINK_PROFILE_COMPETITIVE} while a game is played, for
+     * the shortest connection interval, or {@link #LINK_PROFILE_IDLE} to save power.  The
+     * profile is requested right away if connected, and the competitive one again on every
+     * connection.  The board asks for its own parameters on game phase changes as well.
+     */
+    public void setLinkProfile(int profile) {
+        if (profile == mLinkProfile) {
+            return;
+        }
+        mLinkProfile = profile;
+        if (mConnection.isConnected()) {
+            requestLinkProfile();
+        }
+    }
+
+    public int getLinkProfile() {
+        return mLinkProfile;
+    }
+
+    private void requestLinkProfile() {
+        if (mBluetoothGatt == null
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        final int priority = mLinkProfile == LINK_PROFILE_COMPETITIVE
+                ? BluetoothGatt.CONNECTION_PRIORITY_HIGH
+                : BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        if (!mBluetoothGatt.requestConnectionPriority(priority)) {
+            Log.w(TAG, "Connection priority request failed");
+        }
+    }
+
+    private int getWriteType(BluetoothGattCharacteristic characteristic) {
+        if (mLowLatencyMode && (characteristic.getProperties()
+                & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+            // onCharacteristicWrite is still reported once the stack accepted the packet,
+            // which keeps the write queue draining.
+            return BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        }
+        return BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    }
+
+    /**
+     * @return The queue serializing writes to the board, exposing its depth and drop counters.
+     */
+    public GattWriteQueue getWriteQueue() {
+        return mWriteQueue;
     }
 
-    private void setCharacteristicNotification(BluetoothGatt bluetoothgatt, BluetoothGattCharacteristic bluetoothgattcharacteristic, boolean flag) {
+    // Returns true if the client configuration write was started
+    static boolean setCharacteristicNotification(BluetoothGatt bluetoothgatt, BluetoothGattCharacteristic bluetoothgattcharacteristic, boolean flag) {
         bluetoothgatt.setCharacteristicNotification(bluetoothgattcharacteristic, flag);
         BluetoothGattDescriptor descriptor = bluetoothgattcharacteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
         if (descriptor != null) {
             descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            bluetoothgatt.writeDescriptor(descriptor);
+            return bluetoothgatt.writeDescriptor(descriptor);
         }
+        return false;
     }
 
     public void enablePeerDeviceNotifyMe(boolean flag, BluetoothGattCharacteristic bluetoothgattcharacteristic) {
@@ -0,0 +1,80 @@
+package com.orinati.android.servoble;
+
+import java.util.UUID;
+
+/**
+ * An event reported by the board connection: a connection state change or the raw bytes of a
+ * notification or characteristic read.  Events are pooled by their {@link BoardEventBus} and
+ * recycled as soon as every listener saw them, so listeners must copy whatever they want to
+ * keep.
+ */
+public class BoardEvent implements Runnable {
+    public static final int TYPE_CONNECTED              = 1;
+    public static final int TYPE_DISCONNECTED           = 2;
+    public static final int TYPE_SERVICES_DISCOVERED    = 3;
+    public static final int TYPE_NOTIFICATION           = 4;
+    public static final int TYPE_READ                   = 5;
+
+    // Notifications fit the default ATT MTU; longer values grow the buffer once.
+    private static final int DEFAULT_CAPACITY           = 20;
+
+    private final BoardEventBus mBus;
+    BoardEvent                  mNext;
+
+    private int     mType;
+    private UUID    mCharacteristic;
+    private byte[]  mData = new byte[DEFAULT_CAPACITY];
+    private int     mLength;
+    private long    mTimestampNanos;
+
+    BoardEvent(BoardEventBus bus) {
+        mBus = bus;
+    }
+
+    void set(int type, UUID characteristic, byte[] data, long timestampNanos) {
+        mType = type;
+        mCharacteristic = characteristic;
+        mTimestampNanos = timestampNanos;
+        mLength = data == null ? 0 : data.length;
+        if (mLength > mData.length) {
+            mData = new byte[mLength];
+        }
+        if (mLength > 0) {
+            System.arraycopy(data, 0, mData, 0, mLength);
+        }
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return UUID of the notified or read characteristic, null for connection events.
+     */
+    public UUID getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    /**
+     * @return The event's buffer; only the first {@link #getLength()} bytes are valid.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return Receive time in {@code SystemClock.elapsedRealtimeNanos()} time base.
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    @Override
+    public void run() {
+        mBus.dispatch(this);
+    }
+}
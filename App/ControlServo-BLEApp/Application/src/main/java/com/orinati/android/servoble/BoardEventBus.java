@@ -0,0 +1,94 @@
+package com.orinati.android.servoble;
+
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * In-process bus delivering {@link BoardEvent}s from the GATT callback thread to listeners on
+ * the delivery executor, typically the main thread.  Replaces system-wide broadcasts: the
+ * raw notification bytes are handed over together with their receive timestamp, without any
+ * Intent or String conversion, and events are taken from a pool.
+ */
+public class BoardEventBus {
+
+    public interface Listener {
+        /**
+         * Called on the delivery executor.  The event is recycled when this returns.
+         */
+        void onBoardEvent(BoardEvent event);
+    }
+
+    private static final int MAX_POOL_SIZE = 16;
+
+    private final Executor                              mExecutor;
+    private final CopyOnWriteArrayList<Listener>        mListeners =
+            new CopyOnWriteArrayList<Listener>();
+
+    // Free list of recycled events, guarded by mPoolLock
+    private final Object    mPoolLock = new Object();
+    private BoardEvent      mPool;
+    private int             mPoolSize;
+
+    public BoardEventBus(Executor executor) {
+        mExecutor = executor;
+    }
+
+    public void register(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void unregister(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Posts a connection event.
+     */
+    public void post(int type, long timestampNanos) {
+        post(type, null, null, timestampNanos);
+    }
+
+    /**
+     * Posts an event, copying {@code data} into a pooled event.
+     */
+    public void post(int type, UUID characteristic, byte[] data, long timestampNanos) {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+        final BoardEvent event = obtain();
+        event.set(type, characteristic, data, timestampNanos);
+        mExecutor.execute(event);
+    }
+
+    void dispatch(BoardEvent event) {
+        for (Listener listener : mListeners) {
+            listener.onBoardEvent(event);
+        }
+        recycle(event);
+    }
+
+    private BoardEvent obtain() {
+        synchronized (mPoolLock) {
+            if (mPool != null) {
+                final BoardEvent event = mPool;
+                mPool = event.mNext;
+                event.mNext = null;
+                mPoolSize--;
+                return event;
+            }
+        }
+        return new BoardEvent(this);
+    }
+
+    private void recycle(BoardEvent event) {
+        event.set(0, null, null, 0);
+        synchronized (mPoolLock) {
+            if (mPoolSize < MAX_POOL_SIZE) {
+                event.mNext = mPool;
+                mPool = event;
+                mPoolSize++;
+            }
+        }
+    }
+}
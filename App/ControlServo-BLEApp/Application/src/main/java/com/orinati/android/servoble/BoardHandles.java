@@ -0,0 +1,52 @@
+package com.orinati.android.servoble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+
+/**
+ * The board's characteristics on one {@link BluetoothGatt}, indexed by their
+ * {@link BoardProfile} role in one pass after the service discovery.  The references stay
+ * valid while the same {@code BluetoothGatt} reconnects, so such a reconnection needs no new
+ * discovery.
+ */
+public class BoardHandles {
+    private final BluetoothGatt                 mGatt;
+    private final BluetoothGattCharacteristic[] mByRole =
+            new BluetoothGattCharacteristic[BoardProfile.ROLE_COUNT];
+
+    private BoardHandles(BluetoothGatt gatt, BluetoothGattService service) {
+        mGatt = gatt;
+        final List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+        for (int i = 0; i < characteristics.size(); i++) {
+            final BluetoothGattCharacteristic characteristic = characteristics.get(i);
+            final int role = BoardProfile.getRole(characteristic.getUuid());
+            if (role != BoardProfile.ROLE_NONE && mByRole[role] == null) {
+                mByRole[role] = characteristic;
+            }
+        }
+    }
+
+    /**
+     * @return The board's characteristics among the discovered services, null if the board's
+     *         service is missing.
+     */
+    public static BoardHandles resolve(BluetoothGatt gatt) {
+        final BluetoothGattService service = gatt.getService(BoardProfile.SERVICE);
+        return service == null ? null : new BoardHandles(gatt, service);
+    }
+
+    public BluetoothGatt getGatt() {
+        return mGatt;
+    }
+
+    /**
+     * @param role E.g. {@link BoardProfile#ROLE_GAME_STATE}.
+     * @return The characteristic, null if the board doesn't have it.
+     */
+    public BluetoothGattCharacteristic get(int role) {
+        return mByRole[role];
+    }
+}
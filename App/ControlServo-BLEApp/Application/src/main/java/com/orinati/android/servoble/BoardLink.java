@@ -0,0 +1,129 @@
+package com.orinati.android.servoble;
+
+import java.util.UUID;
+
+/**
+ * What the connection to the board does with its GATT callbacks, without the Android GATT
+ * objects: connection changes reach the state machine and the bound clients, notifications
+ * and reads are delivered, write acknowledgements drain the write queue, and the flipper
+ * pipeline's latency is stamped along the way.
+ *
+ * {@code BluetoothLeService} forwards its {@code BluetoothGattCallback} here, and
+ * {@code ReplayEngine} plays recorded or scripted sessions through it on a plain JVM, so both
+ * run the same code.  Times are passed in: event timestamps in the
+ * {@code SystemClock.elapsedRealtimeNanos()} time base, latency stamps in the
+ * {@code System.nanoTime()} one.  Methods may be called from any thread, like the callbacks.
+ */
+public class BoardLink {
+    private final BoardEventBus             mEventBus;
+    private final ConnectionStateMachine    mConnection;
+    private final GattWriteQueue            mWriteQueue;
+    private final LatencyTracker            mLatencyTracker;
+    private final EchoCorrelator            mEchoCorrelator;
+
+    // Encodes the flipper state frames of this connection, only used by the queue's consumer
+    private final CommandEncoder mCommandEncoder = new CommandEncoder();
+
+    // When the latest flipper state entered the write queue
+    private volatile long mEnqueueNanos;
+    // Submit time and input event time of the flipper state in flight, -1 if the write in
+    // flight isn't a flipper state
+    private volatile long mSubmitNanos;
+    private volatile long mInFlightEventTime = -1;
+
+    public BoardLink(BoardEventBus eventBus, ConnectionStateMachine connection,
+                     GattWriteQueue writeQueue, LatencyTracker latencyTracker,
+                     EchoCorrelator echoCorrelator) {
+        mEventBus = eventBus;
+        mConnection = connection;
+        mWriteQueue = writeQueue;
+        mLatencyTracker = latencyTracker;
+        mEchoCorrelator = echoCorrelator;
+    }
+
+    /**
+     * Stamps a flipper state entering the write queue.
+     *
+     * @param eventTime Time of the input event, in {@code SystemClock.uptimeMillis()} time
+     *                  base.
+     */
+    public void onEnqueue(long eventTime, long nowNanos) {
+        mLatencyTracker.record(LatencyTracker.STAGE_TOUCH_TO_ENQUEUE,
+                nowNanos / 1000 - eventTime * 1000);
+        mEnqueueNanos = nowNanos;
+    }
+
+    /**
+     * Encodes a flipper state taken off the write queue, and stamps its submission.
+     *
+     * @return The frame to write, valid until the next call.
+     */
+    public byte[] submitState(long command, long nowNanos) {
+        final byte[] frame = mCommandEncoder.encodeState(command);
+        mEchoCorrelator.onSend(FlipperStateFrame.getSequence(frame), nowNanos);
+        // Approximate when coalesced: the stamp is the one of the latest state
+        mLatencyTracker.record(LatencyTracker.STAGE_ENQUEUE_TO_SUBMIT,
+                (nowNanos - mEnqueueNanos) / 1000);
+        mSubmitNanos = nowNanos;
+        mInFlightEventTime = CommandEncoder.unpackTime(command);
+        return frame;
+    }
+
+    /**
+     * Notes that the write in flight isn't a flipper state, e.g. a game command or a telemetry
+     * window, so its completion isn't timed.
+     */
+    public void submitUntimedWrite() {
+        mInFlightEventTime = -1;
+    }
+
+    public void onConnected(int connectionId, long timestampNanos) {
+        mCommandEncoder.reset();
+        mEchoCorrelator.reset();
+        mEventBus.post(BoardEvent.TYPE_CONNECTED, timestampNanos);
+        mConnection.onConnected(connectionId);
+    }
+
+    public void onDisconnected(int connectionId, int status, long timestampNanos) {
+        mWriteQueue.clear();
+        mEventBus.post(BoardEvent.TYPE_DISCONNECTED, timestampNanos);
+        mConnection.onDisconnected(connectionId, status);
+    }
+
+    /**
+     * Reports the completion of the write in flight and submits the next pending one.
+     */
+    public void onWriteComplete(boolean success, long nowNanos) {
+        if (success && mInFlightEventTime >= 0) {
+            mLatencyTracker.record(LatencyTracker.STAGE_SUBMIT_TO_CALLBACK,
+                    (nowNanos - mSubmitNanos) / 1000);
+            mLatencyTracker.record(LatencyTracker.STAGE_TOUCH_TO_CALLBACK,
+                    nowNanos / 1000 - mInFlightEventTime * 1000);
+        }
+        mInFlightEventTime = -1;
+        mConnection.onWriteResult(success);
+        mWriteQueue.onWriteComplete(success);
+    }
+
+    /**
+     * Delivers a notification of the board.
+     */
+    public void onNotification(UUID characteristic, byte[] data, long timestampNanos) {
+        mEventBus.post(BoardEvent.TYPE_NOTIFICATION, characteristic, data, timestampNanos);
+    }
+
+    /**
+     * Matches a flipper command echo; echoes only feed the latency tracker, they aren't
+     * delivered.
+     */
+    public void onEcho(byte[] data, int length, long nowNanos) {
+        mEchoCorrelator.onEcho(data, length, nowNanos);
+    }
+
+    /**
+     * Delivers the value of a characteristic read.
+     */
+    public void onRead(UUID characteristic, byte[] data, long timestampNanos) {
+        mEventBus.post(BoardEvent.TYPE_READ, characteristic, data, timestampNanos);
+    }
+}
@@ -0,0 +1,66 @@
+package com.orinati.android.servoble;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * The board's GATT profile: its service and the role of each of its characteristics.
+ *
+ * A new characteristic is one more role and one more entry in {@link #ROLE_UUIDS};
+ * {@link BoardHandles} picks it up without further lookups.
+ */
+public final class BoardProfile {
+    public static final UUID SERVICE    = uuid16(0xFFF0);
+
+    // Characteristic roles
+    // Flipper commands
+    public static final int ROLE_WRITE          = 0;
+    // Legacy lives counter
+    public static final int ROLE_NOTIFY         = 1;
+    // Game state, see GameState
+    public static final int ROLE_GAME_STATE     = 2;
+    // Flipper command echo, see EchoCorrelator
+    public static final int ROLE_ECHO           = 3;
+    // Flipper motion profiles, see MotionProfiles
+    public static final int ROLE_MOTION         = 4;
+    // Drain force sensor telemetry, see ForceTelemetry
+    public static final int ROLE_TELEMETRY      = 5;
+    public static final int ROLE_COUNT          = 6;
+    public static final int ROLE_NONE           = -1;
+
+    private static final UUID[] ROLE_UUIDS = {
+            uuid16(0xFFF3),
+            uuid16(0xFFF4),
+            uuid16(0xFFF6),
+            uuid16(0xFFF7),
+            uuid16(0xFFF8),
+            uuid16(0xFFF9),
+    };
+
+    private static final HashMap<UUID, Integer> ROLE_INDEX = new HashMap<UUID, Integer>();
+    static {
+        for (int role = 0; role < ROLE_COUNT; role++) {
+            ROLE_INDEX.put(ROLE_UUIDS[role], role);
+        }
+    }
+
+    private BoardProfile() {
+    }
+
+    public static UUID getUuid(int role) {
+        return ROLE_UUIDS[role];
+    }
+
+    /**
+     * @return The role of the board's characteristic, {@link #ROLE_NONE} if it has none.
+     */
+    public static int getRole(UUID uuid) {
+        final Integer role = ROLE_INDEX.get(uuid);
+        return role == null ? ROLE_NONE : role;
+    }
+
+    // Expands a 16 bit UUID with the Bluetooth base UUID
+    private static UUID uuid16(int uuid) {
+        return new UUID(0x0000000000001000L | (long) uuid << 32, 0x800000805F9B34FBL);
+    }
+}
@@ -0,0 +1,196 @@
+package com.orinati.android.servoble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Scans for the board.  From Lollipop on, the controller filters the advertisements on the
+ * board's service UUID or name, so the app only hears the board even on a crowded floor, and
+ * queues the results in batches if it can.  Older releases scan unfiltered and the name is
+ * checked on the callback's thread, so other devices never reach the main thread.
+ *
+ * Each board is reported once per scan.  Use it on the main thread only, with a handler on
+ * the main thread.
+ */
+public class BoardScanner {
+    private final static String TAG = BoardScanner.class.getSimpleName();
+
+    public interface Listener {
+        /**
+         * Called on the main thread for every board found by the scan.
+         */
+        void onBoardFound(BluetoothDevice device);
+    }
+
+    // Batches of the controller's queue.  Short, the board still shows well within a second.
+    static final long REPORT_DELAY_MS = 100;
+
+    private final BluetoothAdapter  mAdapter;
+    private final Handler           mHandler;
+    private final Listener          mListener;
+
+    // Boards reported by the current scan, by address
+    private final HashMap<String, BluetoothDevice> mBoards =
+            new HashMap<String, BluetoothDevice>();
+    // Only this board, null for any.  Read by the legacy callback's thread.
+    private volatile String         mAddress;
+    private volatile boolean        mScanning;
+    private FilteredScan            mFilteredScan;
+
+    public BoardScanner(BluetoothAdapter adapter, Handler handler, Listener listener) {
+        mAdapter = adapter;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    public boolean isScanning() {
+        return mScanning;
+    }
+
+    /**
+     * Starts a new scan, stopping the current one.
+     *
+     * @param address Address of the board to look for, null for any board.
+     * @return true if the scan started.
+     */
+    public boolean start(String address) {
+        stop();
+        mBoards.clear();
+        mAddress = address;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            final BluetoothLeScanner scanner = mAdapter.getBluetoothLeScanner();
+            if (scanner == null) {
+                // Bluetooth is off
+                return false;
+            }
+            mFilteredScan = new FilteredScan();
+            scanner.startScan(buildFilters(address), buildSettings(), mFilteredScan);
+            mScanning = true;
+        } else {
+            mScanning = mAdapter.startLeScan(mLeScanCallback);
+        }
+        if (!mScanning) {
+            Log.w(TAG, "Scan failed to start");
+        }
+        return mScanning;
+    }
+
+    public void stop() {
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        if (mFilteredScan != null) {
+            final BluetoothLeScanner scanner = mAdapter.getBluetoothLeScanner();
+            if (scanner != null) {
+                scanner.stopScan(mFilteredScan);
+            }
+            mFilteredScan = null;
+        } else {
+            mAdapter.stopLeScan(mLeScanCallback);
+        }
+    }
+
+    private List<ScanFilter> buildFilters(String address) {
+        final List<ScanFilter> filters = new ArrayList<ScanFilter>(2);
+        if (address != null) {
+            filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+            return filters;
+        }
+        // Either one matches.  The service is in the advertisement itself, the name only in
+        // the scan response.
+        filters.add(new ScanFilter.Builder()
+                .setServiceUuid(new ParcelUuid(BoardProfile.SERVICE)).build());
+        filters.add(new ScanFilter.Builder().setDeviceName(Constants.TI_CC1350_APP).build());
+        return filters;
+    }
+
+    private ScanSettings buildSettings() {
+        final ScanSettings.Builder builder = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        // Batching without the controller's queue would only delay the results
+        if (mAdapter.isOffloadedScanBatchingSupported()) {
+            builder.setReportDelay(REPORT_DELAY_MS);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // Report the first advertisement heard, even a weak one
+            builder.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                    .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
+                    .setNumOfMatches(ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT);
+        }
+        return builder.build();
+    }
+
+    private void onDevice(BluetoothDevice device) {
+        final String address = device.getAddress();
+        if (!mScanning || mAddress != null && !mAddress.equals(address)) {
+            return;
+        }
+        if (mBoards.put(address, device) == null) {
+            mListener.onBoardFound(device);
+        }
+    }
+
+    // Results of the filtered scan, delivered on the main thread
+    private class FilteredScan extends ScanCallback {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            deliver(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (int i = 0; i < results.size(); i++) {
+                deliver(results.get(i));
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "Scan failed: " + errorCode);
+            if (mFilteredScan == this) {
+                mScanning = false;
+                mFilteredScan = null;
+            }
+        }
+
+        private void deliver(ScanResult result) {
+            // Not a late result of a stopped scan
+            if (mFilteredScan == this) {
+                onDevice(result.getDevice());
+            }
+        }
+    }
+
+    // Unfiltered scan before Lollipop, called on a binder thread for every advertisement
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+            final String address = mAddress;
+            if (address != null ? !address.equals(device.getAddress())
+                    : !Constants.TI_CC1350_APP.equals(device.getName())) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onDevice(device);
+                }
+            });
+        }
+    };
+}
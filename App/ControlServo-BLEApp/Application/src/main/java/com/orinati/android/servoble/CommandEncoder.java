@@ -0,0 +1,62 @@
+package com.orinati.android.servoble;
+
+/**
+ * Encodes flipper commands for the board without allocating.
+ *
+ * State frames are encoded into a single buffer owned by the encoder; the buffer is handed to
+ * {@code BluetoothGattCharacteristic#setValue(byte[])}, which keeps the reference, and the
+ * stack copies it when the write is submitted.  An encoder must therefore only be used by
+ * the thread that submits writes, i.e. the consumer of the {@code GattWriteQueue}.
+ */
+public class CommandEncoder {
+    // Legacy one byte flipper opcodes, still accepted by the board
+    public static final byte LEFT_DOWN      = 0x1A;
+    public static final byte LEFT_UP        = 0x1B;
+    public static final byte RIGHT_DOWN     = 0x2A;
+    public static final byte RIGHT_UP       = 0x2B;
+
+    private final FlipperStateFrame mFrame          = new FlipperStateFrame();
+    private final byte[]            mFrameBuffer    = new byte[FlipperStateFrame.LENGTH];
+
+    /**
+     * @return {@code state} with the flipper's bit set if {@code isUp}, cleared otherwise.
+     */
+    public static int setFlipper(int state, boolean isLeft, boolean isUp) {
+        final int flipper = isLeft ? FlipperStateFrame.LEFT_FLIPPER
+                                   : FlipperStateFrame.RIGHT_FLIPPER;
+        return isUp ? state | flipper : state & ~flipper;
+    }
+
+    /**
+     * Packs a state change into the primitive command carried by the {@code GattWriteQueue}:
+     * the actuator bitmask in the low 16 bits and the event time above it.
+     */
+    public static long packState(int state, long eventTime) {
+        return eventTime << 16 | (state & 0xFFFF);
+    }
+
+    public static int unpackState(long command) {
+        return (int) (command & 0xFFFF);
+    }
+
+    public static long unpackTime(long command) {
+        return command >>> 16;
+    }
+
+    /**
+     * Encodes a packed state command as the next state frame of the connection.
+     *
+     * @return The encoder's frame buffer, valid until the next call.
+     */
+    public byte[] encodeState(long command) {
+        mFrame.encode(mFrameBuffer, unpackState(command), unpackTime(command));
+        return mFrameBuffer;
+    }
+
+    /**
+     * Restarts the frame sequence, e.g. for a new connection.
+     */
+    public void reset() {
+        mFrame.reset();
+    }
+}
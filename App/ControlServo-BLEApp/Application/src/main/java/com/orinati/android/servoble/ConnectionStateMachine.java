@@ -0,0 +1,388 @@
+package com.orinati.android.servoble;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the connection to the board: connects, sets the link up, and restores it after
+ * drops.
+ *
+ * All transitions run on the {@link Scheduler}'s thread, one event at a time, so they're
+ * atomic; events may be reported from any thread.  Every attempt gets a connection id, and
+ * events of an attempt that was given up are ignored.  A dropped link is reconnected at
+ * once, failed attempts back off exponentially, and after {@value #SCAN_AFTER_ATTEMPTS}
+ * failed attempts the machine scans for the board instead of blindly connecting.
+ *
+ * The GATT layer and the scheduler are interfaces, so the unit tests run the machine on a
+ * plain JVM against {@code FakeGattLayer} and {@code ManualScheduler}.
+ */
+public class ConnectionStateMachine {
+    // Not connected and not trying to
+    public static final int STATE_IDLE          = 0;
+    // Waiting for the board's advertisement
+    public static final int STATE_SCANNING      = 1;
+    // Connection attempt in progress
+    public static final int STATE_CONNECTING    = 2;
+    // Connected, setting the link up: MTU, services, subscriptions, game state
+    public static final int STATE_DISCOVERING   = 3;
+    // Ready for flipper commands
+    public static final int STATE_READY         = 4;
+    // Connected, but the setup failed or writes keep failing
+    public static final int STATE_DEGRADED      = 5;
+    // Waiting before the next attempt
+    public static final int STATE_BACKOFF       = 6;
+
+    private static final String[] STATE_NAMES = {
+            "idle", "scanning", "connecting", "discovering", "ready", "degraded", "backoff"
+    };
+
+    /**
+     * The link to the board, driven by the machine on the scheduler's thread.  Outcomes are
+     * reported back through the machine's {@code on*} methods, tagged with the connection
+     * id.
+     */
+    public interface GattLayer {
+        /**
+         * Starts a connection attempt, reported by {@link #onConnected(int)} or
+         * {@link #onDisconnected(int, int)}.
+         */
+        void connect(String address, int connectionId);
+
+        /**
+         * Drops the connection or cancels the attempt, keeping its resources for a later
+         * {@link #connect} to the same board.  Nothing is reported for it afterwards.
+         */
+        void disconnect();
+
+        /**
+         * Drops the connection or cancels the attempt, and releases it.  Nothing is reported
+         * for it afterwards.
+         */
+        void close();
+
+        /**
+         * Sets the connected link up, reported by {@link #onSetUp(int, boolean)}.
+         */
+        void setUp();
+
+        /**
+         * Scans for the board, reported by {@link #onScanResult(String)}.
+         */
+        void startScan(String address);
+
+        void stopScan();
+    }
+
+    public interface Listener {
+        /**
+         * Called on the machine's thread after every transition.
+         */
+        void onStateChanged(int oldState, int newState);
+    }
+
+    // Delay before the second attempt, doubled for every further one
+    static final long FIRST_RETRY_DELAY_MS      = 50;
+    static final long MAX_RETRY_DELAY_MS        = 5000;
+    static final long CONNECT_TIMEOUT_MS        = 5000;
+    static final long SETUP_TIMEOUT_MS          = 5000;
+    static final long SCAN_TIMEOUT_MS           = 10000;
+    static final int  SCAN_AFTER_ATTEMPTS       = 3;
+    // Consecutive failed writes that degrade a ready link
+    static final int  DEGRADED_WRITE_FAILURES   = 3;
+
+    private final GattLayer     mGatt;
+    private final Scheduler     mScheduler;
+    private final CopyOnWriteArrayList<Listener> mListeners =
+            new CopyOnWriteArrayList<Listener>();
+    private final LatencyHistogram mTimeToReady = new LatencyHistogram("reconnect");
+
+    private volatile int        mState = STATE_IDLE;
+    private final AtomicInteger mWriteFailures = new AtomicInteger();
+
+    // Confined to the scheduler's thread
+    private String              mAddress;
+    private int                 mConnectionId;
+    // Failed attempts since the link was last ready
+    private int                 mAttempt;
+    // When the link dropped, -1 if it didn't
+    private long                mDropNanos = -1;
+    private long                mAttemptCount;
+    private long                mDropCount;
+
+    public ConnectionStateMachine(GattLayer gatt, Scheduler scheduler) {
+        mGatt = gatt;
+        mScheduler = scheduler;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * @return true while a link to the board is up, ready or not.
+     */
+    public boolean isConnected() {
+        final int state = mState;
+        return state == STATE_DISCOVERING || state == STATE_READY || state == STATE_DEGRADED;
+    }
+
+    public static String getStateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    /**
+     * @return Time from a drop until the link was ready again.
+     */
+    public LatencyHistogram getTimeToReady() {
+        return mTimeToReady;
+    }
+
+    /**
+     * Connects to the board and keeps the link up until {@link #disconnect()}.  Does nothing
+     * if the machine is already at it.
+     */
+    public void connect(final String address) {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != STATE_IDLE) {
+                    if (address.equals(mAddress)) {
+                        return;
+                    }
+                    // Another board
+                    stop();
+                    mGatt.close();
+                }
+                mAddress = address;
+                mAttempt = 0;
+                mDropNanos = -1;
+                startAttempt();
+            }
+        });
+    }
+
+    /**
+     * Disconnects and stops reconnecting.
+     */
+    public void disconnect() {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == STATE_IDLE) {
+                    return;
+                }
+                stop();
+                mGatt.disconnect();
+                transition(STATE_IDLE);
+            }
+        });
+    }
+
+    public void onConnected(final int connectionId) {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (connectionId != mConnectionId || mState != STATE_CONNECTING) {
+                    return;
+                }
+                mScheduler.cancel(mTimeout);
+                mWriteFailures.set(0);
+                transition(STATE_DISCOVERING);
+                mScheduler.schedule(mTimeout, SETUP_TIMEOUT_MS);
+                mGatt.setUp();
+            }
+        });
+    }
+
+    /**
+     * @param status Status reported by the stack, for the log.
+     */
+    public void onDisconnected(final int connectionId, final int status) {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (connectionId != mConnectionId) {
+                    return;
+                }
+                switch (mState) {
+                    case STATE_READY:
+                    case STATE_DEGRADED:
+                        mDropCount++;
+                        mDropNanos = mScheduler.nanoTime();
+                        mAttempt = 0;
+                        retry();
+                        break;
+                    case STATE_CONNECTING:
+                    case STATE_DISCOVERING:
+                        retry();
+                        break;
+                }
+            }
+        });
+    }
+
+    public void onSetUp(final int connectionId, final boolean success) {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (connectionId != mConnectionId || mState != STATE_DISCOVERING) {
+                    return;
+                }
+                mScheduler.cancel(mTimeout);
+                if (mDropNanos >= 0) {
+                    mTimeToReady.recordNanos(mDropNanos, mScheduler.nanoTime());
+                    mDropNanos = -1;
+                }
+                mAttempt = 0;
+                transition(success ? STATE_READY : STATE_DEGRADED);
+            }
+        });
+    }
+
+    public void onScanResult(final String address) {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != STATE_SCANNING || !address.equals(mAddress)) {
+                    return;
+                }
+                mScheduler.cancel(mTimeout);
+                mGatt.stopScan();
+                startAttempt();
+            }
+        });
+    }
+
+    /**
+     * Reports the outcome of a write.  Safe to call from any thread, and only posts to the
+     * machine when the link's health changes.
+     */
+    public void onWriteResult(boolean success) {
+        if (success) {
+            if (mWriteFailures.getAndSet(0) >= DEGRADED_WRITE_FAILURES) {
+                mScheduler.execute(mWritesRecovered);
+            }
+        } else if (mWriteFailures.incrementAndGet() == DEGRADED_WRITE_FAILURES) {
+            mScheduler.execute(mWritesFailing);
+        }
+    }
+
+    private void startAttempt() {
+        mConnectionId++;
+        mAttemptCount++;
+        transition(STATE_CONNECTING);
+        mScheduler.schedule(mTimeout, CONNECT_TIMEOUT_MS);
+        mGatt.connect(mAddress, mConnectionId);
+    }
+
+    // Gives the current attempt or link up and schedules the next attempt, which reuses the
+    // connection's resources
+    private void retry() {
+        mScheduler.cancel(mTimeout);
+        mGatt.disconnect();
+        // Late events of the closed connection must not count
+        mConnectionId++;
+        final long delay = getRetryDelayMillis(mAttempt);
+        mAttempt++;
+        transition(STATE_BACKOFF);
+        mScheduler.schedule(mBackoffExpired, delay);
+    }
+
+    private void stop() {
+        mScheduler.cancel(mTimeout);
+        mScheduler.cancel(mBackoffExpired);
+        if (mState == STATE_SCANNING) {
+            mGatt.stopScan();
+        }
+        mConnectionId++;
+        mDropNanos = -1;
+    }
+
+    private void transition(int newState) {
+        final int oldState = mState;
+        if (oldState == newState) {
+            return;
+        }
+        mState = newState;
+        for (Listener listener : mListeners) {
+            listener.onStateChanged(oldState, newState);
+        }
+    }
+
+    static long getRetryDelayMillis(int attempt) {
+        if (attempt == 0) {
+            return 0;
+        }
+        // Shifting further can't stay below the maximum anyway
+        return attempt > 16 ? MAX_RETRY_DELAY_MS
+                : Math.min(FIRST_RETRY_DELAY_MS << (attempt - 1), MAX_RETRY_DELAY_MS);
+    }
+
+    private final Runnable mBackoffExpired = new Runnable() {
+        @Override
+        public void run() {
+            if (mState != STATE_BACKOFF) {
+                return;
+            }
+            if (mAttempt >= SCAN_AFTER_ATTEMPTS) {
+                transition(STATE_SCANNING);
+                mScheduler.schedule(mTimeout, SCAN_TIMEOUT_MS);
+                mGatt.startScan(mAddress);
+            } else {
+                startAttempt();
+            }
+        }
+    };
+
+    // Connect, setup and scan timeouts
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            switch (mState) {
+                case STATE_CONNECTING:
+                case STATE_DISCOVERING:
+                    retry();
+                    break;
+                case STATE_SCANNING:
+                    // Not in range; look again after the longest backoff
+                    mGatt.stopScan();
+                    transition(STATE_BACKOFF);
+                    mScheduler.schedule(mBackoffExpired, MAX_RETRY_DELAY_MS);
+                    break;
+            }
+        }
+    };
+
+    private final Runnable mWritesFailing = new Runnable() {
+        @Override
+        public void run() {
+            if (mState == STATE_READY) {
+                transition(STATE_DEGRADED);
+            }
+        }
+    };
+
+    private final Runnable mWritesRecovered = new Runnable() {
+        @Override
+        public void run() {
+            if (mState == STATE_DEGRADED) {
+                transition(STATE_READY);
+            }
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "ConnectionStateMachine{state=" + getStateName(mState)
+                + ", attempts=" + mAttemptCount + ", drops=" + mDropCount
+                + ", " + mTimeToReady + "}";
+    }
+}
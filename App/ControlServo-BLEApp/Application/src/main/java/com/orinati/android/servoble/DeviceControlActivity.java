@@ -18,12 +18,8 @@ package com.orinati.android.servoble;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.hardware.SensorManager;
 import android.os.Bundle;
@@ -31,17 +27,19 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.SystemClock;
 import android.util.Log;
-import android.view.MotionEvent;
+import android.view.KeyEvent;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -57,26 +55,41 @@ public class DeviceControlActivity extends Activity {
     public static final String EXTRAS_DEVICE_ADDRESS    = "DEVICE_ADDRESS";
     public static final String GAME_OVER    = "GAME OVER";
 
+    private static final long LATENCY_OVERLAY_PERIOD_MS = 500;
+    // Samples per telemetry point, 100 points per second
+    private static final int TELEMETRY_WINDOW = 10;
+
     private TextView                    mConnectionState;
     private TextView                    mDataField;
     private TextView                    mLivesText;
     private TextView                    mLivesLeft;
-    private Integer                     livesLeft = 3;
+    // Latency percentiles, debug builds only
+    private TextView                    mLatencyOverlay;
+    private final StringBuilder         mLatencyText = new StringBuilder();
+    // Drain force sensor, while the telemetry is on
+    private TelemetryChartView          mTelemetryChart;
+    private boolean                     mTelemetryOn;
     private String                      mDeviceName;
     private String                      mDeviceAddress;
     private BluetoothLeService          mBluetoothLeService;
     private BluetoothGattCharacteristic mWriteCharacteristic;
-    private BluetoothGattCharacteristic mNotifyCharacteristic;
+    private BluetoothGattCharacteristic mGameStateCharacteristic;
     private Button                      mPauseButton;
     private Button                      mLeftPaddleButton;
     private Button                      mRightPaddleButton;
-    TextView textView ;
-
-    long MillisecondTime, StartTime, TimeBuff, UpdateTime = 0L ;
-
-    Handler handler;
-
-    int Seconds, Minutes, MilliSeconds ;
+    private PaddleManager               mPaddleManager;
+    private FlipperInput                mFlipperInput;
+    private FlipperKeys                 mFlipperKeys;
+    private GameClock                   mGameClock;
+    // Game state as published by the board
+    private final GameState             mGameState = new GameState();
+    private final GameTracker           mGameTracker = new GameTracker(mGameState);
+    // Decimal rendering of the last notification, reused across notifications
+    private char[]                      mDataText = new char[4 * 20];
+    // Between onResume and onPause
+    private boolean                     mResumed;
+    // Logs every game from the new game button to the game over
+    private SessionRecorder             mSessionRecorder;
 
     ListView listView ;
 
@@ -85,7 +98,6 @@ public class DeviceControlActivity extends Activity {
     List<String> ListElementsArrayList ;
 
     ArrayAdapter<String> adapter ;
-    //private PaddleManager               mPaddleManager;
 
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -97,6 +109,10 @@ public class DeviceControlActivity extends Activity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            mGameTracker.setDrainLatency(mBluetoothLeService.getDrainLatency());
+            mBluetoothLeService.registerListener(mBoardEventListener);
+            mBluetoothLeService.setMotionProfiles(MotionProfiles.createDefault());
+            mTelemetryChart.setTelemetry(mBluetoothLeService.getForceTelemetry());
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
         }
@@ -107,84 +123,72 @@ public class DeviceControlActivity extends Activity {
         }
     };
 
-    public Runnable runnable = new Runnable() {
-
-        public void run() {
-
-            MillisecondTime = SystemClock.uptimeMillis() - StartTime;
-
-            UpdateTime = TimeBuff + MillisecondTime;
-
-            Seconds = (int) (UpdateTime / 1000);
-
-            Minutes = Seconds / 60;
-
-            Seconds = Seconds % 60;
-
-            MilliSeconds = (int) (UpdateTime % 1000);
-
-            textView.setText("" + Minutes + ":"
-                    + String.format("%02d", Seconds) + ":"
-                    + String.format("%03d", MilliSeconds));
-
-            handler.postDelayed(this, 0);
-        }
-
-    };
-
-
-    // Handles various events fired by the Service.
-    // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    // Handles various events fired by the Service, on the main thread.
+    // TYPE_CONNECTED: connected to a GATT server.
+    // TYPE_DISCONNECTED: disconnected from a GATT server.
+    // TYPE_SERVICES_DISCOVERED: discovered GATT services.
+    // TYPE_NOTIFICATION: received a notification from the device.
+    // TYPE_READ: read a characteristic of the device.
+    private final BoardEventBus.Listener mBoardEventListener = new BoardEventBus.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                updateConnectionState(R.string.connected);
-                mLivesText.setVisibility(View.VISIBLE);
-                mLivesLeft.setVisibility(View.VISIBLE);
-                mLeftPaddleButton.setClickable(true);
-                invalidateOptionsMenu();
-            }
-            else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                updateConnectionState(R.string.disconnected);
-                mLivesText.setVisibility(View.INVISIBLE);
-                mLivesLeft.setVisibility(View.INVISIBLE);
-                invalidateOptionsMenu();
-            }
-            else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                // Find the write and notification characteristic of the board's GATT service
-                initializeCharacteristic(mBluetoothLeService.getSupportedGattServices());
-            }
-            else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
+        public void onBoardEvent(BoardEvent event) {
+            switch (event.getType()) {
+                case BoardEvent.TYPE_CONNECTED:
+                    mSessionRecorder.recordConnection(SessionRecorder.nowMicros(),
+                            BoardEvent.TYPE_CONNECTED);
+                    updateConnectionState(R.string.connected);
+                    mLivesText.setVisibility(View.VISIBLE);
+                    mLivesLeft.setVisibility(View.VISIBLE);
+                    mLeftPaddleButton.setClickable(true);
+                    invalidateOptionsMenu();
+                    break;
+                case BoardEvent.TYPE_DISCONNECTED:
+                    mSessionRecorder.recordConnection(SessionRecorder.nowMicros(),
+                            BoardEvent.TYPE_DISCONNECTED);
+                    updateConnectionState(R.string.disconnected);
+                    mPaddleManager.unregisterListener();
+                    mGameTracker.onDisconnected();
+                    mLivesText.setVisibility(View.INVISIBLE);
+                    mLivesLeft.setVisibility(View.INVISIBLE);
+                    invalidateOptionsMenu();
+                    break;
+                case BoardEvent.TYPE_SERVICES_DISCOVERED:
+                    initializeCharacteristic();
+                    break;
+                case BoardEvent.TYPE_NOTIFICATION:
+                    if (isGameState(event)) {
+                        final int changed = mGameTracker.onNotification(event,
+                                SystemClock.elapsedRealtimeNanos());
+                        if (changed != 0) {
+                            mSessionRecorder.recordGameState(SessionRecorder.nowMicros(),
+                                    mGameState);
+                        }
+                        updateGameState(changed);
+                    }
+                    displayData(event.getData(), event.getLength());
+                    break;
+                case BoardEvent.TYPE_READ:
+                    if (isGameState(event)) {
+                        // Synced with the board, start forwarding flipper input
+                        mPaddleManager.registerListener(mBluetoothLeService, mWriteCharacteristic);
+                        final int changed = mGameTracker.onRead(event);
+                        mSessionRecorder.recordGameState(SessionRecorder.nowMicros(), mGameState);
+                        updateGameState(changed);
+                    }
+                    break;
             }
         }
     };
 
-    private void initializeCharacteristic(List<BluetoothGattService> supportedGattServices) {
-        if (supportedGattServices != null) {
-            String service_uuid = null;
-            String wr_uuid      = Constants.BOARD_WR;
-            String notify_uuid  = Constants.BOARD_NOTIFY;
-            // Finds the appropriate service
-            for (BluetoothGattService gattService : supportedGattServices) {
-                service_uuid = gattService.getUuid().toString();
-                if (service_uuid.equals(Constants.BOARD_SERVICES)) {
-                    // Retrieves the write characteristic
-                    mWriteCharacteristic = gattService.getCharacteristic(UUID.fromString(wr_uuid));
-                    // Retrives the notification characteristic
-                    mNotifyCharacteristic = gattService.getCharacteristic((UUID.fromString(notify_uuid)));
-                    // Enable the notification characteristic
-                    mBluetoothLeService.enablePeerDeviceNotifyMe(true,mNotifyCharacteristic);
-                    break;
-                }
-            }
+    // Picks up the board's characteristics, resolved by the service on every connection
+    private void initializeCharacteristic() {
+        mWriteCharacteristic = mBluetoothLeService.getWriteCharacteristic();
+        mGameStateCharacteristic = mBluetoothLeService.getGameStateCharacteristic();
+        if (mGameStateCharacteristic == null) {
+            Log.w(TAG, "Board doesn't publish its game state");
+            mPaddleManager.registerListener(mBluetoothLeService, mWriteCharacteristic);
         }
+        // Otherwise flipper input is forwarded once the game state was read
     }
 
     @Override
@@ -202,25 +206,39 @@ public class DeviceControlActivity extends Activity {
         mPauseButton.setOnClickListener(new PauseClickListener());
         mConnectionState    = findViewById(R.id.connection_state);
         mDataField          = findViewById(R.id.data_value);
+        mPaddleManager      = new PaddleManager();
+        // One edge per flipper change straight from the touches, no click listeners
+        mFlipperInput       = new FlipperInput(new HandlerScheduler(new Handler()),
+                new FlipperInput.Sink() {
+                    @Override
+                    public void onFlipper(boolean isLeft, boolean isUp, long eventTime) {
+                        mPaddleManager.onFlipper(isLeft, isUp, eventTime);
+                    }
+                });
         mLeftPaddleButton   = findViewById(R.id.left_button);
-        mLeftPaddleButton.setOnClickListener(new PaddleClickListener(true));
-        mLeftPaddleButton.setOnLongClickListener(new PaddleLongClickListener(true));
-        mLeftPaddleButton.setOnTouchListener(new PaddleTouchListener(true));
+        mLeftPaddleButton.setOnTouchListener(new FlipperTouchListener(mFlipperInput, true));
         mRightPaddleButton   = findViewById(R.id.right_button);
-        mRightPaddleButton.setOnClickListener(new PaddleClickListener(false));
-        mRightPaddleButton.setOnLongClickListener(new PaddleLongClickListener(false));
-        mRightPaddleButton.setOnTouchListener(new PaddleTouchListener(false));
+        mRightPaddleButton.setOnTouchListener(new FlipperTouchListener(mFlipperInput, false));
+        // Touches outside the buttons and the other controls land in the screen's halves
+        findViewById(android.R.id.content).setOnTouchListener(
+                new FlipperTouchListener(mFlipperInput));
+        mFlipperKeys        = new FlipperKeys(mFlipperInput);
+        mSessionRecorder    = new SessionRecorder(new File(getFilesDir(), "sessions"));
+        mPaddleManager.setRecorder(mSessionRecorder);
         mLivesText          = findViewById(R.id.text_lives);
         mLivesLeft          = findViewById(R.id.text_lives_number);
-        textView = (TextView)findViewById(R.id.textView);
+        mGameClock          = new GameClock((TextView) findViewById(R.id.textView));
+        mLatencyOverlay     = findViewById(R.id.latency_overlay);
+        if (BuildConfig.DEBUG) {
+            mLatencyOverlay.setVisibility(View.VISIBLE);
+        }
+        mTelemetryChart     = findViewById(R.id.telemetry_chart);
 
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
         Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
 
-        handler = new Handler() ;
-
         ListElementsArrayList = new ArrayList<String>(Arrays.asList(ListElements));
 
         adapter = new ArrayAdapter<String>(DeviceControlActivity.this,
@@ -235,7 +253,12 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        mResumed = true;
+        mGameClock.onResume();
+        updateGamePhase();
+        if (BuildConfig.DEBUG) {
+            mLatencyOverlay.post(mLatencyOverlayUpdater);
+        }
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
@@ -245,12 +268,56 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onPause() {
         super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
+        mResumed = false;
+        mGameClock.onPause();
+        updateGamePhase();
+        mLatencyOverlay.removeCallbacks(mLatencyOverlayUpdater);
+        // The touches in progress won't reach us anymore
+        mFlipperInput.release(SystemClock.uptimeMillis());
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.device_control, menu);
+        menu.findItem(R.id.menu_telemetry).setChecked(mTelemetryOn);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.menu_telemetry:
+                setTelemetry(!mTelemetryOn);
+                break;
+            case android.R.id.home:
+                onBackPressed();
+                break;
+        }
+        return true;
+    }
+
+    // Streams the drain force sensor to the chart, to tune the table's drain threshold
+    private void setTelemetry(boolean on) {
+        mTelemetryOn = on;
+        mTelemetryChart.setVisibility(on ? View.VISIBLE : View.GONE);
+        mPaddleManager.setTelemetryWindow(on ? TELEMETRY_WINDOW : 0);
+        invalidateOptionsMenu();
+    }
+
+    // Flipper keys are handled before the views get to see them
+    @Override
+    public boolean dispatchKeyEvent(KeyEvent event) {
+        return mFlipperKeys.onKeyEvent(event) || super.dispatchKeyEvent(event);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mPaddleManager.quit();
+        mSessionRecorder.quit(SessionRecorder.nowMicros());
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.unregisterListener(mBoardEventListener);
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -263,153 +330,107 @@ public class DeviceControlActivity extends Activity {
         });
     }
 
-    private void displayData(String data) {
-        if (data != null) {
-            mDataField.setText(data);
-            // Update number of lives left (based on the notification sent)
-            if (--livesLeft <= 0) {
-                mLivesLeft.setText(GAME_OVER);
-                handler.removeCallbacks(runnable);
-            }
-            else
-                mLivesLeft.setText(Integer.toString(livesLeft));
-
+    private void displayData(byte[] data, int length) {
+        if (length > 0) {
+            mDataField.setText(mDataText, 0, formatData(data, length));
         }
     }
 
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
+    private boolean isGameState(BoardEvent event) {
+        return mGameStateCharacteristic != null
+                && mGameStateCharacteristic.getUuid().equals(event.getCharacteristic());
     }
 
-
-    private class PauseClickListener implements View.OnClickListener {
-        @Override
-        public void onClick(View v) {
-            //Reset lives
-            livesLeft = 3;
-            mLivesLeft.setText("3");
-
-            //Zero timer
-            MillisecondTime = 0L ;
-            StartTime = 0L ;
-            TimeBuff = 0L ;
-            UpdateTime = 0L ;
-            Seconds = 0 ;
-            Minutes = 0 ;
-            MilliSeconds = 0 ;
-
-            textView.setText("00:00:00");
-
-            ListElementsArrayList.clear();
-
-            adapter.notifyDataSetChanged();
-
-            //Start timer
-
-            StartTime = SystemClock.uptimeMillis();
-            boolean b = handler.postDelayed(runnable, 0);
-
-            //mPaddleManager.unregisterListener();
-            //mBluetoothLeService.disconnect();
-            //DeviceControlActivity.this.finish();
-            //onBackPressed();
+    // Updates the views of the fields that changed
+    private void updateGameState(int changed) {
+        if ((changed & GameState.PHASE) != 0) {
+            updateGamePhase();
         }
+        if ((changed & (GameState.LIVES | GameState.PHASE)) == 0) {
+            return;
+        }
+        if (mGameState.getPhase() == GameState.PHASE_GAME_OVER) {
+            mLivesLeft.setText(GAME_OVER);
+            mGameClock.stop();
+            mSessionRecorder.seal(SessionRecorder.END_GAME_OVER, SessionRecorder.nowMicros());
+        }
+        else
+            mLivesLeft.setText(Integer.toString(mGameState.getLives()));
     }
 
-    private class PaddleClickListener implements View.OnClickListener {
-        boolean isLeft;
-
-        public PaddleClickListener(boolean isLeft)
-        {
-            this.isLeft = isLeft;
+    // Pauses the game on the board while the activity is in the background, resumes it when
+    // it's back, and selects the link profile for the phase.
+    private void updateGamePhase() {
+        final int phase = mGameState.getPhase();
+        if (!mResumed && phase == GameState.PHASE_PLAYING) {
+            mPaddleManager.sendGameCommand(GameState.COMMAND_PAUSE);
+        } else if (mResumed && phase == GameState.PHASE_PAUSED) {
+            mPaddleManager.sendGameCommand(GameState.COMMAND_RESUME);
         }
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.setLinkProfile(mResumed && phase == GameState.PHASE_PLAYING
+                    ? BluetoothLeService.LINK_PROFILE_COMPETITIVE
+                    : BluetoothLeService.LINK_PROFILE_IDLE);
+        }
+    }
 
-        @Override
-        public void onClick(View v)
-        {
-            // sleep for 0.05 sec
-            try
-            {
-                Thread.sleep(50);
+    // Writes the bytes as concatenated decimal values into mDataText.
+    private int formatData(byte[] data, int length) {
+        // "-128" is the longest byte
+        if (mDataText.length < 4 * length) {
+            mDataText = new char[4 * length];
+        }
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[i];
+            if (value < 0) {
+                mDataText[pos++] = '-';
+                value = -value;
             }
-            catch(InterruptedException ex)
-            {
-                Thread.currentThread().interrupt();
+            if (value >= 100) {
+                mDataText[pos++] = (char) ('0' + value / 100);
             }
-            mBluetoothLeService.writeCharacteristic(mWriteCharacteristic,
-                    getInstructionCode(isLeft,false));
-            Log.d("myTag", "Hello from PaddleClickListener");
-
-
+            if (value >= 10) {
+                mDataText[pos++] = (char) ('0' + value / 10 % 10);
+            }
+            mDataText[pos++] = (char) ('0' + value % 10);
         }
+        return pos;
     }
 
-
-    private class PaddleLongClickListener implements View.OnLongClickListener {
-        boolean isLeft;
-
-        public PaddleLongClickListener(boolean isLeft)
-        {
-            this.isLeft = isLeft;
+    private final Runnable mLatencyOverlayUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (mBluetoothLeService != null) {
+                mLatencyText.setLength(0);
+                mBluetoothLeService.appendLinkSummary(mLatencyText);
+                mBluetoothLeService.getLatencyTracker().appendSummary(mLatencyText);
+                mLatencyOverlay.setText(mLatencyText);
+            }
+            mLatencyOverlay.postDelayed(this, LATENCY_OVERLAY_PERIOD_MS);
         }
+    };
 
+    private class PauseClickListener implements View.OnClickListener {
         @Override
-        public boolean onLongClick(View v)
-        {
-            Log.d("myTag", "Hello from PaddleLongClickListener");
-            /*mBluetoothLeService.writeCharacteristic(mWriteCharacteristic,
-                    getInstructionCode(isLeft,true));*/
-
-            //telling the framework that the long click event is not consumed and further event handling is required
-            return true;
-        }
-    }
+        public void onClick(View v) {
+            // One log per game, an unfinished one is sealed
+            mSessionRecorder.start(System.currentTimeMillis(), SessionRecorder.nowMicros());
+            //Start a new game, the board resets the lives
+            mPaddleManager.sendGameCommand(GameState.COMMAND_NEW_GAME);
 
-    private class PaddleTouchListener implements View.OnTouchListener {
-        boolean isLeft;
+            ListElementsArrayList.clear();
 
-        public PaddleTouchListener(boolean isLeft)
-        {
-            this.isLeft = isLeft;
-        }
+            adapter.notifyDataSetChanged();
 
-        @Override
-        public boolean onTouch(View v, MotionEvent event)
-        {
-            if(event.getAction()==MotionEvent.ACTION_DOWN )
-            {
-                Log.d("myTag", "Hello from PaddleTouchListener - ACTION_DOWN");
-                mBluetoothLeService.writeCharacteristic(mWriteCharacteristic,
-                        getInstructionCode(isLeft, true));
-            }
-            if(event.getAction()==MotionEvent.ACTION_UP || event.getAction()==MotionEvent.ACTION_CANCEL)
-            {
-                Log.d("myTag", "Hello from PaddleTouchListener - ACTION_UP");
-                mBluetoothLeService.writeCharacteristic(mWriteCharacteristic,
-                        getInstructionCode(isLeft, false));
-            }
+            //Restart timer
+            mGameClock.start();
 
-            return false;
+            //mPaddleManager.unregisterListener();
+            //mBluetoothLeService.disconnect();
+            //DeviceControlActivity.this.finish();
+            //onBackPressed();
         }
     }
 
-    public static byte[] getInstructionCode(Boolean isLeft,Boolean isUp)
-    {
-        if (isLeft && isUp)
-            return new byte[]{0x1B};
-        if (isLeft && !isUp)
-            return new byte[]{0x1A};
-        if (!isLeft && isUp)
-            return new byte[]{0x2B};
-        if (!isLeft && !isUp)
-            return new byte[]{0x2A};
-        // Should not get here
-        return new byte[]{0x00};
-    }
-
 }
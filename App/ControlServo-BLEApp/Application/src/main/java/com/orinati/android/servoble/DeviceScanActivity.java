@@ -34,15 +34,13 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
 
-import java.util.ArrayList;
-
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
  */
 public class DeviceScanActivity extends Activity {
-    private ArrayList<BluetoothDevice>  mLeDevices;
     private BluetoothDevice             mBoardDevice;
     private BluetoothAdapter            mBluetoothAdapter;
+    private BoardScanner                mBoardScanner;
     private boolean                     mScanning;
     private Handler                     mHandler;
     private View                        mView;
@@ -51,7 +49,6 @@ public class DeviceScanActivity extends Activity {
     private static final int PERMISSION_REQUEST_COARSE_LOCATION = 456;
     private boolean permissionChecked = false;
     private boolean scanStarted       = false;
-    private boolean board_found        = false;
 
     private static final int REQUEST_ENABLE_BT = 1;
     // Stops scanning after 10 seconds.
@@ -81,7 +78,9 @@ public class DeviceScanActivity extends Activity {
         if (mBluetoothAdapter == null) {
             Toast.makeText(this, R.string.error_bluetooth_not_supported, Toast.LENGTH_SHORT).show();
             finish();
+            return;
         }
+        mBoardScanner = new BoardScanner(mBluetoothAdapter, mHandler, mBoardListener);
 
         // grant permissions
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
@@ -143,33 +142,22 @@ public class DeviceScanActivity extends Activity {
     }
 
     private boolean boardFound() {
-        String devName;
-        if(board_found)
-            return true;
-        for (BluetoothDevice dev : mLeDevices) { // Check if the board is one the found devices
-            devName = dev.getName();
-            if (devName != null && devName.equals(Constants.TI_CC1350_APP)) {
-                mBoardDevice = dev;
-                board_found = true;
-                return true;
-            }
-        }
-        // Board not amongst the devices that were found
-        mBoardDevice = null;
-        return false;
+        return mBoardDevice != null;
     }
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
-                mLeDevices.clear();
                 mBoardDevice = null;
                 scanLeDevice(true);
                 break;
             case R.id.menu_stop:
                 scanLeDevice(false);
                 break;
+            case R.id.menu_tables:
+                startActivity(new Intent(this, TableDashboardActivity.class));
+                break;
         }
         return true;
     }
@@ -187,8 +175,7 @@ public class DeviceScanActivity extends Activity {
             }
         }
 
-        // Initializes device list
-        mLeDevices = new ArrayList<>();
+        mBoardDevice = null;
         scanLeDevice(true);
     }
 
@@ -206,7 +193,6 @@ public class DeviceScanActivity extends Activity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
-        mLeDevices.clear();
         if (mToast != null) {
             mToast.cancel();
         }
@@ -214,45 +200,43 @@ public class DeviceScanActivity extends Activity {
 
     private void scanLeDevice(final boolean enable) {
         scanStarted       = false;
-        board_found        = false;
+        // A stop of an earlier scan mustn't cut this one short
+        mHandler.removeCallbacks(mStopScan);
         if (enable) {
             scanStarted = true;
             // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
-            mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            mHandler.postDelayed(mStopScan, SCAN_PERIOD);
+            mScanning = mBoardScanner.start(null);
         }
         else {
             mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mBoardScanner.stop();
         }
         invalidateOptionsMenu();
     }
 
+    private final Runnable mStopScan = new Runnable() {
+        @Override
+        public void run() {
+            mScanning = false;
+            mBoardScanner.stop();
+            invalidateOptionsMenu();
+        }
+    };
 
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-
+    // Board scan callback, on the main thread.  The first board ends the scan, so the start
+    // button shows at once.
+    private final BoardScanner.Listener mBoardListener = new BoardScanner.Listener() {
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    // For each device - if not in device list --> add it
-                    if (!mLeDevices.contains(device)) {
-                        mLeDevices.add(device);
-                    }
-                }
-            });
+        public void onBoardFound(BluetoothDevice device) {
+            if (mBoardDevice != null) {
+                return;
+            }
+            mBoardDevice = device;
+            mHandler.removeCallbacks(mStopScan);
+            mScanning = false;
+            mBoardScanner.stop();
+            invalidateOptionsMenu();
         }
     };
 
@@ -268,7 +252,8 @@ public class DeviceScanActivity extends Activity {
             intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, mBoardDevice.getName());
             intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, mBoardDevice.getAddress());
             if (mScanning) {
-                mBluetoothAdapter.stopLeScan(mLeScanCallback);
+                mHandler.removeCallbacks(mStopScan);
+                mBoardScanner.stop();
                 mScanning = false;
             }
             // Start the connect activity
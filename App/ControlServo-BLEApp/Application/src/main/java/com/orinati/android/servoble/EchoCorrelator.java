@@ -0,0 +1,157 @@
+package com.orinati.android.servoble;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Matches the board's flipper command echoes with the writes they acknowledge.
+ *
+ * In echo mode the board notifies every flipper state frame back, with its clock ticks for
+ * the frame's receipt and the servo update.  The send time of every frame is kept in a table
+ * indexed by the frame's sequence number; an echo looks it up to measure the round trip,
+ * and its ticks give the time the board spent between receipt and servo update.
+ *
+ * Echo layout (little endian):
+ * <pre>
+ *   byte 0     version
+ *   byte 1     sequence number of the echoed flipper state frame
+ *   byte 2-5   board tick at which the frame was received
+ *   byte 6-9   board tick at which the servos were updated
+ *   byte 10-11 board tick period in microseconds
+ * </pre>
+ * {@link #onSend(int, long)} and {@link #onEcho(byte[], int, long)} may run on different
+ * threads.  Plain Java, so the unit tests run it against {@code SimulatedBoard} as well.
+ */
+public class EchoCorrelator {
+    public static final int VERSION             = 1;
+    public static final int LENGTH              = 12;
+
+    private static final int OFFSET_VERSION     = 0;
+    private static final int OFFSET_SEQUENCE    = 1;
+    private static final int OFFSET_RX_TICK     = 2;
+    private static final int OFFSET_PWM_TICK    = 6;
+    private static final int OFFSET_TICK_PERIOD = 10;
+
+    private static final int  SEQUENCES         = 256;
+    // A send older than this can't be the origin of an echo; the sequence has wrapped
+    private static final long MAX_ROUND_TRIP_NANOS = 2000000000L;
+    private static final long NONE              = 0;
+
+    private final LatencyTracker    mTracker;
+    private final AtomicLongArray   mSendNanos  = new AtomicLongArray(SEQUENCES);
+
+    private final AtomicLong        mMatched    = new AtomicLong();
+    private final AtomicLong        mUnmatched  = new AtomicLong();
+
+    public EchoCorrelator(LatencyTracker tracker) {
+        mTracker = tracker;
+    }
+
+    /**
+     * Records that the frame with the given sequence number was submitted.
+     *
+     * @param nanos {@code System.nanoTime()} of the submission.
+     */
+    public void onSend(int sequence, long nanos) {
+        // NONE marks a free entry
+        mSendNanos.set(sequence & (SEQUENCES - 1), nanos == NONE ? 1 : nanos);
+    }
+
+    /**
+     * Matches an echo to its send and records the round trip and the board's processing
+     * time in the tracker.
+     *
+     * @param nanos {@code System.nanoTime()} of the echo's receipt.
+     * @return false if the echo is malformed, a duplicate or doesn't match a recent send.
+     */
+    public boolean onEcho(byte[] echo, int length, long nanos) {
+        if (!isValid(echo, length)) {
+            mUnmatched.incrementAndGet();
+            return false;
+        }
+        final long sent = mSendNanos.getAndSet(getSequence(echo), NONE);
+        final long roundTrip = nanos - sent;
+        if (sent == NONE || roundTrip < 0 || roundTrip > MAX_ROUND_TRIP_NANOS) {
+            mUnmatched.incrementAndGet();
+            return false;
+        }
+        mMatched.incrementAndGet();
+        mTracker.record(LatencyTracker.STAGE_FIRMWARE_ECHO, roundTrip / 1000);
+        mTracker.record(LatencyTracker.STAGE_BOARD_RX_TO_PWM, getBoardMicros(echo));
+        return true;
+    }
+
+    /**
+     * Forgets all sends, e.g. for a new connection.
+     */
+    public void reset() {
+        for (int i = 0; i < SEQUENCES; i++) {
+            mSendNanos.set(i, NONE);
+        }
+    }
+
+    public long getMatchedCount() {
+        return mMatched.get();
+    }
+
+    public long getUnmatchedCount() {
+        return mUnmatched.get();
+    }
+
+    public static boolean isValid(byte[] echo, int length) {
+        return echo != null && length >= LENGTH && length <= echo.length
+                && echo[OFFSET_VERSION] >= VERSION;
+    }
+
+    public static int getSequence(byte[] echo) {
+        return echo[OFFSET_SEQUENCE] & 0xFF;
+    }
+
+    public static long getRxTick(byte[] echo) {
+        return readUInt32(echo, OFFSET_RX_TICK);
+    }
+
+    public static long getPwmTick(byte[] echo) {
+        return readUInt32(echo, OFFSET_PWM_TICK);
+    }
+
+    public static int getTickPeriodMicros(byte[] echo) {
+        return (echo[OFFSET_TICK_PERIOD] & 0xFF) | (echo[OFFSET_TICK_PERIOD + 1] & 0xFF) << 8;
+    }
+
+    /**
+     * @return Microseconds the board spent from the frame's receipt to the servo update.
+     */
+    public static long getBoardMicros(byte[] echo) {
+        // The tick counter wraps at 32 bits
+        final long ticks = (getPwmTick(echo) - getRxTick(echo)) & 0xFFFFFFFFL;
+        return ticks * getTickPeriodMicros(echo);
+    }
+
+    /**
+     * Encodes an echo, as the board does.
+     */
+    public static void encode(byte[] out, int sequence, long rxTick, long pwmTick,
+                              int tickPeriodMicros) {
+        out[OFFSET_VERSION]         = VERSION;
+        out[OFFSET_SEQUENCE]        = (byte) sequence;
+        writeUInt32(out, OFFSET_RX_TICK, rxTick);
+        writeUInt32(out, OFFSET_PWM_TICK, pwmTick);
+        out[OFFSET_TICK_PERIOD]     = (byte) tickPeriodMicros;
+        out[OFFSET_TICK_PERIOD + 1] = (byte) (tickPeriodMicros >> 8);
+    }
+
+    private static long readUInt32(byte[] data, int offset) {
+        return (data[offset] & 0xFFL)
+                | (data[offset + 1] & 0xFFL) << 8
+                | (data[offset + 2] & 0xFFL) << 16
+                | (data[offset + 3] & 0xFFL) << 24;
+    }
+
+    private static void writeUInt32(byte[] data, int offset, long value) {
+        data[offset]        = (byte) value;
+        data[offset + 1]    = (byte) (value >> 8);
+        data[offset + 2]    = (byte) (value >> 16);
+        data[offset + 3]    = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,210 @@
+package com.orinati.android.servoble;
+
+/**
+ * Turns the touches on the flipper buttons into flipper edges: exactly one edge per change of
+ * a flipper's state, stamped with the earliest time the change was seen.
+ *
+ * A flipper is up while at least one pointer that went down on its button is still inside it,
+ * or one of its keys is held, so a second finger, a finger sliding within the button, a key
+ * pressed along with a touch or a repeated up don't produce edges.  After an edge, changes
+ * are held back for the debounce time; a change that's undone within it is dropped, one that
+ * lasts is reported once the time is over, still with the time it happened.
+ *
+ * Plain Java and the one front end of the flipper dispatch, whatever the input source:
+ * pointers are reported by {@code FlipperTouchListener}, keys by {@link FlipperKeys}.  Use it
+ * on the scheduler's thread only.
+ */
+public class FlipperInput {
+
+    /**
+     * Receives the edges, e.g. {@link PaddleManager#onFlipper(boolean, boolean, long)}.
+     */
+    public interface Sink {
+        /**
+         * @param eventTime Time of the change, in {@code SystemClock.uptimeMillis()} time base.
+         */
+        void onFlipper(boolean isLeft, boolean isUp, long eventTime);
+    }
+
+    public static final long DEFAULT_DEBOUNCE_MS = 10;
+
+    // Pointer ids are below 32, keys take the bits above them
+    private static final int KEY_SHIFT = 32;
+    public static final int MAX_KEYS = 32;
+
+    private final Scheduler mScheduler;
+    private final Sink      mSink;
+    private final Flipper   mLeft   = new Flipper(true);
+    private final Flipper   mRight  = new Flipper(false);
+
+    private long    mDebounceMs = DEFAULT_DEBOUNCE_MS;
+    private long    mEdgeCount;
+    // Pointer events that didn't change a flipper, or whose change was undone in time
+    private long    mSuppressedCount;
+
+    // The touch state of a flipper button
+    private class Flipper implements Runnable {
+        final boolean   isLeft;
+        // Bitmasks of pointer ids, keys above them: went down on the button, and of those
+        // still inside it
+        long            down;
+        long            inside;
+        boolean         reportedUp;
+        long            reportedTime = Long.MIN_VALUE;
+        // Earliest time of a change not reported yet, -1 if none
+        long            changeTime = -1;
+
+        Flipper(boolean isLeft) {
+            this.isLeft = isLeft;
+        }
+
+        void update(long eventTime) {
+            final boolean up = inside != 0;
+            if (up == reportedUp) {
+                if (changeTime >= 0) {
+                    // Undone within the debounce time
+                    changeTime = -1;
+                    mScheduler.cancel(this);
+                }
+                mSuppressedCount++;
+                return;
+            }
+            if (changeTime >= 0) {
+                // Already waiting for the debounce time
+                mSuppressedCount++;
+                return;
+            }
+            changeTime = eventTime;
+            final long wait = reportedTime + mDebounceMs - eventTime;
+            if (reportedTime == Long.MIN_VALUE || wait <= 0) {
+                report();
+            } else {
+                mScheduler.schedule(this, wait);
+            }
+        }
+
+        void report() {
+            reportedUp = inside != 0;
+            reportedTime = changeTime;
+            changeTime = -1;
+            mEdgeCount++;
+            mSink.onFlipper(isLeft, reportedUp, reportedTime);
+        }
+
+        // The debounce time is over
+        @Override
+        public void run() {
+            if (changeTime >= 0) {
+                report();
+            }
+        }
+    }
+
+    public FlipperInput(Scheduler scheduler, Sink sink) {
+        mScheduler = scheduler;
+        mSink = sink;
+    }
+
+    /**
+     * Sets how long changes are held back after an edge, {@link #DEFAULT_DEBOUNCE_MS} by
+     * default.  0 reports every change right away.
+     */
+    public void setDebounceMillis(long millis) {
+        mDebounceMs = millis;
+    }
+
+    public void onPointerDown(boolean isLeft, int pointerId, long eventTime) {
+        final Flipper flipper = get(isLeft);
+        flipper.down |= 1L << pointerId;
+        flipper.inside |= 1L << pointerId;
+        flipper.update(eventTime);
+    }
+
+    /**
+     * A pointer that went down on the button moved, possibly off or back on the button.
+     * Others are ignored.
+     */
+    public void onPointerMoved(boolean isLeft, int pointerId, boolean inside, long eventTime) {
+        final Flipper flipper = get(isLeft);
+        final long bit = 1L << pointerId;
+        if ((flipper.down & bit) == 0 || ((flipper.inside & bit) != 0) == inside) {
+            return;
+        }
+        flipper.inside ^= bit;
+        flipper.update(eventTime);
+    }
+
+    public void onPointerUp(boolean isLeft, int pointerId, long eventTime) {
+        final Flipper flipper = get(isLeft);
+        flipper.down &= ~(1L << pointerId);
+        flipper.inside &= ~(1L << pointerId);
+        flipper.update(eventTime);
+    }
+
+    /**
+     * A key of the flipper went down or up.  Keys count like pointers that never leave the
+     * button.
+     *
+     * @param key Index of the key among the flipper's keys, below {@link #MAX_KEYS}.
+     */
+    public void onKey(boolean isLeft, int key, boolean down, long eventTime) {
+        final Flipper flipper = get(isLeft);
+        final long bit = 1L << KEY_SHIFT + key;
+        if (down) {
+            flipper.down |= bit;
+            flipper.inside |= bit;
+        } else {
+            flipper.down &= ~bit;
+            flipper.inside &= ~bit;
+        }
+        flipper.update(eventTime);
+    }
+
+    /**
+     * Drops both flippers right away, without waiting for the debounce time, e.g. when the
+     * window loses the touches.
+     */
+    public void release(long eventTime) {
+        release(mLeft, eventTime);
+        release(mRight, eventTime);
+    }
+
+    /**
+     * @return Whether the flipper is up as far as the touches and keys go, reported or not.
+     */
+    public boolean isTouched(boolean isLeft) {
+        return get(isLeft).inside != 0;
+    }
+
+    public long getEdgeCount() {
+        return mEdgeCount;
+    }
+
+    public long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    private Flipper get(boolean isLeft) {
+        return isLeft ? mLeft : mRight;
+    }
+
+    private void release(Flipper flipper, long eventTime) {
+        mScheduler.cancel(flipper);
+        flipper.down = 0;
+        flipper.inside = 0;
+        if (flipper.reportedUp) {
+            if (flipper.changeTime < 0) {
+                flipper.changeTime = eventTime;
+            }
+            flipper.report();
+        } else {
+            flipper.changeTime = -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FlipperInput{edges=" + mEdgeCount + ", suppressed=" + mSuppressedCount
+                + ", debounceMs=" + mDebounceMs + "}";
+    }
+}
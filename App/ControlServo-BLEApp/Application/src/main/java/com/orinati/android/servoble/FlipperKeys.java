@@ -0,0 +1,102 @@
+package com.orinati.android.servoble;
+
+import android.view.InputDevice;
+import android.view.KeyEvent;
+
+/**
+ * Feeds the keys mapped to the flippers to a {@link FlipperInput}: the volume keys, the
+ * shoulder buttons and d-pad of Bluetooth and USB gamepads, and the shift keys of keyboards.
+ * D-pad keys of other devices, e.g. keyboard arrows and remotes, are left to the focus
+ * navigation.  Meant for {@code Activity.dispatchKeyEvent}, the earliest point a key reaches
+ * the app: keys skip the view hit testing and touch slop of the touch input.
+ */
+public class FlipperKeys {
+    // Index in these is the key's index for FlipperInput
+    private static final int[] LEFT_KEYS = {
+            KeyEvent.KEYCODE_VOLUME_UP,
+            KeyEvent.KEYCODE_BUTTON_L1,
+            KeyEvent.KEYCODE_BUTTON_L2,
+            KeyEvent.KEYCODE_DPAD_LEFT,
+            KeyEvent.KEYCODE_SHIFT_LEFT,
+    };
+    private static final int[] RIGHT_KEYS = {
+            KeyEvent.KEYCODE_VOLUME_DOWN,
+            KeyEvent.KEYCODE_BUTTON_R1,
+            KeyEvent.KEYCODE_BUTTON_R2,
+            KeyEvent.KEYCODE_DPAD_RIGHT,
+            KeyEvent.KEYCODE_SHIFT_RIGHT,
+    };
+
+    private final FlipperInput  mInput;
+    private boolean             mVolumeKeys = true;
+
+    public FlipperKeys(FlipperInput input) {
+        mInput = input;
+    }
+
+    /**
+     * Whether the volume keys drive the flippers rather than the volume, the default.
+     */
+    public void setVolumeKeys(boolean enabled) {
+        mVolumeKeys = enabled;
+    }
+
+    /**
+     * @return true if the key is a flipper's and was consumed, including its repeats.
+     */
+    public boolean onKeyEvent(KeyEvent event) {
+        final int keyCode = event.getKeyCode();
+        if (!mVolumeKeys && (keyCode == KeyEvent.KEYCODE_VOLUME_UP
+                || keyCode == KeyEvent.KEYCODE_VOLUME_DOWN)) {
+            return false;
+        }
+        if ((keyCode == KeyEvent.KEYCODE_DPAD_LEFT || keyCode == KeyEvent.KEYCODE_DPAD_RIGHT)
+                && !isFromGameController(event)) {
+            return false;
+        }
+        boolean isLeft = true;
+        int key = indexOf(LEFT_KEYS, keyCode);
+        if (key < 0) {
+            isLeft = false;
+            key = indexOf(RIGHT_KEYS, keyCode);
+            if (key < 0) {
+                return false;
+            }
+        }
+        switch (event.getAction()) {
+            case KeyEvent.ACTION_DOWN:
+                if (event.getRepeatCount() == 0) {
+                    mInput.onKey(isLeft, key, true, event.getEventTime());
+                }
+                break;
+            case KeyEvent.ACTION_UP:
+                mInput.onKey(isLeft, key, false, event.getEventTime());
+                break;
+        }
+        return true;
+    }
+
+    private static boolean isFromGameController(KeyEvent event) {
+        if (event.isFromSource(InputDevice.SOURCE_GAMEPAD)
+                || event.isFromSource(InputDevice.SOURCE_JOYSTICK)) {
+            return true;
+        }
+        // Gamepads report their d-pad as a plain SOURCE_DPAD, like remotes do
+        final InputDevice device = event.getDevice();
+        if (device == null) {
+            return false;
+        }
+        final int sources = device.getSources();
+        return (sources & InputDevice.SOURCE_GAMEPAD) == InputDevice.SOURCE_GAMEPAD
+                || (sources & InputDevice.SOURCE_JOYSTICK) == InputDevice.SOURCE_JOYSTICK;
+    }
+
+    private static int indexOf(int[] keys, int keyCode) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == keyCode) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
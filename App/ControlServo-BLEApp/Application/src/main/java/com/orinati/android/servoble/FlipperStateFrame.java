@@ -0,0 +1,92 @@
+package com.orinati.android.servoble;
+
+/**
+ * Encoder and decoder of the compact state frame written to the board's command
+ * characteristic.  One frame carries the state of every actuator, so flippers pressed in the
+ * same frame cost a single GATT write.
+ *
+ * Frame layout (little endian):
+ * <pre>
+ *   byte 0     version
+ *   byte 1     sequence number, wraps at 256
+ *   byte 2-3   actuator bitmask, a set bit means the actuator is engaged
+ *   byte 4-5   milliseconds since the previous frame, saturates at 0xFFFF
+ * </pre>
+ * The bitmask has room for 16 actuators; bits the board doesn't know are ignored.  Newer
+ * versions may only append fields, so a board can always read the first {@link #LENGTH}
+ * bytes.  A one byte write is still understood by the board as a legacy opcode.
+ */
+public class FlipperStateFrame {
+    public static final int VERSION             = 1;
+    public static final int LENGTH              = 6;
+
+    // Actuator bits
+    public static final int LEFT_FLIPPER        = 0x0001;
+    public static final int RIGHT_FLIPPER       = 0x0002;
+    public static final int PLUNGER             = 0x0004;
+    public static final int NUDGE               = 0x0008;
+
+    private static final int OFFSET_VERSION     = 0;
+    private static final int OFFSET_SEQUENCE    = 1;
+    private static final int OFFSET_STATE       = 2;
+    private static final int OFFSET_DELTA       = 4;
+    private static final int MAX_DELTA          = 0xFFFF;
+
+    private int     mSequence;
+    private long    mLastTime = -1;
+
+    /**
+     * Encodes the next frame of this stream into {@code out} and advances the sequence number.
+     *
+     * @param out       Destination, at least {@link #LENGTH} bytes long.
+     * @param state     Actuator bitmask.
+     * @param timeMs    Timestamp of the state change, in {@code SystemClock.uptimeMillis()}
+     *                  time base.
+     */
+    public void encode(byte[] out, int state, long timeMs) {
+        long delta = mLastTime < 0 ? 0 : timeMs - mLastTime;
+        if (delta < 0) {
+            delta = 0;
+        } else if (delta > MAX_DELTA) {
+            delta = MAX_DELTA;
+        }
+        mLastTime = timeMs;
+
+        out[OFFSET_VERSION]     = VERSION;
+        out[OFFSET_SEQUENCE]    = (byte) mSequence;
+        out[OFFSET_STATE]       = (byte) state;
+        out[OFFSET_STATE + 1]   = (byte) (state >> 8);
+        out[OFFSET_DELTA]       = (byte) delta;
+        out[OFFSET_DELTA + 1]   = (byte) (delta >> 8);
+        mSequence = (mSequence + 1) & 0xFF;
+    }
+
+    /**
+     * Restarts the sequence, e.g. for a new connection.
+     */
+    public void reset() {
+        mSequence = 0;
+        mLastTime = -1;
+    }
+
+    public static boolean isValid(byte[] frame, int length) {
+        return frame != null && length >= LENGTH && length <= frame.length
+                && frame[OFFSET_VERSION] >= VERSION;
+    }
+
+    public static int getVersion(byte[] frame) {
+        return frame[OFFSET_VERSION] & 0xFF;
+    }
+
+    public static int getSequence(byte[] frame) {
+        return frame[OFFSET_SEQUENCE] & 0xFF;
+    }
+
+    public static int getState(byte[] frame) {
+        return (frame[OFFSET_STATE] & 0xFF) | (frame[OFFSET_STATE + 1] & 0xFF) << 8;
+    }
+
+    public static int getDelta(byte[] frame) {
+        return (frame[OFFSET_DELTA] & 0xFF) | (frame[OFFSET_DELTA + 1] & 0xFF) << 8;
+    }
+}
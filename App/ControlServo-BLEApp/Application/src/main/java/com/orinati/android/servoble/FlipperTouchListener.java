@@ -0,0 +1,107 @@
+package com.orinati.android.servoble;
+
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Feeds the touches of a view to a {@link FlipperInput}: every pointer, and for moves every
+ * historical sample, so a finger sliding off is seen when it left rather than at the next
+ * frame.  The view is either a flipper's button, or split in two zones, its left half for
+ * the left flipper and its right half for the right one, e.g. the whole screen.  A pointer
+ * belongs to the flipper it went down on.  Consumes the touches, the view's click listeners
+ * don't get any.
+ */
+public class FlipperTouchListener implements View.OnTouchListener {
+    private final FlipperInput  mInput;
+    private final boolean       mZones;
+    private final boolean       mIsLeft;
+
+    // Zones only: ids of the pointers that went down on the left half
+    private int                 mLeftPointers;
+
+    /**
+     * For a flipper's button.
+     */
+    public FlipperTouchListener(FlipperInput input, boolean isLeft) {
+        mInput = input;
+        mZones = false;
+        mIsLeft = isLeft;
+    }
+
+    /**
+     * For a view split in a left and a right zone.
+     */
+    public FlipperTouchListener(FlipperInput input) {
+        mInput = input;
+        mZones = true;
+        mIsLeft = false;
+    }
+
+    @Override
+    public boolean onTouch(View v, MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_POINTER_DOWN: {
+                final int index = event.getActionIndex();
+                final int id = event.getPointerId(index);
+                if (mZones) {
+                    if (event.getX(index) < v.getWidth() / 2) {
+                        mLeftPointers |= 1 << id;
+                    } else {
+                        mLeftPointers &= ~(1 << id);
+                    }
+                }
+                mInput.onPointerDown(isLeft(id), id, event.getEventTime());
+                break;
+            }
+            case MotionEvent.ACTION_MOVE: {
+                final int pointers = event.getPointerCount();
+                // Oldest first, the input keeps the earliest time of a change
+                for (int h = 0; h < event.getHistorySize(); h++) {
+                    for (int i = 0; i < pointers; i++) {
+                        final int id = event.getPointerId(i);
+                        mInput.onPointerMoved(isLeft(id), id, contains(v, isLeft(id),
+                                event.getHistoricalX(i, h), event.getHistoricalY(i, h)),
+                                event.getHistoricalEventTime(h));
+                    }
+                }
+                for (int i = 0; i < pointers; i++) {
+                    final int id = event.getPointerId(i);
+                    mInput.onPointerMoved(isLeft(id), id,
+                            contains(v, isLeft(id), event.getX(i), event.getY(i)),
+                            event.getEventTime());
+                }
+                break;
+            }
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_POINTER_UP: {
+                final int id = event.getPointerId(event.getActionIndex());
+                mInput.onPointerUp(isLeft(id), id, event.getEventTime());
+                break;
+            }
+            case MotionEvent.ACTION_CANCEL:
+                for (int i = 0; i < event.getPointerCount(); i++) {
+                    final int id = event.getPointerId(i);
+                    mInput.onPointerUp(isLeft(id), id, event.getEventTime());
+                }
+                break;
+        }
+        if (!mZones) {
+            // The button doesn't see the touches, so it's pressed from here
+            v.setPressed(mInput.isTouched(mIsLeft));
+        }
+        return true;
+    }
+
+    private boolean isLeft(int pointerId) {
+        return mZones ? (mLeftPointers & 1 << pointerId) != 0 : mIsLeft;
+    }
+
+    // Whether the point is in the view, and in the flipper's half for zones
+    private boolean contains(View v, boolean isLeft, float x, float y) {
+        if (x < 0 || y < 0 || x >= v.getWidth() || y >= v.getHeight()) {
+            return false;
+        }
+        return !mZones || (x < v.getWidth() / 2) == isLeft;
+    }
+}
@@ -0,0 +1,132 @@
+package com.orinati.android.servoble;
+
+/**
+ * Ring buffer of the drain force sensor telemetry notified by the board.
+ *
+ * While the stream is on, the board samples the sensor every {@link #SAMPLE_MILLIS} and
+ * reduces each window of samples to one point: the window's minimum, maximum and mean, the
+ * sensor's 12 bit range scaled to 0..{@link #MAX_VALUE}.  Packet layout:
+ * <pre>
+ *   byte 0     version
+ *   byte 1     sequence number, incremented per packet, also for ones the board dropped
+ *   byte 2     samples per point
+ *   byte 3     number of points
+ *   per point, 3 bytes: min, max, mean
+ * </pre>
+ * The last {@link #CAPACITY} points are kept.  A sequence gap counts the lost packets; their
+ * points are not filled in.  {@link #onPacket(byte[], int)} is called from the GATT callback
+ * thread, the readers run on any other thread and see a weakly consistent copy.  Plain Java.
+ */
+public class ForceTelemetry {
+    public static final int VERSION             = 1;
+    public static final int SAMPLE_MILLIS       = 1;
+    public static final int MAX_VALUE           = 0xFF;
+    // Smallest window the board accepts, see setTelemetryWindow()
+    public static final int MIN_WINDOW          = 5;
+    // Ring capacity in points (power of two), 20 s at a 10 sample window
+    public static final int CAPACITY            = 2048;
+
+    private static final int OFFSET_VERSION     = 0;
+    private static final int OFFSET_SEQUENCE    = 1;
+    private static final int OFFSET_WINDOW      = 2;
+    private static final int OFFSET_COUNT       = 3;
+    private static final int HEADER_LENGTH      = 4;
+    private static final int POINT_LENGTH       = 3;
+
+    // Points packed as min | max << 8 | mean << 16
+    private final int[]     mPoints = new int[CAPACITY];
+    // Points written so far, published after the points themselves
+    private volatile long   mWritten;
+    private volatile int    mWindow;
+    private volatile long   mPackets;
+    private volatile long   mLost;
+    private int             mLastSequence = -1;
+
+    /**
+     * Appends the points of a telemetry notification.
+     */
+    public void onPacket(byte[] data, int length) {
+        if (length < HEADER_LENGTH || data[OFFSET_VERSION] < VERSION) {
+            return;
+        }
+        final int sequence = data[OFFSET_SEQUENCE] & 0xFF;
+        if (mLastSequence >= 0) {
+            mLost += (sequence - mLastSequence - 1) & 0xFF;
+        }
+        mLastSequence = sequence;
+        mWindow = data[OFFSET_WINDOW] & 0xFF;
+
+        int count = data[OFFSET_COUNT] & 0xFF;
+        count = Math.min(count, (length - HEADER_LENGTH) / POINT_LENGTH);
+        long written = mWritten;
+        for (int i = 0; i < count; i++) {
+            final int offset = HEADER_LENGTH + i * POINT_LENGTH;
+            mPoints[(int) written & (CAPACITY - 1)] = (data[offset] & 0xFF)
+                    | (data[offset + 1] & 0xFF) << 8
+                    | (data[offset + 2] & 0xFF) << 16;
+            written++;
+        }
+        mWritten = written;
+        mPackets++;
+    }
+
+    /**
+     * Forgets the sequence number, e.g. when the stream is restarted on a new connection.
+     * The points are kept.
+     */
+    public void restart() {
+        mLastSequence = -1;
+    }
+
+    /**
+     * Copies the latest points, oldest first, each packed as {@code min | max << 8 |
+     * mean << 16}.
+     *
+     * @return The number of points copied, at most {@code out.length}.
+     */
+    public int copyPoints(int[] out) {
+        final long written = mWritten;
+        final int count = (int) Math.min(Math.min(written, CAPACITY), out.length);
+        for (int i = 0; i < count; i++) {
+            out[i] = mPoints[(int) (written - count + i) & (CAPACITY - 1)];
+        }
+        return count;
+    }
+
+    public static int getMin(int point) {
+        return point & 0xFF;
+    }
+
+    public static int getMax(int point) {
+        return point >> 8 & 0xFF;
+    }
+
+    public static int getMean(int point) {
+        return point >> 16 & 0xFF;
+    }
+
+    /**
+     * @return Samples per point of the latest packet, 0 before the first one.
+     */
+    public int getWindow() {
+        return mWindow;
+    }
+
+    public long getPointCount() {
+        return mWritten;
+    }
+
+    public long getPacketCount() {
+        return mPackets;
+    }
+
+    public long getLostPacketCount() {
+        return mLost;
+    }
+
+    @Override
+    public String toString() {
+        return "ForceTelemetry{points=" + mWritten + ", packets=" + mPackets
+                + ", lost=" + mLost + ", window=" + mWindow + "}";
+    }
+}
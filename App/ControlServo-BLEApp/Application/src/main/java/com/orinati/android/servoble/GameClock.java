@@ -0,0 +1,146 @@
+package com.orinati.android.servoble;
+
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.widget.TextView;
+
+/**
+ * Game timer driven by the display's vsync.  The text view is updated at most once per
+ * frame, formatted into a reused char buffer, and the clock stops rendering while the
+ * activity is paused.  Other components read the time through {@link #getElapsedMillis()}.
+ */
+public class GameClock implements Choreographer.FrameCallback {
+    // Longest text is "9999:59:999"
+    private static final int    MAX_TEXT_LENGTH = 11;
+
+    private final TextView      mView;
+    private final char[]        mText = new char[MAX_TEXT_LENGTH];
+    private final Choreographer mChoreographer;
+
+    // Guarded by this
+    private boolean             mRunning;
+    private long                mStartTime;
+    private long                mAccumulated;
+
+    // Main thread only
+    private boolean             mResumed;
+    private boolean             mFramePosted;
+    private long                mShownMillis = -1;
+
+    /**
+     * Must be created on the main thread.
+     */
+    public GameClock(TextView view) {
+        mView = view;
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Restarts the clock from zero.
+     */
+    public void start() {
+        synchronized (this) {
+            mAccumulated = 0;
+            mStartTime = SystemClock.uptimeMillis();
+            mRunning = true;
+        }
+        scheduleFrame();
+    }
+
+    /**
+     * Stops the clock, keeping the elapsed time on display.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (mRunning) {
+                mAccumulated += SystemClock.uptimeMillis() - mStartTime;
+                mRunning = false;
+            }
+        }
+        render(getElapsedMillis());
+    }
+
+    /**
+     * @return Game time in milliseconds.  Safe to call from any thread.
+     */
+    public synchronized long getElapsedMillis() {
+        if (mRunning) {
+            return mAccumulated + SystemClock.uptimeMillis() - mStartTime;
+        }
+        return mAccumulated;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    public void onResume() {
+        mResumed = true;
+        scheduleFrame();
+    }
+
+    public void onPause() {
+        mResumed = false;
+        if (mFramePosted) {
+            mChoreographer.removeFrameCallback(this);
+            mFramePosted = false;
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFramePosted = false;
+        render(getElapsedMillis());
+        if (isRunning()) {
+            scheduleFrame();
+        }
+    }
+
+    private void scheduleFrame() {
+        if (mResumed && !mFramePosted) {
+            mChoreographer.postFrameCallback(this);
+            mFramePosted = true;
+        }
+    }
+
+    private void render(long millis) {
+        if (millis == mShownMillis) {
+            return;
+        }
+        mShownMillis = millis;
+
+        final int length = format(millis, mText);
+        mView.setText(mText, 0, length);
+    }
+
+    /**
+     * Formats the time as minutes:seconds:milliseconds, e.g. "1:05:042".
+     *
+     * @return The number of chars written.
+     */
+    static int format(long millis, char[] out) {
+        final int ms = (int) (millis % 1000);
+        final int totalSeconds = (int) (millis / 1000);
+        final int seconds = totalSeconds % 60;
+        int minutes = Math.min(totalSeconds / 60, 9999);
+
+        // Minutes, without leading zeros
+        int digits = 1;
+        for (int m = minutes; m >= 10; m /= 10) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            out[i] = (char) ('0' + minutes % 10);
+            minutes /= 10;
+        }
+        int pos = digits;
+        out[pos++] = ':';
+        out[pos++] = (char) ('0' + seconds / 10);
+        out[pos++] = (char) ('0' + seconds % 10);
+        out[pos++] = ':';
+        out[pos++] = (char) ('0' + ms / 100);
+        out[pos++] = (char) ('0' + ms / 10 % 10);
+        out[pos++] = (char) ('0' + ms % 10);
+        return pos;
+    }
+}
@@ -0,0 +1,230 @@
+package com.orinati.android.servoble;
+
+/**
+ * Local copy of the game state owned by the board.
+ *
+ * The board publishes the state through its game state characteristic, read after every
+ * (re)connection and notified on every change.  Frame layout (little endian):
+ * <pre>
+ *   byte 0     version
+ *   byte 1     sequence number, incremented on every change, wraps at 256
+ *   byte 2     fields changed since the previous sequence number
+ *   byte 3     game phase
+ *   byte 4     lives left
+ *   byte 5     current ball
+ *   byte 6-9   score
+ *   byte 10-11 milliseconds the change waited on the board after the sensor event that
+ *              caused it, 0 for other changes; optional
+ * </pre>
+ * Every frame carries the whole state.  The next frame in sequence only updates the fields
+ * it marks as changed, duplicate and older frames are ignored, and after a gap the frame is
+ * applied as a snapshot.  Not thread safe; use it from the thread delivering board events.
+ */
+public class GameState {
+    public static final int VERSION             = 1;
+    public static final int LENGTH              = 10;
+
+    // Changed field bits
+    public static final int LIVES               = 0x01;
+    public static final int BALL                = 0x02;
+    public static final int SCORE               = 0x04;
+    public static final int PHASE               = 0x08;
+    public static final int ALL                 = LIVES | BALL | SCORE | PHASE;
+
+    // Game phases
+    public static final int PHASE_IDLE          = 0;
+    public static final int PHASE_PLAYING       = 1;
+    public static final int PHASE_GAME_OVER     = 2;
+    public static final int PHASE_PAUSED        = 3;
+
+    // One byte commands written to the game state characteristic
+    public static final byte COMMAND_NEW_GAME   = 0x01;
+    // Pauses a game being played; drains are ignored until it's resumed
+    public static final byte COMMAND_PAUSE      = 0x02;
+    public static final byte COMMAND_RESUME     = 0x03;
+
+    private static final int OFFSET_VERSION     = 0;
+    private static final int OFFSET_SEQUENCE    = 1;
+    private static final int OFFSET_CHANGED     = 2;
+    private static final int OFFSET_PHASE       = 3;
+    private static final int OFFSET_LIVES       = 4;
+    private static final int OFFSET_BALL        = 5;
+    private static final int OFFSET_SCORE       = 6;
+    private static final int OFFSET_EVENT_AGE   = 10;
+
+    private boolean mSynced;
+    private int     mSequence;
+    private int     mPhase = PHASE_IDLE;
+    private int     mLives;
+    private int     mBall;
+    private long    mScore;
+    private int     mEventAge = -1;
+
+    private long    mStaleCount;
+    private long    mGapCount;
+
+    /**
+     * Applies a notified frame.
+     *
+     * @return Bitmask of the fields whose value changed, 0 if the frame was ignored.
+     */
+    public int applyNotification(byte[] frame, int length) {
+        if (!isValid(frame, length)) {
+            return 0;
+        }
+        final int sequence = frame[OFFSET_SEQUENCE] & 0xFF;
+        if (!mSynced) {
+            return applySnapshot(frame, length);
+        }
+
+        // Serial number arithmetic, frames up to 127 behind are old
+        final int distance = (byte) (sequence - mSequence);
+        if (distance <= 0) {
+            mStaleCount++;
+            return 0;
+        }
+        if (distance > 1) {
+            mGapCount++;
+            return apply(frame, length, sequence, ALL);
+        }
+        return apply(frame, length, sequence, frame[OFFSET_CHANGED] & ALL);
+    }
+
+    /**
+     * Applies a frame holding the complete state, e.g. the result of a read after
+     * reconnecting.  The frame is taken as the new sequence baseline.
+     *
+     * @return Bitmask of the fields whose value changed, 0 if the frame was invalid.
+     */
+    public int applySnapshot(byte[] frame, int length) {
+        if (!isValid(frame, length)) {
+            return 0;
+        }
+        mSynced = true;
+        return apply(frame, length, frame[OFFSET_SEQUENCE] & 0xFF, ALL);
+    }
+
+    /**
+     * Forgets the sequence baseline, e.g. after the connection was lost.  The last known
+     * values are kept until the next snapshot.
+     */
+    public void reset() {
+        mSynced = false;
+    }
+
+    public boolean isSynced() {
+        return mSynced;
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public int getPhase() {
+        return mPhase;
+    }
+
+    public int getLives() {
+        return mLives;
+    }
+
+    public int getBall() {
+        return mBall;
+    }
+
+    public long getScore() {
+        return mScore;
+    }
+
+    /**
+     * @return Milliseconds the last applied change waited on the board after its sensor
+     *         event, -1 if the board doesn't report it.
+     */
+    public int getEventAgeMillis() {
+        return mEventAge;
+    }
+
+    /**
+     * @return Number of duplicate or reordered notifications that were ignored.
+     */
+    public long getStaleCount() {
+        return mStaleCount;
+    }
+
+    /**
+     * @return Number of notifications that arrived after missing frames.
+     */
+    public long getGapCount() {
+        return mGapCount;
+    }
+
+    /**
+     * Encodes a frame as the board publishes it, e.g. to simulate the board.
+     *
+     * @param eventAge See {@link #getEventAgeMillis()}, -1 to leave it out.
+     * @return Length of the frame, at most {@link #LENGTH} + 2.
+     */
+    public static int encode(byte[] out, int sequence, int changed, int phase, int lives,
+                             int ball, long score, int eventAge) {
+        out[OFFSET_VERSION] = VERSION;
+        out[OFFSET_SEQUENCE] = (byte) sequence;
+        out[OFFSET_CHANGED] = (byte) changed;
+        out[OFFSET_PHASE] = (byte) phase;
+        out[OFFSET_LIVES] = (byte) lives;
+        out[OFFSET_BALL] = (byte) ball;
+        for (int i = 0; i < 4; i++) {
+            out[OFFSET_SCORE + i] = (byte) (score >> 8 * i);
+        }
+        if (eventAge < 0) {
+            return LENGTH;
+        }
+        out[OFFSET_EVENT_AGE] = (byte) eventAge;
+        out[OFFSET_EVENT_AGE + 1] = (byte) (eventAge >> 8);
+        return LENGTH + 2;
+    }
+
+    public static boolean isValid(byte[] frame, int length) {
+        return frame != null && length >= LENGTH && length <= frame.length
+                && frame[OFFSET_VERSION] >= VERSION;
+    }
+
+    private int apply(byte[] frame, int length, int sequence, int fields) {
+        mSequence = sequence;
+        mEventAge = length >= OFFSET_EVENT_AGE + 2
+                ? (frame[OFFSET_EVENT_AGE] & 0xFF) | (frame[OFFSET_EVENT_AGE + 1] & 0xFF) << 8
+                : -1;
+        int changed = 0;
+        if ((fields & PHASE) != 0) {
+            final int phase = frame[OFFSET_PHASE] & 0xFF;
+            if (phase != mPhase) {
+                mPhase = phase;
+                changed |= PHASE;
+            }
+        }
+        if ((fields & LIVES) != 0) {
+            final int lives = frame[OFFSET_LIVES] & 0xFF;
+            if (lives != mLives) {
+                mLives = lives;
+                changed |= LIVES;
+            }
+        }
+        if ((fields & BALL) != 0) {
+            final int ball = frame[OFFSET_BALL] & 0xFF;
+            if (ball != mBall) {
+                mBall = ball;
+                changed |= BALL;
+            }
+        }
+        if ((fields & SCORE) != 0) {
+            final long score = (frame[OFFSET_SCORE] & 0xFFL)
+                    | (frame[OFFSET_SCORE + 1] & 0xFFL) << 8
+                    | (frame[OFFSET_SCORE + 2] & 0xFFL) << 16
+                    | (frame[OFFSET_SCORE + 3] & 0xFFL) << 24;
+            if (score != mScore) {
+                mScore = score;
+                changed |= SCORE;
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,65 @@
+package com.orinati.android.servoble;
+
+/**
+ * Keeps a {@link GameState} in sync with the board's game state events and measures the
+ * drain latency.  This is what {@code DeviceControlActivity} does with the game state
+ * characteristic's reads and notifications, in plain Java so {@code ReplayEngine} runs it as
+ * well.  Use it on the thread delivering board events.
+ */
+public class GameTracker {
+    private final GameState     mGameState;
+    private LatencyHistogram    mDrainLatency;
+
+    public GameTracker(GameState gameState) {
+        mGameState = gameState;
+    }
+
+    public GameState getGameState() {
+        return mGameState;
+    }
+
+    /**
+     * Sets the histogram drain latencies are recorded to, null for none.
+     */
+    public void setDrainLatency(LatencyHistogram drainLatency) {
+        mDrainLatency = drainLatency;
+    }
+
+    /**
+     * Applies the game state read after a (re)connection.
+     *
+     * @return Bitmask of the fields whose value changed.
+     */
+    public int onRead(BoardEvent event) {
+        return mGameState.applySnapshot(event.getData(), event.getLength());
+    }
+
+    /**
+     * Applies a game state notification.  A drain is a notification taking a life while the
+     * game was playing; new games and resumes change the lives too, but aren't drains.  Its
+     * latency is the time the event waited on the board, as reported in the game state, plus
+     * the time from the notification's receipt until now.
+     *
+     * @param nowNanos Current time in the event timestamps' time base.
+     * @return Bitmask of the fields whose value changed.
+     */
+    public int onNotification(BoardEvent event, long nowNanos) {
+        final int lives = mGameState.getLives();
+        final boolean playing = mGameState.getPhase() == GameState.PHASE_PLAYING;
+        final int changed = mGameState.applyNotification(event.getData(), event.getLength());
+        final LatencyHistogram drainLatency = mDrainLatency;
+        if (playing && (changed & GameState.LIVES) != 0 && mGameState.getLives() < lives
+                && mGameState.getEventAgeMillis() >= 0 && drainLatency != null) {
+            drainLatency.record(mGameState.getEventAgeMillis() * 1000L
+                    + (nowNanos - event.getTimestampNanos()) / 1000);
+        }
+        return changed;
+    }
+
+    /**
+     * Forgets the sequence baseline once the connection is lost.
+     */
+    public void onDisconnected() {
+        mGameState.reset();
+    }
+}
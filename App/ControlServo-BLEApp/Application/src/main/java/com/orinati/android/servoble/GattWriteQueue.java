@@ -0,0 +1,193 @@
+package com.orinati.android.servoble;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free single-producer/single-consumer queue of GATT write commands.
+ *
+ * Android allows only one GATT operation in flight per connection, so commands are parked
+ * here and submitted one at a time.  The producer submits directly when the link is idle,
+ * and {@code BluetoothGattCallback#onCharacteristicWrite} drains whatever arrived meanwhile
+ * through {@link #onWriteComplete(boolean)}.
+ *
+ * Every command belongs to a slot (e.g. the flipper state).  A slot holds at most one
+ * pending command: a newer command for the same slot replaces the pending one, so only the
+ * latest state of the flippers is ever sent.
+ */
+public class GattWriteQueue {
+
+    /**
+     * Performs the actual GATT write for a command taken off the queue.
+     */
+    public interface Sink {
+        /**
+         * @return true if the write was started and a completion callback will follow.
+         */
+        boolean submit(int slot, long command);
+    }
+
+    public static final int SLOT_FLIPPER_STATE  = 0;
+    public static final int SLOT_GAME_COMMAND   = 1;
+    // Window of the force sensor telemetry, see ForceTelemetry
+    public static final int SLOT_TELEMETRY      = 2;
+    public static final int SLOT_COUNT          = 3;
+
+    // Marks a slot with no pending command
+    private static final long EMPTY             = Long.MIN_VALUE;
+    // Ring capacity (power of two); each slot is normally queued at most once
+    private static final int  RING_CAPACITY     = 16;
+
+    private final Sink              mSink;
+    private final AtomicLongArray   mPending    = new AtomicLongArray(SLOT_COUNT);
+    private final int[]             mRing       = new int[RING_CAPACITY];
+    // Consumer index, only advanced by the thread that owns the in-flight flag
+    private final AtomicLong        mHead       = new AtomicLong();
+    // Producer index, only advanced by the producer thread
+    private final AtomicLong        mTail       = new AtomicLong();
+    private final AtomicBoolean     mInFlight   = new AtomicBoolean();
+
+    private final AtomicLong        mEnqueued   = new AtomicLong();
+    private final AtomicLong        mCoalesced  = new AtomicLong();
+    private final AtomicLong        mDropped    = new AtomicLong();
+    private final AtomicLong        mSubmitted  = new AtomicLong();
+    private final AtomicLong        mFailed     = new AtomicLong();
+    private volatile int            mMaxDepth;
+
+    public GattWriteQueue(Sink sink) {
+        mSink = sink;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            mPending.set(i, EMPTY);
+        }
+    }
+
+    /**
+     * Queues a command for the given slot, replacing a pending command of the same slot.
+     * Must only be called from the producer thread.
+     *
+     * @return false if the command had to be dropped because the ring is full.
+     */
+    public boolean offer(int slot, long command) {
+        if (mPending.getAndSet(slot, command) != EMPTY) {
+            // The slot was already queued; the consumer will pick up the newer command.
+            mCoalesced.incrementAndGet();
+            drain();
+            return true;
+        }
+
+        final long tail = mTail.get();
+        if (tail - mHead.get() >= RING_CAPACITY) {
+            mPending.compareAndSet(slot, command, EMPTY);
+            mDropped.incrementAndGet();
+            return false;
+        }
+        mRing[(int) tail & (RING_CAPACITY - 1)] = slot;
+        mTail.lazySet(tail + 1);
+        mEnqueued.incrementAndGet();
+
+        final int depth = (int) (tail + 1 - mHead.get());
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * Reports the completion of the write that is currently in flight and submits the next
+     * pending command, if any.  Called from the GATT callback thread.
+     */
+    public void onWriteComplete(boolean success) {
+        if (!success) {
+            mFailed.incrementAndGet();
+        }
+        mInFlight.set(false);
+        drain();
+    }
+
+    /**
+     * Discards every pending command, e.g. after the connection was lost.
+     */
+    public void clear() {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            if (mPending.getAndSet(i, EMPTY) != EMPTY) {
+                mDropped.incrementAndGet();
+            }
+        }
+        mInFlight.set(false);
+    }
+
+    private void drain() {
+        // Whoever wins the in-flight flag acts as the single consumer.  The flag is re-checked
+        // after every failed submission so a command offered concurrently is never stranded.
+        while (mHead.get() != mTail.get() && mInFlight.compareAndSet(false, true)) {
+            if (submitNext()) {
+                return;
+            }
+            mInFlight.set(false);
+        }
+    }
+
+    private boolean submitNext() {
+        while (true) {
+            final long head = mHead.get();
+            if (head == mTail.get()) {
+                return false;
+            }
+            final int slot = mRing[(int) head & (RING_CAPACITY - 1)];
+            mHead.lazySet(head + 1);
+
+            final long command = mPending.getAndSet(slot, EMPTY);
+            if (command == EMPTY) {
+                // Stale entry left behind by clear()
+                continue;
+            }
+            if (mSink.submit(slot, command)) {
+                mSubmitted.incrementAndGet();
+                return true;
+            }
+            mFailed.incrementAndGet();
+            mDropped.incrementAndGet();
+        }
+    }
+
+    public int getDepth() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public long getEnqueuedCount() {
+        return mEnqueued.get();
+    }
+
+    public long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public long getSubmittedCount() {
+        return mSubmitted.get();
+    }
+
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GattWriteQueue{depth=" + getDepth()
+                + ", maxDepth=" + mMaxDepth
+                + ", enqueued=" + mEnqueued.get()
+                + ", coalesced=" + mCoalesced.get()
+                + ", submitted=" + mSubmitted.get()
+                + ", failed=" + mFailed.get()
+                + ", dropped=" + mDropped.get() + "}";
+    }
+}
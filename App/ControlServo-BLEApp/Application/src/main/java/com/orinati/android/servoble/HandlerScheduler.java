@@ -0,0 +1,35 @@
+package com.orinati.android.servoble;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Runs a {@link Scheduler}'s tasks on a {@link Handler}'s thread.
+ */
+public class HandlerScheduler implements Scheduler {
+    private final Handler mHandler;
+
+    public HandlerScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mHandler.post(task);
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        mHandler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+
+    @Override
+    public long nanoTime() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+}
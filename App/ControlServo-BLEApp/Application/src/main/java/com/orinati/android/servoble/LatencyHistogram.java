@@ -0,0 +1,140 @@
+package com.orinati.android.servoble;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the spirit of HdrHistogram.
+ *
+ * Values are recorded in microseconds.  Every power of two range is split into
+ * {@value #SUB_BUCKETS} linear sub-buckets, so a value is reported with a relative error
+ * below 1/{@value #SUB_BUCKETS} from 1 us up to more than an hour.  Recording is a couple of
+ * atomic increments, never allocates and may happen from any thread; reading is weakly
+ * consistent while values are being recorded.
+ */
+public class LatencyHistogram {
+    private static final int    SUB_BUCKET_BITS     = 5;
+    private static final int    SUB_BUCKETS         = 1 << SUB_BUCKET_BITS;
+    // Covers values below 2^32 us
+    private static final int    RANGES              = 32 - SUB_BUCKET_BITS + 1;
+    private static final int    BUCKET_COUNT        = RANGES * SUB_BUCKETS;
+    private static final long   MAX_VALUE           = (1L << 32) - 1;
+
+    private final String            mName;
+    private final AtomicLongArray   mCounts         = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong        mTotalCount     = new AtomicLong();
+    private final AtomicLong        mTotalMicros    = new AtomicLong();
+    private final AtomicLong        mMaxMicros      = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Records a latency in microseconds.  Negative values are recorded as 0, values beyond
+     * the range as the largest trackable value.
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        } else if (micros > MAX_VALUE) {
+            micros = MAX_VALUE;
+        }
+        mCounts.incrementAndGet(bucketIndex(micros));
+        mTotalCount.incrementAndGet();
+        mTotalMicros.addAndGet(micros);
+
+        long max = mMaxMicros.get();
+        while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+            max = mMaxMicros.get();
+        }
+    }
+
+    /**
+     * Records the time between two {@code System.nanoTime()} or
+     * {@code SystemClock.elapsedRealtimeNanos()} timestamps.
+     */
+    public void recordNanos(long startNanos, long endNanos) {
+        record((endNanos - startNanos) / 1000);
+    }
+
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    public long getMaxMicros() {
+        return mMaxMicros.get();
+    }
+
+    public long getMeanMicros() {
+        final long count = mTotalCount.get();
+        return count == 0 ? 0 : mTotalMicros.get() / count;
+    }
+
+    /**
+     * @param percentile E.g. 99.9
+     * @return The highest value of the bucket holding the percentile, 0 if nothing was
+     *         recorded.
+     */
+    public long getPercentileMicros(double percentile) {
+        final long count = mTotalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(count * percentile / 100.0);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= target) {
+                return Math.min(bucketHighest(i), mMaxMicros.get());
+            }
+        }
+        return mMaxMicros.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotalMicros.set(0);
+        mMaxMicros.set(0);
+    }
+
+    // Values below SUB_BUCKETS map linearly to range 0; range r > 0 holds
+    // [SUB_BUCKETS << (r - 1), SUB_BUCKETS << r) in SUB_BUCKETS steps.
+    static int bucketIndex(long value) {
+        final int range = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        final int sub = (int) (value >>> (range == 0 ? 0 : range - 1)) & (SUB_BUCKETS - 1);
+        if (range == 0) {
+            return (int) value;
+        }
+        return range * SUB_BUCKETS + sub;
+    }
+
+    static long bucketHighest(int index) {
+        final int range = index / SUB_BUCKETS;
+        final int sub = index % SUB_BUCKETS;
+        if (range == 0) {
+            return sub;
+        }
+        final int shift = range - 1;
+        return ((long) (SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return mName + "{n=" + getCount()
+                + ", p50=" + getPercentileMicros(50)
+                + "us, p99=" + getPercentileMicros(99)
+                + "us, p999=" + getPercentileMicros(99.9)
+                + "us, max=" + getMaxMicros() + "us}";
+    }
+}
@@ -0,0 +1,125 @@
+package com.orinati.android.servoble;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency of each stage of the flipper pipeline, from the touch to the board.
+ *
+ * Every stage keeps a {@link LatencyHistogram} plus a ring of its most recent raw samples.
+ * Recording is lock-free and allocation-free, so it's cheap enough to stay on in release
+ * builds; {@link #dump(PrintWriter)} exports everything as text.
+ */
+public class LatencyTracker {
+    // MotionEvent time to the command entering the write queue
+    public static final int STAGE_TOUCH_TO_ENQUEUE      = 0;
+    // Command entering the write queue to the GATT write being submitted
+    public static final int STAGE_ENQUEUE_TO_SUBMIT     = 1;
+    // GATT write submitted to onCharacteristicWrite
+    public static final int STAGE_SUBMIT_TO_CALLBACK    = 2;
+    // MotionEvent time to onCharacteristicWrite
+    public static final int STAGE_TOUCH_TO_CALLBACK     = 3;
+    // GATT write submitted to the board's echo, if the board echoes commands
+    public static final int STAGE_FIRMWARE_ECHO         = 4;
+    // Board receiving the command to updating the servos, reported by the echo
+    public static final int STAGE_BOARD_RX_TO_PWM       = 5;
+    public static final int STAGE_COUNT                 = 6;
+
+    private static final String[] STAGE_NAMES = {
+            "touch-enqueue", "enqueue-submit", "submit-callback", "touch-callback", "echo",
+            "board-rx-pwm"
+    };
+
+    // Raw samples kept per stage (power of two)
+    private static final int SAMPLE_CAPACITY = 256;
+
+    private final LatencyHistogram[]    mHistograms = new LatencyHistogram[STAGE_COUNT];
+    private final AtomicLongArray[]     mSamples    = new AtomicLongArray[STAGE_COUNT];
+    private final AtomicLong[]          mSampleHead = new AtomicLong[STAGE_COUNT];
+
+    public LatencyTracker() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mHistograms[i] = new LatencyHistogram(STAGE_NAMES[i]);
+            mSamples[i] = new AtomicLongArray(SAMPLE_CAPACITY);
+            mSampleHead[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Records a stage latency in microseconds.  Safe to call from any thread.
+     */
+    public void record(int stage, long micros) {
+        mHistograms[stage].record(micros);
+        final long index = mSampleHead[stage].getAndIncrement();
+        mSamples[stage].lazySet((int) index & (SAMPLE_CAPACITY - 1), micros);
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return mHistograms[stage];
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void reset() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mHistograms[i].reset();
+            mSampleHead[i].set(0);
+        }
+    }
+
+    /**
+     * Appends one "stage p50/p99/p999 ms" line per stage that has samples, for the debug
+     * overlay.
+     */
+    public void appendSummary(StringBuilder out) {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            final LatencyHistogram histogram = mHistograms[i];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            if (out.length() > 0) {
+                out.append('\n');
+            }
+            out.append(STAGE_NAMES[i]).append(' ');
+            appendMillis(out, histogram.getPercentileMicros(50)).append('/');
+            appendMillis(out, histogram.getPercentileMicros(99)).append('/');
+            appendMillis(out, histogram.getPercentileMicros(99.9)).append(" ms");
+        }
+    }
+
+    /**
+     * Writes the percentiles and the recent raw samples of every stage.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("stage,count,mean_us,p50_us,p99_us,p999_us,max_us");
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            final LatencyHistogram histogram = mHistograms[i];
+            writer.println(STAGE_NAMES[i] + ',' + histogram.getCount()
+                    + ',' + histogram.getMeanMicros()
+                    + ',' + histogram.getPercentileMicros(50)
+                    + ',' + histogram.getPercentileMicros(99)
+                    + ',' + histogram.getPercentileMicros(99.9)
+                    + ',' + histogram.getMaxMicros());
+        }
+        writer.println();
+        writer.println("stage,recent_samples_us (oldest first)");
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            final long head = mSampleHead[i].get();
+            final long start = Math.max(0, head - SAMPLE_CAPACITY);
+            writer.print(STAGE_NAMES[i]);
+            for (long j = start; j < head; j++) {
+                writer.print(',');
+                writer.print(mSamples[i].get((int) j & (SAMPLE_CAPACITY - 1)));
+            }
+            writer.println();
+        }
+    }
+
+    private static StringBuilder appendMillis(StringBuilder out, long micros) {
+        out.append(micros / 1000).append('.').append(micros / 100 % 10);
+        return out;
+    }
+}
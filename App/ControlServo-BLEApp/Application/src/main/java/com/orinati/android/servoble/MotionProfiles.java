@@ -0,0 +1,146 @@
+package com.orinati.android.servoble;
+
+/**
+ * The flipper trajectories the board runs on every flipper edge, so a flip is shaped on the
+ * board rather than by a stream of commands.  Uploaded once per connection to the board's
+ * motion characteristic.  Table layout (little endian):
+ * <pre>
+ *   byte 0     version
+ *   byte 1     number of profiles, from the left flipper
+ *   per profile, 8 bytes:
+ *   byte 0     up angle, degrees of servo travel from rest, up to {@link #MAX_ANGLE}
+ *   byte 1     milliseconds to ramp up to the up angle, 0 jumps
+ *   byte 2     hold angle, eased to after the hold delay; pushes with less force
+ *   byte 3     hold delay, milliseconds at the up angle
+ *   byte 4     milliseconds to ramp back to rest, 0 jumps
+ *   byte 5     reserved
+ *   byte 6-7   auto-release timeout, milliseconds after the up edge, 0 never
+ * </pre>
+ * Ramps are for the whole travel from rest to the up angle.  A flipper without a profile
+ * jumps between rest and {@link #MAX_ANGLE}, as boards without the characteristic do.
+ */
+public class MotionProfiles {
+    public static final int VERSION             = 1;
+    public static final int MAX_ANGLE           = 90;
+    public static final int MAX_MILLIS          = 0xFF;
+    public static final int MAX_TIMEOUT_MILLIS  = 0xFFFF;
+
+    public static final int FLIPPER_LEFT        = 0;
+    public static final int FLIPPER_RIGHT       = 1;
+    public static final int FLIPPER_COUNT       = 2;
+
+    private static final int HEADER_LENGTH      = 2;
+    private static final int PROFILE_LENGTH     = 8;
+
+    private static final int OFFSET_VERSION     = 0;
+    private static final int OFFSET_COUNT       = 1;
+    private static final int OFFSET_ANGLE       = 0;
+    private static final int OFFSET_RISE        = 1;
+    private static final int OFFSET_HOLD_ANGLE  = 2;
+    private static final int OFFSET_HOLD_DELAY  = 3;
+    private static final int OFFSET_FALL        = 4;
+    private static final int OFFSET_TIMEOUT     = 6;
+
+    // Encoded profiles, null for the fixed positions
+    private final byte[][] mProfiles = new byte[FLIPPER_COUNT][];
+
+    /**
+     * A fast flip easing to a lighter hold, so a held flipper doesn't stall the servo, and
+     * dropped after 10 s in case the up edge's counterpart got lost.
+     */
+    public static MotionProfiles createDefault() {
+        final MotionProfiles profiles = new MotionProfiles();
+        for (int flipper = 0; flipper < FLIPPER_COUNT; flipper++) {
+            profiles.set(flipper, MAX_ANGLE, 0, 75, 150, 20, 10000);
+        }
+        return profiles;
+    }
+
+    /**
+     * Sets a flipper's profile.
+     *
+     * @param flipper {@link #FLIPPER_LEFT} or {@link #FLIPPER_RIGHT}.
+     * @param upAngle Degrees from rest, up to {@link #MAX_ANGLE}.
+     * @param riseMillis Ramp up, up to {@link #MAX_MILLIS}; 0 jumps.
+     * @param holdAngle Degrees held after the hold delay, up to {@code upAngle}.
+     * @param holdDelayMillis Time at the up angle, up to {@link #MAX_MILLIS}.
+     * @param fallMillis Ramp down, up to {@link #MAX_MILLIS}; 0 jumps.
+     * @param timeoutMillis Auto-release after the up edge, up to {@link #MAX_TIMEOUT_MILLIS};
+     *                      0 never.
+     */
+    public void set(int flipper, int upAngle, int riseMillis, int holdAngle,
+                    int holdDelayMillis, int fallMillis, int timeoutMillis) {
+        if (upAngle < 0 || upAngle > MAX_ANGLE || holdAngle < 0 || holdAngle > upAngle) {
+            throw new IllegalArgumentException("Bad angles " + upAngle + ", " + holdAngle);
+        }
+        if (riseMillis < 0 || riseMillis > MAX_MILLIS || holdDelayMillis < 0
+                || holdDelayMillis > MAX_MILLIS || fallMillis < 0 || fallMillis > MAX_MILLIS
+                || timeoutMillis < 0 || timeoutMillis > MAX_TIMEOUT_MILLIS) {
+            throw new IllegalArgumentException("Bad times");
+        }
+        final byte[] profile = new byte[PROFILE_LENGTH];
+        profile[OFFSET_ANGLE] = (byte) upAngle;
+        profile[OFFSET_RISE] = (byte) riseMillis;
+        profile[OFFSET_HOLD_ANGLE] = (byte) holdAngle;
+        profile[OFFSET_HOLD_DELAY] = (byte) holdDelayMillis;
+        profile[OFFSET_FALL] = (byte) fallMillis;
+        profile[OFFSET_TIMEOUT] = (byte) timeoutMillis;
+        profile[OFFSET_TIMEOUT + 1] = (byte) (timeoutMillis >> 8);
+        mProfiles[flipper] = profile;
+    }
+
+    /**
+     * Back to the fixed positions for the flipper.
+     */
+    public void clear(int flipper) {
+        mProfiles[flipper] = null;
+    }
+
+    public boolean isSet(int flipper) {
+        return mProfiles[flipper] != null;
+    }
+
+    /**
+     * @return The table for the motion characteristic.  Flippers before the last one with a
+     *         profile get the fixed positions' profile; none at all clears the board's table.
+     */
+    public byte[] encode() {
+        int count = FLIPPER_COUNT;
+        while (count > 0 && mProfiles[count - 1] == null) {
+            count--;
+        }
+        final byte[] table = new byte[HEADER_LENGTH + count * PROFILE_LENGTH];
+        table[OFFSET_VERSION] = VERSION;
+        table[OFFSET_COUNT] = (byte) count;
+        for (int flipper = 0; flipper < count; flipper++) {
+            final int offset = HEADER_LENGTH + flipper * PROFILE_LENGTH;
+            if (mProfiles[flipper] != null) {
+                System.arraycopy(mProfiles[flipper], 0, table, offset, PROFILE_LENGTH);
+            } else {
+                table[offset + OFFSET_ANGLE] = MAX_ANGLE;
+                table[offset + OFFSET_HOLD_ANGLE] = MAX_ANGLE;
+            }
+        }
+        return table;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("MotionProfiles{");
+        for (int flipper = 0; flipper < FLIPPER_COUNT; flipper++) {
+            final byte[] p = mProfiles[flipper];
+            sb.append(flipper == FLIPPER_LEFT ? "left=" : ", right=");
+            if (p == null) {
+                sb.append("fixed");
+                continue;
+            }
+            sb.append(p[OFFSET_ANGLE]).append("deg/").append(p[OFFSET_RISE] & 0xFF)
+                    .append("ms, hold ").append(p[OFFSET_HOLD_ANGLE]).append("deg after ")
+                    .append(p[OFFSET_HOLD_DELAY] & 0xFF).append("ms, fall ")
+                    .append(p[OFFSET_FALL] & 0xFF).append("ms, release ")
+                    .append((p[OFFSET_TIMEOUT] & 0xFF) | (p[OFFSET_TIMEOUT + 1] & 0xFF) << 8)
+                    .append("ms");
+        }
+        return sb.append('}').toString();
+    }
+}
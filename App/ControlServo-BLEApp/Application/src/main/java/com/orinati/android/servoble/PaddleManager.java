@@ -4,48 +4,184 @@ package com.orinati.android.servoble;
  * Created by Ori Bar El on 09/03/2018.
  */
 
-import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 
+/**
+ * Single owner of the flipper input.  UI listeners only post primitive events here; the
+ * events are turned into flipper states and queued for the board on a dedicated high
+ * priority thread, so a janky UI frame can never delay a flipper command.
+ */
 public class PaddleManager {
-    private BluetoothGattCharacteristic mCharacteristic;
-    private BluetoothGatt               mGatt;
-    boolean paused  = false;
+    private final static String TAG = PaddleManager.class.getSimpleName();
+
+    private static final int MSG_FLIPPER    = 1;
+    private static final int MSG_REGISTER   = 2;
+    private static final int MSG_UNREGISTER = 3;
+    private static final int MSG_GAME_COMMAND = 4;
+    private static final int MSG_TELEMETRY  = 5;
+
+    // Flags packed into Message.arg1 of MSG_FLIPPER
+    private static final int FLAG_LEFT      = 0x1;
+    private static final int FLAG_UP        = 0x2;
+
+    private final HandlerThread         mThread;
+    private final Handler               mHandler;
+
+    private volatile BluetoothLeService             mService;
+    private volatile BluetoothGattCharacteristic    mCharacteristic;
+    private volatile SessionRecorder                mRecorder;
+    // Telemetry window restored on every registration, 0 off
+    private volatile int                            mTelemetryWindow;
+
+    // Confined to the dispatch thread
+    private int                         mFlipperState;
+    boolean paused  = true;
+
+    public PaddleManager() {
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_FLIPPER:
+                        writePaddleState((msg.arg1 & FLAG_LEFT) != 0, (msg.arg1 & FLAG_UP) != 0,
+                                unpackEventTime(msg.arg2));
+                        return true;
+                    case MSG_REGISTER:
+                        mFlipperState = 0;
+                        paused = false;
+                        // The board stopped the stream when the link was lost
+                        if (mTelemetryWindow != 0) {
+                            mService.setTelemetryWindow(mTelemetryWindow);
+                        }
+                        return true;
+                    case MSG_UNREGISTER:
+                        releaseAll();
+                        paused = true;
+                        return true;
+                    case MSG_GAME_COMMAND:
+                        if (!paused) {
+                            mService.writeGameCommand((byte) msg.arg1);
+                            final SessionRecorder recorder = mRecorder;
+                            if (recorder != null) {
+                                recorder.recordGameCommand(SessionRecorder.nowMicros(),
+                                        (byte) msg.arg1);
+                            }
+                        }
+                        return true;
+                    case MSG_TELEMETRY:
+                        if (!paused) {
+                            mService.setTelemetryWindow(msg.arg1);
+                        }
+                        return true;
+                }
+                return false;
+            }
+        });
+    }
 
-    public void registerListener(BluetoothGatt gatt,
+    /**
+     * Starts forwarding flipper events to the board.
+     */
+    public void registerListener(BluetoothLeService service,
                                  BluetoothGattCharacteristic characteristic) {
-        if (!paused) {
-            return;
-        }
-        mGatt = gatt;
+        mService = service;
         mCharacteristic = characteristic;
-        paused = false;
+        mHandler.sendEmptyMessage(MSG_REGISTER);
+    }
+
+    /**
+     * Records the flipper states and game commands sent to the board, null to stop.
+     */
+    public void setRecorder(SessionRecorder recorder) {
+        mRecorder = recorder;
     }
 
+    /**
+     * Releases all flippers and stops forwarding flipper events.
+     */
     public void unregisterListener() {
+        mHandler.sendEmptyMessage(MSG_UNREGISTER);
+    }
+
+    /**
+     * Posts a flipper edge to the dispatch thread.  Safe to call from any thread; doesn't
+     * allocate since messages come from the {@code Message} pool.
+     *
+     * @param eventTime Time of the input event, in {@code SystemClock.uptimeMillis()} time base.
+     */
+    public void onFlipper(boolean isLeft, boolean isUp, long eventTime) {
+        final int flags = (isLeft ? FLAG_LEFT : 0) | (isUp ? FLAG_UP : 0);
+        mHandler.obtainMessage(MSG_FLIPPER, flags, (int) eventTime).sendToTarget();
+    }
+
+    /**
+     * Sends a game command, e.g. {@link GameState#COMMAND_NEW_GAME}, to the board.  The command
+     * shares the write queue with the flipper states, so it's sent from the dispatch thread
+     * too.  Commands are dropped while no board is registered.
+     */
+    public void sendGameCommand(byte command) {
+        mHandler.obtainMessage(MSG_GAME_COMMAND, command, 0).sendToTarget();
+    }
+
+    /**
+     * Starts the board's force sensor telemetry with the given samples per point, 0 stops it.
+     * Sent from the dispatch thread like the game commands, and again on every registration.
+     */
+    public void setTelemetryWindow(int window) {
+        mTelemetryWindow = window;
+        mHandler.obtainMessage(MSG_TELEMETRY, window, 0).sendToTarget();
+    }
+
+    /**
+     * Stops the dispatch thread.  The manager can't be used afterwards.
+     */
+    public void quit() {
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quitSafely();
+    }
+
+    private void writePaddleState(boolean isLeft, boolean isUp, long eventTime) {
         if (paused) {
             return;
         }
-        paused = true;
-    }
-
-    private void writePaddleState(Boolean isLeft,Boolean isUp) {
-        mCharacteristic.setValue(getInstructionCode(isLeft,isUp));
-        mGatt.writeCharacteristic(mCharacteristic);
-    }
-
-    public static byte[] getInstructionCode(Boolean isLeft,Boolean isUp)
-    {
-        if (isLeft && isUp)
-            return new byte[]{0x1B};
-        if (isLeft && !isUp)
-            return new byte[]{0x1A};
-        if (!isLeft && isUp)
-            return new byte[]{0x2B};
-        if (!isLeft && !isUp)
-            return new byte[]{0x1A};
-        // Should not get here
-        return new byte[]{0x00};
+        mFlipperState = CommandEncoder.setFlipper(mFlipperState, isLeft, isUp);
+        mService.writeFlipperState(mCharacteristic, mFlipperState, eventTime);
+        record(eventTime);
+    }
+
+    private void releaseAll() {
+        if (!paused && mFlipperState != 0) {
+            mFlipperState = 0;
+            final long now = SystemClock.uptimeMillis();
+            mService.writeFlipperState(mCharacteristic, mFlipperState, now);
+            record(now);
+        }
+    }
+
+    // After the write, so recording never delays the command
+    private void record(long eventTime) {
+        final SessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.recordFlipper(eventTime * 1000, mFlipperState);
+        }
+    }
+
+    // Message.arg2 holds the low 32 bits of the event time; the event is never older than
+    // the current uptime, which restores the high bits.
+    private static long unpackEventTime(int low) {
+        final long now = SystemClock.uptimeMillis();
+        long time = (now & ~0xFFFFFFFFL) | (low & 0xFFFFFFFFL);
+        if (time > now) {
+            time -= 1L << 32;
+        }
+        return time;
     }
 
 }
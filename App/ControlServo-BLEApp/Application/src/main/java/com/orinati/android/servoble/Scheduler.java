@@ -0,0 +1,22 @@
+package com.orinati.android.servoble;
+
+/**
+ * Runs tasks on one thread, now or after a delay, for the plain Java classes that keep time,
+ * like {@link ConnectionStateMachine}.  {@link HandlerScheduler} runs them on a
+ * {@code Handler}'s thread, {@code ManualScheduler} on a virtual clock.
+ */
+public interface Scheduler {
+    /**
+     * Runs the task on the scheduler's thread, after the tasks already queued.
+     */
+    void execute(Runnable task);
+
+    void schedule(Runnable task, long delayMillis);
+
+    void cancel(Runnable task);
+
+    /**
+     * @return Monotonic time in nanoseconds.
+     */
+    long nanoTime();
+}
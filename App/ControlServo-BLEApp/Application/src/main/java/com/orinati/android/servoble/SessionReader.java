@@ -0,0 +1,229 @@
+package com.orinati.android.servoble;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams the events of a session log written by {@link SessionRecorder} back, e.g. for
+ * analysis on a desktop JVM.  A cursor: {@link #next()} moves to the next event, whose fields
+ * are read through the getters, so reading doesn't allocate per event.
+ *
+ * A session that wasn't sealed, e.g. after a crash, reads up to its last complete event.
+ */
+public class SessionReader implements Closeable {
+    private final InputStream   mIn;
+    private final long          mStartWallClockMillis;
+
+    private boolean mEnded;
+    private long    mCount;
+
+    // Current event
+    private int     mType;
+    private long    mTimeMicros;
+    private int     mValue;
+    private int     mLives;
+    private int     mBall;
+    private long    mScore;
+    private int     mEventAge = -1;
+
+    /**
+     * Reads the header.
+     *
+     * @throws IOException if the stream isn't a session log.
+     */
+    public SessionReader(InputStream in) throws IOException {
+        mIn = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+        for (int i = 0; i < SessionRecorder.MAGIC.length; i++) {
+            if (mIn.read() != SessionRecorder.MAGIC[i]) {
+                throw new IOException("Not a session log");
+            }
+        }
+        final int version = mIn.read();
+        if (version != SessionRecorder.VERSION) {
+            throw new IOException("Unsupported session log version " + version);
+        }
+        mStartWallClockMillis = readVarint();
+    }
+
+    public static SessionReader open(File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            return new SessionReader(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Start of the session as {@code System.currentTimeMillis()}.
+     */
+    public long getStartWallClockMillis() {
+        return mStartWallClockMillis;
+    }
+
+    /**
+     * Moves to the next event.
+     *
+     * @return false at the end of the session, or of the file if it wasn't sealed.
+     * @throws IOException if the log is corrupt.
+     */
+    public boolean next() throws IOException {
+        if (mEnded) {
+            return false;
+        }
+        try {
+            final int type = mIn.read();
+            if (type < 0) {
+                mEnded = true;
+                return false;
+            }
+            final long zigzag = readVarint();
+            mTimeMicros += (zigzag >>> 1) ^ -(zigzag & 1);
+            switch (type) {
+                case SessionRecorder.TYPE_FLIPPER:
+                case SessionRecorder.TYPE_CONNECTION:
+                case SessionRecorder.TYPE_GAME_COMMAND:
+                    mValue = readByte();
+                    break;
+                case SessionRecorder.TYPE_GAME_STATE:
+                    mValue = readByte();
+                    mLives = readByte();
+                    mBall = readByte();
+                    mScore = readVarint();
+                    mEventAge = (int) readVarint() - 1;
+                    break;
+                case SessionRecorder.TYPE_END:
+                    mValue = readByte();
+                    if (readVarint() != mCount) {
+                        throw new IOException("Session log ends after " + mCount
+                                + " events, expected more");
+                    }
+                    mEnded = true;
+                    break;
+                default:
+                    throw new IOException("Unknown event type " + type + " after " + mCount
+                            + " events");
+            }
+            mType = type;
+            mCount++;
+            return true;
+        } catch (EOFException e) {
+            // Truncated last event of a session that wasn't sealed
+            mEnded = true;
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the session's END event was read, false if it wasn't reached yet or
+     *         the session wasn't sealed.
+     */
+    public boolean isSealed() {
+        return mEnded && mType == SessionRecorder.TYPE_END;
+    }
+
+    /**
+     * @return Number of events read so far.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return E.g. {@link SessionRecorder#TYPE_FLIPPER}.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return Time of the event in microseconds since the session started.
+     */
+    public long getTimeMicros() {
+        return mTimeMicros;
+    }
+
+    /**
+     * @return Flipper state of a FLIPPER event.
+     */
+    public int getFlipperState() {
+        return mValue;
+    }
+
+    /**
+     * @return {@link BoardEvent} type of a CONNECTION event.
+     */
+    public int getConnectionEvent() {
+        return mValue;
+    }
+
+    /**
+     * @return Command of a GAME_COMMAND event.
+     */
+    public byte getGameCommand() {
+        return (byte) mValue;
+    }
+
+    /**
+     * @return Reason of the END event, e.g. {@link SessionRecorder#END_GAME_OVER}.
+     */
+    public int getEndReason() {
+        return mValue;
+    }
+
+    // Fields of a GAME_STATE event
+
+    public int getPhase() {
+        return mValue;
+    }
+
+    public int getLives() {
+        return mLives;
+    }
+
+    public int getBall() {
+        return mBall;
+    }
+
+    public long getScore() {
+        return mScore;
+    }
+
+    /**
+     * @return See {@link GameState#getEventAgeMillis()}.
+     */
+    public int getEventAgeMillis() {
+        return mEventAge;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private int readByte() throws IOException {
+        final int value = mIn.read();
+        if (value < 0) {
+            throw new EOFException();
+        }
+        return value;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
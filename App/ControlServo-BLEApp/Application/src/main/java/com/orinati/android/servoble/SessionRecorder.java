@@ -0,0 +1,353 @@
+package com.orinati.android.servoble;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends the events of a game session to a compact binary log, one file per session, read
+ * back by {@link SessionReader}.
+ *
+ * Recording only encodes the event into an in-memory buffer, a few bytes under a lock nobody
+ * holds for long, so it's cheap enough for the flipper dispatch thread.  Full buffers are
+ * written sequentially by the recorder's own low priority thread; if it falls behind, events
+ * are dropped and counted rather than blocking the caller.
+ *
+ * File layout, varints are unsigned LEB128:
+ * <pre>
+ *   header     "PBSL", version byte, varint wall clock start time in ms
+ *   record     type byte, zigzag varint microseconds since the previous record (since the
+ *              start for the first one), payload
+ *     FLIPPER      state byte, see {@code FlipperStateFrame}
+ *     GAME_STATE   phase byte, lives byte, ball byte, varint score,
+ *                  varint event age in ms + 1 (0 if unknown)
+ *     CONNECTION   {@link BoardEvent} type byte
+ *     GAME_COMMAND command byte, e.g. {@link GameState#COMMAND_NEW_GAME}
+ *     END          reason byte, varint number of records before it
+ * </pre>
+ * A session is written to "session-&lt;start&gt;.part" and renamed to ".pbl" once sealed by
+ * its END record.  Timestamps are in microseconds in the {@code System.nanoTime()} time base,
+ * the one of {@code SystemClock.uptimeMillis()}.
+ */
+public class SessionRecorder {
+    static final byte[] MAGIC               = {'P', 'B', 'S', 'L'};
+    static final int    VERSION             = 1;
+
+    // Record types
+    public static final int TYPE_FLIPPER        = 1;
+    public static final int TYPE_GAME_STATE     = 2;
+    public static final int TYPE_CONNECTION     = 3;
+    public static final int TYPE_GAME_COMMAND   = 4;
+    public static final int TYPE_END            = 5;
+
+    // Reasons for sealing a session
+    public static final int END_GAME_OVER       = 0;
+    // A new game was started before this one was over
+    public static final int END_NEW_GAME        = 1;
+    public static final int END_CLOSED          = 2;
+
+    static final String OPEN_SUFFIX             = ".part";
+    public static final String SEALED_SUFFIX    = ".pbl";
+
+    private static final int BUFFER_SIZE        = 4096;
+    private static final int BUFFER_COUNT       = 4;
+    // Longest record: type, time delta, 3 bytes, score and event age
+    private static final int MAX_RECORD_LENGTH  = 1 + 10 + 3 + 5 + 5;
+
+    private final File                          mDirectory;
+    private final ExecutorService               mWriter;
+    private final ArrayBlockingQueue<byte[]>    mFreeBuffers =
+            new ArrayBlockingQueue<byte[]>(BUFFER_COUNT);
+
+    // Guarded by mLock
+    private final Object    mLock = new Object();
+    private Session         mSession;
+    private byte[]          mBuffer;
+    private int             mPosition;
+    private long            mLastTimeMicros;
+    private long            mRecordCount;
+
+    private final AtomicLong mRecorded      = new AtomicLong();
+    private final AtomicLong mDropped       = new AtomicLong();
+    private final AtomicLong mWriteErrors   = new AtomicLong();
+
+    // The file of a session, only touched by the writer thread
+    private static class Session {
+        final long          startMillis;
+        final File          partFile;
+        final File          sealedFile;
+        FileOutputStream    out;
+
+        Session(File directory, long startMillis) {
+            this.startMillis = startMillis;
+            partFile = new File(directory, "session-" + startMillis + OPEN_SUFFIX);
+            sealedFile = new File(directory, "session-" + startMillis + SEALED_SUFFIX);
+        }
+    }
+
+    /**
+     * @param directory Directory of the session files, created if needed.
+     */
+    public SessionRecorder(File directory) {
+        mDirectory = directory;
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            mFreeBuffers.add(new byte[BUFFER_SIZE]);
+        }
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "SessionRecorder");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return Current time in the recorder's time base.
+     */
+    public static long nowMicros() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * Starts a new session, sealing the current one as {@link #END_NEW_GAME}.
+     *
+     * @param wallClockMillis Start time as {@code System.currentTimeMillis()}, for the file.
+     */
+    public void start(long wallClockMillis, long timeMicros) {
+        synchronized (mLock) {
+            if (mSession != null) {
+                sealLocked(END_NEW_GAME, timeMicros);
+            }
+            final Session session = new Session(mDirectory, wallClockMillis);
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    open(session);
+                }
+            });
+            mSession = session;
+            mLastTimeMicros = timeMicros;
+            mRecordCount = 0;
+        }
+    }
+
+    /**
+     * Seals the current session, if any: writes its END record and closes the file.
+     */
+    public void seal(int reason, long timeMicros) {
+        synchronized (mLock) {
+            if (mSession != null) {
+                sealLocked(reason, timeMicros);
+            }
+        }
+    }
+
+    public boolean isRecording() {
+        synchronized (mLock) {
+            return mSession != null;
+        }
+    }
+
+    /**
+     * Records the flipper state after an edge.
+     */
+    public void recordFlipper(long timeMicros, int state) {
+        synchronized (mLock) {
+            if (beginRecord(TYPE_FLIPPER, timeMicros)) {
+                mBuffer[mPosition++] = (byte) state;
+            }
+        }
+    }
+
+    /**
+     * Records the game state, e.g. after a drain.
+     */
+    public void recordGameState(long timeMicros, GameState state) {
+        synchronized (mLock) {
+            if (beginRecord(TYPE_GAME_STATE, timeMicros)) {
+                final byte[] buffer = mBuffer;
+                buffer[mPosition++] = (byte) state.getPhase();
+                buffer[mPosition++] = (byte) state.getLives();
+                buffer[mPosition++] = (byte) state.getBall();
+                mPosition = writeVarint(buffer, mPosition, state.getScore());
+                mPosition = writeVarint(buffer, mPosition, state.getEventAgeMillis() + 1);
+            }
+        }
+    }
+
+    /**
+     * @param type {@link BoardEvent#TYPE_CONNECTED} or {@link BoardEvent#TYPE_DISCONNECTED}.
+     */
+    public void recordConnection(long timeMicros, int type) {
+        synchronized (mLock) {
+            if (beginRecord(TYPE_CONNECTION, timeMicros)) {
+                mBuffer[mPosition++] = (byte) type;
+            }
+        }
+    }
+
+    public void recordGameCommand(long timeMicros, byte command) {
+        synchronized (mLock) {
+            if (beginRecord(TYPE_GAME_COMMAND, timeMicros)) {
+                mBuffer[mPosition++] = command;
+            }
+        }
+    }
+
+    /**
+     * Seals the current session and stops the writer thread once everything is written.  The
+     * recorder can't be used afterwards.
+     */
+    public void quit(long timeMicros) {
+        seal(END_CLOSED, timeMicros);
+        mWriter.shutdown();
+    }
+
+    public long getRecordedCount() {
+        return mRecorded.get();
+    }
+
+    /**
+     * @return Number of events dropped because the writer thread fell behind.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public long getWriteErrorCount() {
+        return mWriteErrors.get();
+    }
+
+    // Writes the type and time delta, making room first.  False if the event is dropped.
+    private boolean beginRecord(int type, long timeMicros) {
+        if (mSession == null) {
+            return false;
+        }
+        if (mBuffer != null && mPosition + MAX_RECORD_LENGTH > BUFFER_SIZE) {
+            flushLocked();
+        }
+        if (mBuffer == null) {
+            mBuffer = mFreeBuffers.poll();
+            mPosition = 0;
+            if (mBuffer == null) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+        }
+        mBuffer[mPosition++] = (byte) type;
+        final long delta = timeMicros - mLastTimeMicros;
+        // Zigzag, events reported by different threads may come slightly out of order
+        mPosition = writeVarint(mBuffer, mPosition, (delta << 1) ^ (delta >> 63));
+        mLastTimeMicros = timeMicros;
+        mRecordCount++;
+        mRecorded.incrementAndGet();
+        return true;
+    }
+
+    private void sealLocked(int reason, long timeMicros) {
+        final long count = mRecordCount;
+        if (beginRecord(TYPE_END, timeMicros)) {
+            mBuffer[mPosition++] = (byte) reason;
+            mPosition = writeVarint(mBuffer, mPosition, count);
+        }
+        flushLocked();
+        final Session session = mSession;
+        mSession = null;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                close(session, true);
+            }
+        });
+    }
+
+    // Hands the buffer over to the writer thread
+    private void flushLocked() {
+        final byte[] buffer = mBuffer;
+        final int length = mPosition;
+        mBuffer = null;
+        mPosition = 0;
+        if (buffer == null) {
+            return;
+        }
+        final Session session = mSession;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(session, buffer, length);
+                mFreeBuffers.offer(buffer);
+            }
+        });
+    }
+
+    // Writer thread only below
+
+    private void open(Session session) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            mWriteErrors.incrementAndGet();
+            return;
+        }
+        final byte[] header = new byte[MAGIC.length + 1 + 10];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = VERSION;
+        final int length = writeVarint(header, MAGIC.length + 1, session.startMillis);
+        try {
+            session.out = new FileOutputStream(session.partFile);
+            session.out.write(header, 0, length);
+        } catch (IOException e) {
+            mWriteErrors.incrementAndGet();
+            close(session, false);
+        }
+    }
+
+    private void write(Session session, byte[] buffer, int length) {
+        if (session.out == null || length == 0) {
+            return;
+        }
+        try {
+            session.out.write(buffer, 0, length);
+        } catch (IOException e) {
+            mWriteErrors.incrementAndGet();
+            close(session, false);
+        }
+    }
+
+    private void close(Session session, boolean sealed) {
+        if (session.out == null) {
+            return;
+        }
+        try {
+            session.out.close();
+        } catch (IOException e) {
+            mWriteErrors.incrementAndGet();
+            sealed = false;
+        }
+        session.out = null;
+        if (sealed && !session.partFile.renameTo(session.sealedFile)) {
+            mWriteErrors.incrementAndGet();
+        }
+    }
+
+    // Unsigned LEB128
+    static int writeVarint(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionRecorder{recorded=" + mRecorded.get() + ", dropped=" + mDropped.get()
+                + ", writeErrors=" + mWriteErrors.get() + "}";
+    }
+}
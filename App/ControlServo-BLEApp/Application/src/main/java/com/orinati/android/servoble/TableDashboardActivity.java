@@ -0,0 +1,232 @@
+package com.orinati.android.servoble;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dashboard of the tables on the floor: scans for boards, monitors every one of them through
+ * the service's {@link TablePool}, and resets a table when its row is tapped.
+ */
+public class TableDashboardActivity extends Activity {
+    private final static String TAG = TableDashboardActivity.class.getSimpleName();
+
+    // Stops scanning for tables after 10 seconds
+    private static final long SCAN_PERIOD = 10000;
+
+    private static final String[] PHASE_NAMES = {"idle", "playing", "game over", "paused"};
+
+    private BluetoothLeService      mBluetoothLeService;
+    private TablePool               mTablePool;
+    private BoardScanner            mBoardScanner;
+    private Handler                 mHandler;
+    private boolean                 mScanning;
+    private TextView                mSummary;
+    private ArrayAdapter<String>    mAdapter;
+    // Tables in the order of the rows
+    private List<TableSession>      mTables = new ArrayList<TableSession>();
+    private final StringBuilder     mRowText = new StringBuilder();
+
+    // Code to manage Service lifecycle.
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            if (!mBluetoothLeService.initialize()) {
+                Log.e(TAG, "Unable to initialize Bluetooth");
+                finish();
+                return;
+            }
+            mTablePool = mBluetoothLeService.getTablePool();
+            mTablePool.addListener(mTablesListener);
+            updateTables();
+            scanTables(true);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+            mTablePool = null;
+        }
+    };
+
+    private final TablePool.Listener mTablesListener = new TablePool.Listener() {
+        @Override
+        public void onTablesChanged() {
+            updateTables();
+        }
+    };
+
+    // Every board found joins the pool
+    private final BoardScanner.Listener mBoardListener = new BoardScanner.Listener() {
+        @Override
+        public void onBoardFound(BluetoothDevice device) {
+            if (mTablePool != null) {
+                mTablePool.add(device.getAddress(), device.getName());
+            }
+        }
+    };
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.table_dashboard_layout);
+        mHandler = new Handler();
+
+        final BluetoothManager bluetoothManager =
+                (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        mBoardScanner = new BoardScanner(bluetoothManager.getAdapter(), mHandler, mBoardListener);
+
+        mSummary = findViewById(R.id.table_summary);
+        mAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1,
+                new ArrayList<String>());
+        final ListView tableList = findViewById(R.id.table_list);
+        tableList.setEmptyView(findViewById(R.id.table_empty));
+        tableList.setAdapter(mAdapter);
+        tableList.setOnItemClickListener(new ResetClickListener());
+
+        getActionBar().setDisplayHomeAsUpEnabled(true);
+        Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        scanTables(false);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mTablePool != null) {
+            mTablePool.removeListener(mTablesListener);
+        }
+        unbindService(mServiceConnection);
+        mBluetoothLeService = null;
+        mTablePool = null;
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main, menu);
+        menu.findItem(R.id.menu_tables).setVisible(false);
+        menu.findItem(R.id.menu_stop).setVisible(mScanning);
+        menu.findItem(R.id.menu_scan).setVisible(!mScanning);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.menu_scan:
+                scanTables(true);
+                break;
+            case R.id.menu_stop:
+                scanTables(false);
+                break;
+            case android.R.id.home:
+                onBackPressed();
+                break;
+        }
+        return true;
+    }
+
+    private void scanTables(boolean enable) {
+        mHandler.removeCallbacks(mStopScan);
+        if (enable && mTablePool != null) {
+            mHandler.postDelayed(mStopScan, SCAN_PERIOD);
+            mScanning = mBoardScanner.start(null);
+        } else {
+            mScanning = false;
+            mBoardScanner.stop();
+        }
+        invalidateOptionsMenu();
+    }
+
+    private final Runnable mStopScan = new Runnable() {
+        @Override
+        public void run() {
+            scanTables(false);
+        }
+    };
+
+    // Rebuilds the rows, e.g. "SimpleBLEPeripheral 00:11:22:33:44:55 / ready, playing, ball 2,
+    // lives 3, score 1200"
+    private void updateTables() {
+        if (mTablePool == null) {
+            return;
+        }
+        mTables = mTablePool.getTables();
+        mAdapter.setNotifyOnChange(false);
+        mAdapter.clear();
+        for (int i = 0; i < mTables.size(); i++) {
+            mAdapter.add(formatRow(mTables.get(i)));
+        }
+        mAdapter.notifyDataSetChanged();
+        mSummary.setText(getString(R.string.table_summary, mTables.size(),
+                mTablePool.getMaxLinks()));
+    }
+
+    private String formatRow(TableSession table) {
+        final StringBuilder row = mRowText;
+        row.setLength(0);
+        if (table.getName() != null) {
+            row.append(table.getName()).append(' ');
+        }
+        row.append(table.getAddress()).append('\n');
+        if (!table.isLinked()) {
+            row.append(getString(R.string.table_waiting));
+        } else {
+            row.append(ConnectionStateMachine.getStateName(table.getState()));
+        }
+        final GameState state = table.getGameState();
+        if (state.isSynced()) {
+            final int phase = state.getPhase();
+            row.append(", ").append(phase < PHASE_NAMES.length
+                    ? PHASE_NAMES[phase] : Integer.toString(phase))
+                    .append(", ball ").append(state.getBall())
+                    .append(", lives ").append(state.getLives())
+                    .append(", score ").append(state.getScore());
+        }
+        if (table.hasPendingCommand()) {
+            row.append(", ").append(getString(R.string.table_command_pending));
+        }
+        return row.toString();
+    }
+
+    // Resets the tapped table
+    private class ResetClickListener implements AdapterView.OnItemClickListener {
+        @Override
+        public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+            if (mTablePool == null || position >= mTables.size()) {
+                return;
+            }
+            final TableSession table = mTables.get(position);
+            mTablePool.sendGameCommand(table.getAddress(), GameState.COMMAND_NEW_GAME);
+            Toast.makeText(TableDashboardActivity.this,
+                    getString(R.string.table_reset, table.getAddress()),
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+}
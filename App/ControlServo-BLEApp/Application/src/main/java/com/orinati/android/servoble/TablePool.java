@@ -0,0 +1,267 @@
+package com.orinati.android.servoble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Monitoring links to several tables, for an operator watching and resetting them, besides
+ * the service's own connection to the table being played.
+ *
+ * Phones only hold a few LE links at once, so the tables share {@link #getMaxLinks()} link
+ * slots.  While there are enough, every table keeps its link.  Otherwise the slots rotate
+ * round-robin: a table holds one for {@value #SLICE_MS} ms and then waits at the back of the
+ * line, and a table with a game command waiting jumps the line, taking over the slot held
+ * the longest.  A table hands its slot over only once the table acknowledged its command.
+ * Each table has its own {@link TableSession}, so commands to different tables never wait
+ * for each other.
+ *
+ * Use it on the main thread.
+ */
+public class TablePool {
+
+    public interface Listener {
+        /**
+         * Called on the main thread when a table was added or removed, or its link or game
+         * state changed.
+         */
+        void onTablesChanged();
+    }
+
+    // Leaves room for the connection to the table being played on phones allowing 5 links
+    static final int  DEFAULT_MAX_LINKS = 4;
+    // Time a table holds a link slot while others wait for one
+    static final long SLICE_MS          = 10000;
+    // Delay of a handover while the table's game command is still being sent
+    static final long DEFER_MS          = 500;
+
+    private final Context           mContext;
+    private final BluetoothAdapter  mAdapter;
+    private final Handler           mHandler;
+    private final CopyOnWriteArrayList<Listener> mListeners =
+            new CopyOnWriteArrayList<Listener>();
+
+    // Tables in the order they were added, by address
+    private final LinkedHashMap<String, TableSession> mTables =
+            new LinkedHashMap<String, TableSession>();
+    // Tables waiting for a link slot, next one first
+    private final ArrayDeque<TableSession> mWaiting = new ArrayDeque<TableSession>();
+    private int                     mLinkedCount;
+    private int                     mMaxLinks = DEFAULT_MAX_LINKS;
+    private long                    mHandoverCount;
+
+    /**
+     * @param handler Handler on the main thread.
+     */
+    public TablePool(Context context, BluetoothAdapter adapter, Handler handler) {
+        mContext = context;
+        mAdapter = adapter;
+        mHandler = handler;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Adds a table, connected as soon as a link slot is free.  Does nothing if the table is
+     * already in the pool.
+     *
+     * @param name Advertised name, null if unknown.
+     */
+    public void add(String address, String name) {
+        if (mTables.containsKey(address)) {
+            return;
+        }
+        final TableSession session = new TableSession(mContext, mAdapter, mHandler, address,
+                name, mSessionCallback);
+        mTables.put(address, session);
+        mWaiting.add(session);
+        schedule();
+        notifyListeners();
+    }
+
+    public void remove(String address) {
+        final TableSession session = mTables.remove(address);
+        if (session == null) {
+            return;
+        }
+        if (session.isLinked()) {
+            unlink(session);
+        } else {
+            mWaiting.remove(session);
+        }
+        schedule();
+        notifyListeners();
+    }
+
+    /**
+     * Disconnects and removes every table.
+     */
+    public void close() {
+        mHandler.removeCallbacks(mRotate);
+        for (TableSession session : mTables.values()) {
+            if (session.isLinked()) {
+                unlink(session);
+            }
+        }
+        mTables.clear();
+        mWaiting.clear();
+        notifyListeners();
+    }
+
+    public TableSession get(String address) {
+        return mTables.get(address);
+    }
+
+    /**
+     * @return The tables in the order they were added.
+     */
+    public List<TableSession> getTables() {
+        return new ArrayList<TableSession>(mTables.values());
+    }
+
+    /**
+     * Sends a one byte game command to a table, e.g. {@link GameState#COMMAND_NEW_GAME} to
+     * reset it.  A table without a link gets the next slot.
+     */
+    public void sendGameCommand(String address, byte command) {
+        final TableSession session = mTables.get(address);
+        if (session == null) {
+            return;
+        }
+        session.sendGameCommand(command);
+        if (session.isLinked()) {
+            return;
+        }
+        mWaiting.remove(session);
+        if (mLinkedCount >= mMaxLinks) {
+            final TableSession preempted = findLongestLinked();
+            if (preempted != null) {
+                // Back first in line, it didn't get its full slice
+                unlink(preempted);
+                mWaiting.addFirst(preempted);
+            }
+        }
+        mWaiting.addFirst(session);
+        schedule();
+    }
+
+    /**
+     * Sets the number of tables linked at once.  Phones support from 4 to about 7 LE links,
+     * one of them taken by the table being played.
+     */
+    public void setMaxLinks(int maxLinks) {
+        mMaxLinks = Math.max(1, maxLinks);
+        while (mLinkedCount > mMaxLinks) {
+            final TableSession session = findLongestLinked();
+            if (session == null) {
+                break;
+            }
+            unlink(session);
+            mWaiting.add(session);
+        }
+        schedule();
+    }
+
+    public int getMaxLinks() {
+        return mMaxLinks;
+    }
+
+    private void link(TableSession session, long now) {
+        mLinkedCount++;
+        session.link(now);
+    }
+
+    private void unlink(TableSession session) {
+        mLinkedCount--;
+        session.unlink();
+    }
+
+    // The linked table that held its slot the longest, null if none can be taken over
+    private TableSession findLongestLinked() {
+        TableSession longest = null;
+        for (TableSession session : mTables.values()) {
+            if (session.isLinked() && !session.hasPendingCommand() && (longest == null
+                    || session.getLinkedSince() < longest.getLinkedSince())) {
+                longest = session;
+            }
+        }
+        return longest;
+    }
+
+    // Fills the free slots, hands the expired ones over, and plans the next handover
+    private void schedule() {
+        mHandler.removeCallbacks(mRotate);
+        final long now = SystemClock.elapsedRealtime();
+        while (mLinkedCount < mMaxLinks && !mWaiting.isEmpty()) {
+            link(mWaiting.poll(), now);
+        }
+        if (mWaiting.isEmpty()) {
+            return;
+        }
+        // One handover per waiting table, a table handing its slot over mustn't get it back
+        int handovers = mWaiting.size();
+        long nextExpiry = Long.MAX_VALUE;
+        for (TableSession session : mTables.values()) {
+            if (!session.isLinked()) {
+                continue;
+            }
+            final long expiry = session.getLinkedSince() + SLICE_MS;
+            if (expiry <= now && session.hasPendingCommand()) {
+                // Unlinking would drop the command, it hands over once that's acknowledged
+                nextExpiry = Math.min(nextExpiry, now + DEFER_MS);
+            } else if (expiry <= now && handovers > 0) {
+                handovers--;
+                unlink(session);
+                mWaiting.add(session);
+                link(mWaiting.poll(), now);
+                mHandoverCount++;
+            } else {
+                // Expired tables left over hand over in the next round
+                nextExpiry = Math.min(nextExpiry, expiry > now ? expiry : now + SLICE_MS);
+            }
+        }
+        if (nextExpiry != Long.MAX_VALUE) {
+            mHandler.postDelayed(mRotate, nextExpiry - now);
+        }
+    }
+
+    private final Runnable mRotate = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
+
+    private final TableSession.Callback mSessionCallback = new TableSession.Callback() {
+        @Override
+        public void onSessionChanged(TableSession session) {
+            notifyListeners();
+        }
+    };
+
+    private void notifyListeners() {
+        for (Listener listener : mListeners) {
+            listener.onTablesChanged();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TablePool{tables=" + mTables.size() + ", linked=" + mLinkedCount
+                + ", waiting=" + mWaiting.size() + ", maxLinks=" + mMaxLinks
+                + ", handovers=" + mHandoverCount + "}";
+    }
+}
@@ -0,0 +1,378 @@
+package com.orinati.android.servoble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Monitoring link to one table of a {@link TablePool}: keeps the table's game state in sync
+ * and sends it game commands, e.g. a reset.  Every session has its own GATT connection,
+ * {@link ConnectionStateMachine} and {@link GattWriteQueue}, so a board that is slow to
+ * acknowledge only delays its own commands.
+ *
+ * The pool decides when the session holds a link.  Use it on the main thread; the GATT
+ * callbacks hand their results over to it.
+ */
+public class TableSession {
+    private final static String TAG = TableSession.class.getSimpleName();
+
+    // Reports changes to the pool, on the main thread
+    interface Callback {
+        void onSessionChanged(TableSession session);
+    }
+
+    private final Context                   mContext;
+    private final BluetoothAdapter          mAdapter;
+    private final Handler                   mHandler;
+    private final Callback                  mCallback;
+    private final String                    mAddress;
+    private final String                    mName;
+    private final ConnectionStateMachine    mConnection;
+    private final GattWriteQueue            mWriteQueue;
+    private final byte[]                    mCommandFrame = new byte[1];
+
+    // Game state as published by the table, confined to the main thread
+    private final GameState                 mGameState = new GameState();
+
+    private volatile BluetoothGatt          mGatt;
+    // Connection id given to mGatt by the state machine
+    private volatile int                    mConnectionId;
+    private volatile BluetoothGattCharacteristic mGameStateCharacteristic;
+
+    // Game command to send once the link is ready, -1 if none.  It stays pending until the
+    // table acknowledged its write.
+    private int                             mPendingCommand = -1;
+    // Game command of the write in flight
+    private volatile int                    mWrittenCommand = -1;
+    // Holds one of the pool's link slots, since mLinkedSince
+    private boolean                         mLinked;
+    private long                            mLinkedSince;
+
+    TableSession(Context context, BluetoothAdapter adapter, Handler handler, String address,
+                 String name, Callback callback) {
+        mContext = context;
+        mAdapter = adapter;
+        mHandler = handler;
+        mAddress = address;
+        mName = name;
+        mCallback = callback;
+        mConnection = new ConnectionStateMachine(mGattLayer, new HandlerScheduler(handler));
+        mConnection.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int oldState, int newState) {
+                if (newState == ConnectionStateMachine.STATE_READY && mPendingCommand >= 0) {
+                    sendPendingCommand();
+                }
+                mCallback.onSessionChanged(TableSession.this);
+            }
+        });
+        mWriteQueue = new GattWriteQueue(new GattWriteQueue.Sink() {
+            @Override
+            public boolean submit(int slot, long command) {
+                final BluetoothGatt gatt = mGatt;
+                final BluetoothGattCharacteristic characteristic = mGameStateCharacteristic;
+                if (gatt == null || characteristic == null) {
+                    return false;
+                }
+                mWrittenCommand = (int) command;
+                mCommandFrame[0] = (byte) command;
+                characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                characteristic.setValue(mCommandFrame);
+                return gatt.writeCharacteristic(characteristic);
+            }
+        });
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return Advertised name of the table, null if unknown.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return {@link ConnectionStateMachine} state of the session's link.
+     */
+    public int getState() {
+        return mConnection.getState();
+    }
+
+    /**
+     * @return The table's game state, last known values while it's not linked.
+     */
+    public GameState getGameState() {
+        return mGameState;
+    }
+
+    /**
+     * @return true while the session holds a link slot, false while it waits for one.
+     */
+    public boolean isLinked() {
+        return mLinked;
+    }
+
+    public boolean hasPendingCommand() {
+        return mPendingCommand >= 0;
+    }
+
+    public GattWriteQueue getWriteQueue() {
+        return mWriteQueue;
+    }
+
+    /**
+     * Sends a one byte game command, e.g. {@link GameState#COMMAND_NEW_GAME}, as soon as the
+     * link is ready.  A command still waiting is replaced.  It's pending until the table
+     * acknowledged it, and a failed write is retried while the link is ready.
+     */
+    void sendGameCommand(byte command) {
+        mPendingCommand = command & 0xFF;
+        if (mConnection.getState() == ConnectionStateMachine.STATE_READY) {
+            sendPendingCommand();
+        }
+        mCallback.onSessionChanged(this);
+    }
+
+    long getLinkedSince() {
+        return mLinkedSince;
+    }
+
+    // Takes a link slot and connects
+    void link(long now) {
+        mLinked = true;
+        mLinkedSince = now;
+        mConnection.connect(mAddress);
+    }
+
+    // Gives the link slot back, releasing the connection at once
+    void unlink() {
+        mLinked = false;
+        mConnection.disconnect();
+        mCallback.onSessionChanged(this);
+    }
+
+    // Kept pending, onCharacteristicWrite reports whether the table got it
+    private void sendPendingCommand() {
+        if (!mWriteQueue.offer(GattWriteQueue.SLOT_GAME_COMMAND, mPendingCommand)) {
+            Log.w(TAG, mAddress + ": write queue full, game command waits. " + mWriteQueue);
+        }
+    }
+
+    // Runs on the main thread once the write of a game command completed
+    private void onCommandWritten(int command, boolean success) {
+        if (mPendingCommand != command) {
+            // Replaced meanwhile, the newer one is already queued
+            return;
+        }
+        if (success) {
+            mPendingCommand = -1;
+            mCallback.onSessionChanged(this);
+        } else if (mConnection.getState() == ConnectionStateMachine.STATE_READY) {
+            sendPendingCommand();
+        }
+    }
+
+    private void closeGatt() {
+        final BluetoothGatt gatt = mGatt;
+        mGatt = null;
+        mGameStateCharacteristic = null;
+        if (gatt != null) {
+            gatt.close();
+        }
+        mWriteQueue.clear();
+    }
+
+    // Every attempt is a new direct connection, and a disconnect closes it right away so the
+    // phone's link is free for the next table.
+    private final ConnectionStateMachine.GattLayer mGattLayer =
+            new ConnectionStateMachine.GattLayer() {
+        @Override
+        public void connect(String address, int connectionId) {
+            closeGatt();
+            mConnectionId = connectionId;
+            final BluetoothDevice device = mAdapter.getRemoteDevice(address);
+            if (device == null) {
+                mConnection.onDisconnected(connectionId, BluetoothGatt.GATT_FAILURE);
+                return;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                mGatt = device.connectGatt(mContext, false, mGattCallback,
+                        BluetoothDevice.TRANSPORT_LE);
+            } else {
+                mGatt = device.connectGatt(mContext, false, mGattCallback);
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            closeGatt();
+        }
+
+        @Override
+        public void close() {
+            closeGatt();
+        }
+
+        @Override
+        public void setUp() {
+            final BluetoothGatt gatt = mGatt;
+            if (gatt != null && !gatt.discoverServices()) {
+                mConnection.onSetUp(mConnectionId, false);
+            }
+        }
+
+        @Override
+        public void startScan(String address) {
+            // No scanner per table, just try again; the pool hands the slot over to the next
+            // table when the slice is up
+            mConnection.onScanResult(address);
+        }
+
+        @Override
+        public void stopScan() {
+        }
+    };
+
+    // Setup: services, game state notifications, game state read
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (gatt != mGatt) {
+                // Closed meanwhile
+                return;
+            }
+            final int connectionId = mConnectionId;
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mConnection.onConnected(connectionId);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mWriteQueue.clear();
+                mHandler.post(mResetGameState);
+                mConnection.onDisconnected(connectionId, status);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (gatt != mGatt) {
+                return;
+            }
+            final BoardHandles board = status == BluetoothGatt.GATT_SUCCESS
+                    ? BoardHandles.resolve(gatt) : null;
+            final BluetoothGattCharacteristic characteristic = board == null ? null
+                    : board.get(BoardProfile.ROLE_GAME_STATE);
+            if (characteristic == null) {
+                Log.w(TAG, mAddress + ": game state not found, status " + status);
+                mConnection.onSetUp(mConnectionId, false);
+                return;
+            }
+            mGameStateCharacteristic = characteristic;
+            if (!BluetoothLeService.setCharacteristicNotification(gatt, characteristic, true)
+                    && !gatt.readCharacteristic(characteristic)) {
+                mConnection.onSetUp(mConnectionId, false);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            if (gatt != mGatt || descriptor.getCharacteristic() != mGameStateCharacteristic) {
+                return;
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, mAddress + ": enabling game state notifications failed: " + status);
+            }
+            if (!gatt.readCharacteristic(mGameStateCharacteristic)) {
+                mConnection.onSetUp(mConnectionId, false);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            if (gatt != mGatt || characteristic != mGameStateCharacteristic) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                postGameState(characteristic.getValue(), true);
+            } else {
+                Log.w(TAG, mAddress + ": reading the game state failed: " + status);
+            }
+            mConnection.onSetUp(mConnectionId, status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            if (gatt != mGatt) {
+                return;
+            }
+            final boolean success = status == BluetoothGatt.GATT_SUCCESS;
+            if (!success) {
+                Log.e(TAG, mAddress + ": write failed");
+            }
+            // Reported first, the retry is skipped once the link degrades
+            mConnection.onWriteResult(success);
+            final int command = mWrittenCommand;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onCommandWritten(command, success);
+                }
+            });
+            mWriteQueue.onWriteComplete(success);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            if (gatt == mGatt && characteristic == mGameStateCharacteristic) {
+                postGameState(characteristic.getValue(), false);
+            }
+        }
+    };
+
+    // Applies a copy of the frame on the main thread
+    private void postGameState(byte[] value, final boolean snapshot) {
+        if (value == null) {
+            return;
+        }
+        final byte[] frame = value.clone();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final int changed = snapshot
+                        ? mGameState.applySnapshot(frame, frame.length)
+                        : mGameState.applyNotification(frame, frame.length);
+                if (changed != 0) {
+                    mCallback.onSessionChanged(TableSession.this);
+                }
+            }
+        });
+    }
+
+    private final Runnable mResetGameState = new Runnable() {
+        @Override
+        public void run() {
+            mGameState.reset();
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "TableSession{" + mAddress + ", " + mConnection + ", linked=" + mLinked
+                + ", " + mWriteQueue + "}";
+    }
+}
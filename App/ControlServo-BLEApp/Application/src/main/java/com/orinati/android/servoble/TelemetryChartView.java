@@ -0,0 +1,111 @@
+package com.orinati.android.servoble;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Live chart of the drain force sensor telemetry: the latest points of a
+ * {@link ForceTelemetry}, each as its min..max band with the means joined by a line, and
+ * the peak of the points shown, to pick the table's drain threshold from.  Redraws itself
+ * while it's visible; draws nothing without telemetry.
+ */
+public class TelemetryChartView extends View {
+    // Points shown, 5 s at a 10 sample window
+    private static final int    MAX_POINTS  = 500;
+    private static final long   REFRESH_MS  = 50;
+
+    private final int[]     mPoints = new int[MAX_POINTS];
+    // Preallocated line segments for Canvas.drawLines
+    private final float[]   mBand   = new float[MAX_POINTS * 4];
+    private final float[]   mMean   = new float[MAX_POINTS * 4];
+    private final Paint     mBandPaint  = new Paint();
+    private final Paint     mMeanPaint  = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint     mPeakPaint  = new Paint();
+    private final Paint     mTextPaint  = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final StringBuilder mText   = new StringBuilder();
+    private final char[]    mTextChars  = new char[64];
+
+    private ForceTelemetry  mTelemetry;
+
+    public TelemetryChartView(Context context) {
+        this(context, null);
+    }
+
+    public TelemetryChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        final float density = context.getResources().getDisplayMetrics().density;
+        mBandPaint.setColor(0xFF80CBC4);
+        mBandPaint.setStrokeWidth(density);
+        mMeanPaint.setColor(0xFF009688);
+        mMeanPaint.setStrokeWidth(2 * density);
+        mPeakPaint.setColor(Color.RED);
+        mPeakPaint.setStrokeWidth(density);
+        mTextPaint.setColor(Color.BLACK);
+        mTextPaint.setTextSize(12 * context.getResources().getDisplayMetrics().scaledDensity);
+    }
+
+    /**
+     * @param telemetry The ring buffer to chart, null to clear the chart.
+     */
+    public void setTelemetry(ForceTelemetry telemetry) {
+        mTelemetry = telemetry;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        final ForceTelemetry telemetry = mTelemetry;
+        if (telemetry == null) {
+            return;
+        }
+        final int count = telemetry.copyPoints(mPoints);
+        final float width = getWidth();
+        final float height = getHeight();
+        final float scale = height / ForceTelemetry.MAX_VALUE;
+        final float step = width / MAX_POINTS;
+        // Newest point at the right edge
+        final float left = width - count * step;
+
+        int peak = 0;
+        float lastX = 0;
+        float lastY = 0;
+        for (int i = 0; i < count; i++) {
+            final int point = mPoints[i];
+            final float x = left + i * step;
+            final float y = height - ForceTelemetry.getMean(point) * scale;
+            mBand[4 * i] = x;
+            mBand[4 * i + 1] = height - ForceTelemetry.getMin(point) * scale;
+            mBand[4 * i + 2] = x;
+            mBand[4 * i + 3] = height - ForceTelemetry.getMax(point) * scale;
+            if (i > 0) {
+                mMean[4 * i - 4] = lastX;
+                mMean[4 * i - 3] = lastY;
+                mMean[4 * i - 2] = x;
+                mMean[4 * i - 1] = y;
+            }
+            lastX = x;
+            lastY = y;
+            peak = Math.max(peak, ForceTelemetry.getMax(point));
+        }
+        canvas.drawLines(mBand, 0, 4 * count, mBandPaint);
+        if (count > 1) {
+            canvas.drawLines(mMean, 0, 4 * (count - 1), mMeanPaint);
+        }
+        canvas.drawLine(0, height - peak * scale, width, height - peak * scale, mPeakPaint);
+
+        // Allocation free, runs every frame
+        mText.setLength(0);
+        mText.append("peak ").append(peak).append('/').append(ForceTelemetry.MAX_VALUE)
+                .append("  window ").append(telemetry.getWindow() * ForceTelemetry.SAMPLE_MILLIS)
+                .append(" ms  lost ").append(telemetry.getLostPacketCount());
+        final int length = Math.min(mText.length(), mTextChars.length);
+        mText.getChars(0, length, mTextChars, 0);
+        canvas.drawText(mTextChars, 0, length, 0, -mTextPaint.ascent(), mTextPaint);
+
+        postInvalidateDelayed(REFRESH_MS);
+    }
+}
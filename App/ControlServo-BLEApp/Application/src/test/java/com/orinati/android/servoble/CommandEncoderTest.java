@@ -0,0 +1,93 @@
+package com.orinati.android.servoble;
+
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeTrue;
+
+public class CommandEncoderTest {
+    private static final int ENCODES = 100000;
+    // Above the 15 calls after which reflection stops using the native accessor
+    private static final int REFLECTIVE_WARMUP = 20;
+
+    private final CommandEncoder mEncoder = new CommandEncoder();
+
+    @Test
+    public void packedStateRoundTrips() {
+        final int state = CommandEncoder.setFlipper(
+                CommandEncoder.setFlipper(0, true, true), false, true);
+        final long command = CommandEncoder.packState(state, 123456789L);
+
+        assertEquals(FlipperStateFrame.LEFT_FLIPPER | FlipperStateFrame.RIGHT_FLIPPER,
+                CommandEncoder.unpackState(command));
+        assertEquals(123456789L, CommandEncoder.unpackTime(command));
+        assertEquals(FlipperStateFrame.RIGHT_FLIPPER,
+                CommandEncoder.setFlipper(state, true, false));
+    }
+
+    @Test
+    public void stateFramesShareOneBuffer() {
+        final byte[] first = mEncoder.encodeState(
+                CommandEncoder.packState(FlipperStateFrame.LEFT_FLIPPER, 1000));
+        assertEquals(0, FlipperStateFrame.getSequence(first));
+        assertEquals(FlipperStateFrame.LEFT_FLIPPER, FlipperStateFrame.getState(first));
+
+        final byte[] second = mEncoder.encodeState(CommandEncoder.packState(0, 1016));
+        assertSame(first, second);
+        assertEquals(1, FlipperStateFrame.getSequence(second));
+        assertEquals(0, FlipperStateFrame.getState(second));
+        assertEquals(16, FlipperStateFrame.getDelta(second));
+
+        mEncoder.reset();
+        assertEquals(0, FlipperStateFrame.getSequence(mEncoder.encodeState(0)));
+    }
+
+    @Test
+    public void encodingDoesNotAllocate() throws Exception {
+        // Through reflection, android.jar has no java.lang.management to compile against
+        final Object threads;
+        final Method allocatedBytes;
+        try {
+            threads = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ClassNotFoundException e) {
+            assumeTrue("Allocation counting not supported by this JVM", false);
+            return;
+        }
+        final Long thread = Thread.currentThread().getId();
+        assumeTrue((Long) allocatedBytes.invoke(threads, thread) >= 0);
+
+        // Warms the encoder up, and the reflective call past the switch from its native
+        // accessor to a generated one, then measures the call itself
+        long state = 0;
+        for (int i = 0; i < ENCODES; i++) {
+            state += encode(i);
+        }
+        for (int i = 0; i < REFLECTIVE_WARMUP; i++) {
+            state += (Long) allocatedBytes.invoke(threads, thread);
+        }
+        long before = (Long) allocatedBytes.invoke(threads, thread);
+        final long overhead = (Long) allocatedBytes.invoke(threads, thread) - before;
+
+        before = (Long) allocatedBytes.invoke(threads, thread);
+        for (int i = 0; i < ENCODES; i++) {
+            state += encode(i);
+        }
+        final long allocated = (Long) allocatedBytes.invoke(threads, thread) - before;
+
+        assertEquals("Bytes allocated by " + ENCODES + " encodes (" + state + ")",
+                0, allocated - overhead);
+    }
+
+    // A flipper edge from the state to the frame written, as PaddleManager and the write
+    // queue's consumer do it
+    private int encode(int i) {
+        final int state = CommandEncoder.setFlipper(0, (i & 1) == 0, (i & 2) == 0);
+        return mEncoder.encodeState(CommandEncoder.packState(state, i))[0];
+    }
+}
@@ -0,0 +1,255 @@
+package com.orinati.android.servoble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStateMachineTest {
+    private static final String ADDRESS         = "00:11:22:33:44:55";
+    private static final String OTHER_ADDRESS   = "66:77:88:99:AA:BB";
+    // FakeGattLayer's defaults
+    private static final long   CONNECT_MS      = 100;
+    private static final long   SETUP_MS        = 50;
+    private static final long   ADVERTISING_MS  = 100;
+
+    private final ManualScheduler           mScheduler = new ManualScheduler();
+    private final FakeGattLayer             mGatt = new FakeGattLayer(mScheduler);
+    private final ConnectionStateMachine    mMachine =
+            new ConnectionStateMachine(mGatt, mScheduler);
+
+    @Before
+    public void setUp() {
+        mGatt.setMachine(mMachine);
+    }
+
+    @Test
+    public void connectsAndSetsTheLinkUp() {
+        mMachine.connect(ADDRESS);
+        mScheduler.runPending();
+        assertState(ConnectionStateMachine.STATE_CONNECTING);
+
+        mScheduler.advanceBy(CONNECT_MS);
+        assertState(ConnectionStateMachine.STATE_DISCOVERING);
+        assertTrue(mMachine.isConnected());
+
+        mScheduler.advanceBy(SETUP_MS);
+        assertState(ConnectionStateMachine.STATE_READY);
+        assertEquals(1, mGatt.getConnectCount());
+        assertEquals(1, mGatt.getSetupCount());
+    }
+
+    @Test
+    public void retryDelayDoublesUpToTheMaximum() {
+        assertEquals(0, ConnectionStateMachine.getRetryDelayMillis(0));
+        assertEquals(ConnectionStateMachine.FIRST_RETRY_DELAY_MS,
+                ConnectionStateMachine.getRetryDelayMillis(1));
+        assertEquals(2 * ConnectionStateMachine.FIRST_RETRY_DELAY_MS,
+                ConnectionStateMachine.getRetryDelayMillis(2));
+        assertEquals(ConnectionStateMachine.MAX_RETRY_DELAY_MS,
+                ConnectionStateMachine.getRetryDelayMillis(10));
+        assertEquals(ConnectionStateMachine.MAX_RETRY_DELAY_MS,
+                ConnectionStateMachine.getRetryDelayMillis(1000));
+    }
+
+    @Test
+    public void dropIsReconnectedAtOnce() {
+        connectToReady();
+
+        // On the same link, which keeps its resources
+        mGatt.drop();
+        mScheduler.runPending();
+        assertState(ConnectionStateMachine.STATE_CONNECTING);
+        assertEquals(2, mGatt.getConnectCount());
+        assertEquals(1, mGatt.getDisconnectCount());
+        assertEquals(0, mGatt.getCloseCount());
+
+        mScheduler.advanceBy(CONNECT_MS + SETUP_MS);
+        assertState(ConnectionStateMachine.STATE_READY);
+        assertEquals(1, mMachine.getTimeToReady().getCount());
+        assertEquals((CONNECT_MS + SETUP_MS) * 1000, mMachine.getTimeToReady().getMaxMicros());
+    }
+
+    @Test
+    public void dropToReadyIncludesTheBackoff() {
+        connectToReady();
+        mGatt.failNextConnects(1);
+
+        // The first attempt fails, the second waits for the first retry delay
+        mGatt.drop();
+        mScheduler.advanceBy(CONNECT_MS);
+        assertState(ConnectionStateMachine.STATE_BACKOFF);
+        mScheduler.advanceBy(ConnectionStateMachine.FIRST_RETRY_DELAY_MS - 1);
+        assertState(ConnectionStateMachine.STATE_BACKOFF);
+        mScheduler.advanceBy(1);
+        assertState(ConnectionStateMachine.STATE_CONNECTING);
+        mScheduler.advanceBy(CONNECT_MS + SETUP_MS);
+        assertState(ConnectionStateMachine.STATE_READY);
+
+        assertEquals(3, mGatt.getConnectCount());
+        final LatencyHistogram timeToReady = mMachine.getTimeToReady();
+        assertEquals(1, timeToReady.getCount());
+        assertEquals((CONNECT_MS + ConnectionStateMachine.FIRST_RETRY_DELAY_MS
+                + CONNECT_MS + SETUP_MS) * 1000, timeToReady.getMaxMicros());
+    }
+
+    @Test
+    public void doubleConnectStartsOneAttempt() {
+        mMachine.connect(ADDRESS);
+        mMachine.connect(ADDRESS);
+        mScheduler.runPending();
+        assertEquals(1, mGatt.getConnectCount());
+
+        mScheduler.advanceBy(CONNECT_MS + SETUP_MS);
+        mMachine.connect(ADDRESS);
+        mScheduler.runPending();
+        assertState(ConnectionStateMachine.STATE_READY);
+        assertEquals(1, mGatt.getConnectCount());
+        assertEquals(0, mGatt.getCloseCount());
+    }
+
+    @Test
+    public void connectToAnotherBoardClosesTheLink() {
+        connectToReady();
+
+        mMachine.connect(OTHER_ADDRESS);
+        mScheduler.runPending();
+        assertEquals(1, mGatt.getCloseCount());
+        assertEquals(2, mGatt.getConnectCount());
+        assertState(ConnectionStateMachine.STATE_CONNECTING);
+
+        mScheduler.advanceBy(CONNECT_MS + SETUP_MS);
+        assertState(ConnectionStateMachine.STATE_READY);
+        // A new board, not a reconnection
+        assertEquals(0, mMachine.getTimeToReady().getCount());
+    }
+
+    @Test
+    public void eventsOfADroppedConnectionAreIgnored() {
+        connectToReady();
+        // Ids count from 1, the retry skips one so late events of the dropped link don't match
+        final int oldId = 1;
+        mGatt.setConnectDelay(1000);
+        mGatt.drop();
+        mScheduler.runPending();
+        assertState(ConnectionStateMachine.STATE_CONNECTING);
+
+        mMachine.onConnected(oldId);
+        mMachine.onSetUp(oldId, true);
+        mMachine.onDisconnected(oldId, FakeGattLayer.STATUS_CONNECTION_TIMEOUT);
+        mScheduler.runPending();
+        assertState(ConnectionStateMachine.STATE_CONNECTING);
+        assertEquals(2, mGatt.getConnectCount());
+
+        mScheduler.advanceBy(1000 + SETUP_MS);
+        assertState(ConnectionStateMachine.STATE_READY);
+    }
+
+    @Test
+    public void eventsOfATimedOutAttemptAreIgnored() {
+        mGatt.setInRange(false);
+        mMachine.connect(ADDRESS);
+        mScheduler.advanceBy(ConnectionStateMachine.CONNECT_TIMEOUT_MS);
+        // Given up and retried at once
+        assertState(ConnectionStateMachine.STATE_CONNECTING);
+        assertEquals(2, mGatt.getConnectCount());
+        assertEquals(1, mGatt.getDisconnectCount());
+        assertEquals(0, mGatt.getCloseCount());
+
+        mMachine.onConnected(1);
+        mScheduler.runPending();
+        assertState(ConnectionStateMachine.STATE_CONNECTING);
+        assertFalse(mMachine.isConnected());
+    }
+
+    @Test
+    public void scansAfterFailedAttempts() {
+        mGatt.failNextConnects(ConnectionStateMachine.SCAN_AFTER_ATTEMPTS);
+        mMachine.connect(ADDRESS);
+
+        // Attempts at 0, 100 and 250 ms, each failing after the connect delay, then the
+        // second retry delay
+        final long scanAt = 3 * CONNECT_MS + ConnectionStateMachine.getRetryDelayMillis(1)
+                + ConnectionStateMachine.getRetryDelayMillis(2);
+        mScheduler.advanceBy(scanAt - 1);
+        assertState(ConnectionStateMachine.STATE_BACKOFF);
+        assertEquals(ConnectionStateMachine.SCAN_AFTER_ATTEMPTS, mGatt.getConnectCount());
+        assertEquals(0, mGatt.getScanCount());
+
+        mScheduler.advanceBy(1);
+        assertState(ConnectionStateMachine.STATE_SCANNING);
+        assertTrue(mGatt.isScanning());
+        assertEquals(1, mGatt.getScanCount());
+
+        // The advertisement leads to a connection
+        mScheduler.advanceBy(ADVERTISING_MS);
+        assertState(ConnectionStateMachine.STATE_CONNECTING);
+        assertFalse(mGatt.isScanning());
+        mScheduler.advanceBy(CONNECT_MS + SETUP_MS);
+        assertState(ConnectionStateMachine.STATE_READY);
+    }
+
+    @Test
+    public void scanOutOfRangeTimesOutAndScansAgain() {
+        mGatt.failNextConnects(ConnectionStateMachine.SCAN_AFTER_ATTEMPTS);
+        mMachine.connect(ADDRESS);
+        mScheduler.advanceBy(3 * CONNECT_MS + ConnectionStateMachine.getRetryDelayMillis(1)
+                + ConnectionStateMachine.getRetryDelayMillis(2));
+        assertState(ConnectionStateMachine.STATE_SCANNING);
+        mGatt.setInRange(false);
+
+        mScheduler.advanceBy(ConnectionStateMachine.SCAN_TIMEOUT_MS);
+        assertState(ConnectionStateMachine.STATE_BACKOFF);
+        assertFalse(mGatt.isScanning());
+
+        mScheduler.advanceBy(ConnectionStateMachine.MAX_RETRY_DELAY_MS);
+        assertState(ConnectionStateMachine.STATE_SCANNING);
+        assertEquals(2, mGatt.getScanCount());
+
+        mGatt.setInRange(true);
+        mScheduler.advanceBy(ADVERTISING_MS + CONNECT_MS + SETUP_MS);
+        assertState(ConnectionStateMachine.STATE_READY);
+    }
+
+    @Test
+    public void disconnectStopsReconnecting() {
+        connectToReady();
+
+        mMachine.disconnect();
+        mScheduler.runPending();
+        assertState(ConnectionStateMachine.STATE_IDLE);
+        assertFalse(mGatt.isConnected());
+
+        mScheduler.advanceBy(ConnectionStateMachine.MAX_RETRY_DELAY_MS);
+        assertState(ConnectionStateMachine.STATE_IDLE);
+        assertEquals(1, mGatt.getConnectCount());
+    }
+
+    @Test
+    public void failingWritesDegradeTheLink() {
+        connectToReady();
+
+        for (int i = 0; i < ConnectionStateMachine.DEGRADED_WRITE_FAILURES; i++) {
+            mMachine.onWriteResult(false);
+        }
+        mScheduler.runPending();
+        assertState(ConnectionStateMachine.STATE_DEGRADED);
+
+        mMachine.onWriteResult(true);
+        mScheduler.runPending();
+        assertState(ConnectionStateMachine.STATE_READY);
+    }
+
+    private void connectToReady() {
+        mMachine.connect(ADDRESS);
+        mScheduler.advanceBy(CONNECT_MS + SETUP_MS);
+        assertState(ConnectionStateMachine.STATE_READY);
+    }
+
+    private void assertState(int expected) {
+        assertEquals(ConnectionStateMachine.getStateName(expected),
+                ConnectionStateMachine.getStateName(mMachine.getState()));
+    }
+}
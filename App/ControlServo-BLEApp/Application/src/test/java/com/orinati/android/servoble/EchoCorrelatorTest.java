@@ -0,0 +1,158 @@
+package com.orinati.android.servoble;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EchoCorrelatorTest {
+    private static final long MS = 1000000L;
+
+    private final LatencyTracker    mTracker = new LatencyTracker();
+    private final EchoCorrelator    mCorrelator = new EchoCorrelator(mTracker);
+    private final byte[]            mEcho = new byte[EchoCorrelator.LENGTH];
+
+    @Test
+    public void echoMatchesItsSend() {
+        mCorrelator.onSend(5, 100 * MS);
+        EchoCorrelator.encode(mEcho, 5, 1000, 1010, 10);
+
+        assertTrue(mCorrelator.onEcho(mEcho, mEcho.length, 115 * MS));
+        assertEquals(1, mCorrelator.getMatchedCount());
+        assertEquals(0, mCorrelator.getUnmatchedCount());
+        assertEquals(15000, histogram(LatencyTracker.STAGE_FIRMWARE_ECHO).getMaxMicros());
+        assertEquals(100, histogram(LatencyTracker.STAGE_BOARD_RX_TO_PWM).getMaxMicros());
+    }
+
+    @Test
+    public void echoesMatchAcrossTheSequenceWrap() {
+        for (int i = 0; i < 600; i++) {
+            mCorrelator.onSend(i, i * MS);
+            EchoCorrelator.encode(mEcho, i & 0xFF, i, i + 1, 10);
+            assertTrue("echo " + i, mCorrelator.onEcho(mEcho, mEcho.length, i * MS + 10 * MS));
+        }
+        assertEquals(600, mCorrelator.getMatchedCount());
+        assertEquals(0, mCorrelator.getUnmatchedCount());
+    }
+
+    @Test
+    public void echoMatchesTheLatestSendOfItsSequence() {
+        mCorrelator.onSend(7, 100 * MS);
+        // 256 frames later the sequence number comes round again
+        mCorrelator.onSend(7 + 256, 900 * MS);
+        EchoCorrelator.encode(mEcho, 7, 0, 0, 10);
+
+        assertTrue(mCorrelator.onEcho(mEcho, mEcho.length, 910 * MS));
+        assertEquals(10000, histogram(LatencyTracker.STAGE_FIRMWARE_ECHO).getMaxMicros());
+    }
+
+    @Test
+    public void boardTicksWrapAt32Bits() {
+        EchoCorrelator.encode(mEcho, 0, 0xFFFFFFF0L, 0x10, 10);
+        assertEquals(0x20 * 10, EchoCorrelator.getBoardMicros(mEcho));
+    }
+
+    @Test
+    public void echoWithoutSendIsUnmatched() {
+        EchoCorrelator.encode(mEcho, 3, 0, 0, 10);
+
+        assertFalse(mCorrelator.onEcho(mEcho, mEcho.length, 10 * MS));
+        assertEquals(0, mCorrelator.getMatchedCount());
+        assertEquals(1, mCorrelator.getUnmatchedCount());
+        assertEquals(0, histogram(LatencyTracker.STAGE_FIRMWARE_ECHO).getCount());
+    }
+
+    @Test
+    public void duplicateEchoIsUnmatched() {
+        mCorrelator.onSend(3, 100 * MS);
+        EchoCorrelator.encode(mEcho, 3, 0, 0, 10);
+
+        assertTrue(mCorrelator.onEcho(mEcho, mEcho.length, 110 * MS));
+        assertFalse(mCorrelator.onEcho(mEcho, mEcho.length, 111 * MS));
+        assertEquals(1, mCorrelator.getMatchedCount());
+        assertEquals(1, mCorrelator.getUnmatchedCount());
+    }
+
+    @Test
+    public void lateEchoIsUnmatched() {
+        mCorrelator.onSend(3, 100 * MS);
+        EchoCorrelator.encode(mEcho, 3, 0, 0, 10);
+
+        assertFalse(mCorrelator.onEcho(mEcho, mEcho.length, 100 * MS + 3000 * MS));
+        assertEquals(1, mCorrelator.getUnmatchedCount());
+    }
+
+    @Test
+    public void echoBeforeItsSendIsUnmatched() {
+        mCorrelator.onSend(3, 100 * MS);
+        EchoCorrelator.encode(mEcho, 3, 0, 0, 10);
+
+        assertFalse(mCorrelator.onEcho(mEcho, mEcho.length, 90 * MS));
+        assertEquals(1, mCorrelator.getUnmatchedCount());
+    }
+
+    @Test
+    public void malformedEchoIsUnmatched() {
+        mCorrelator.onSend(3, 100 * MS);
+        EchoCorrelator.encode(mEcho, 3, 0, 0, 10);
+
+        assertFalse(mCorrelator.onEcho(mEcho, EchoCorrelator.LENGTH - 1, 110 * MS));
+        mEcho[0] = 0;
+        assertFalse(mCorrelator.onEcho(mEcho, mEcho.length, 110 * MS));
+        assertEquals(2, mCorrelator.getUnmatchedCount());
+    }
+
+    @Test
+    public void resetForgetsTheSends() {
+        mCorrelator.onSend(3, 100 * MS);
+        mCorrelator.reset();
+        EchoCorrelator.encode(mEcho, 3, 0, 0, 10);
+
+        assertFalse(mCorrelator.onEcho(mEcho, mEcho.length, 110 * MS));
+    }
+
+    @Test
+    public void simulatedBoardEchoesEveryFrame() throws InterruptedException {
+        final int frames = 50;
+        final CountDownLatch echoes = new CountDownLatch(frames);
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        final SimulatedBoard board = new SimulatedBoard(executor, new SimulatedBoard.Peer() {
+            @Override
+            public void onNotification(byte[] value, int length, long nanos) {
+                mCorrelator.onEcho(value, length, nanos);
+                echoes.countDown();
+            }
+        }, 1);
+        board.setDelays(1000, 100, 1000);
+        board.setTickPeriodMicros(10);
+
+        final FlipperStateFrame frame = new FlipperStateFrame();
+        final byte[] buffer = new byte[FlipperStateFrame.LENGTH];
+        try {
+            for (int i = 0; i < frames; i++) {
+                frame.encode(buffer, i & FlipperStateFrame.LEFT_FLIPPER, i);
+                mCorrelator.onSend(FlipperStateFrame.getSequence(buffer), System.nanoTime());
+                board.write(buffer, buffer.length);
+            }
+            assertTrue(echoes.await(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(frames, mCorrelator.getMatchedCount());
+        assertEquals(0, mCorrelator.getUnmatchedCount());
+        final LatencyHistogram roundTrip = histogram(LatencyTracker.STAGE_FIRMWARE_ECHO);
+        assertEquals(frames, roundTrip.getCount());
+        assertTrue(roundTrip.getPercentileMicros(0) >= 2100);
+        assertEquals(100, histogram(LatencyTracker.STAGE_BOARD_RX_TO_PWM).getMaxMicros());
+    }
+
+    private LatencyHistogram histogram(int stage) {
+        return mTracker.getHistogram(stage);
+    }
+}
@@ -0,0 +1,203 @@
+package com.orinati.android.servoble;
+
+/**
+ * Scriptable {@link ConnectionStateMachine.GattLayer} on a {@link ManualScheduler}, to drive
+ * the machine through reconnects, timeouts and races on a plain JVM.
+ *
+ * A board in range accepts a connection after the connect delay and finishes the setup after
+ * the setup delay; a board out of range never answers, like a real one.  Scans see a board in
+ * range after one advertising interval.  {@link #drop()} loses the link, e.g. in the middle
+ * of a game.  Use it on the scheduler's thread only.
+ */
+public class FakeGattLayer implements ConnectionStateMachine.GattLayer {
+    // Stack status of a lost link
+    public static final int STATUS_CONNECTION_TIMEOUT   = 8;
+    // Stack status of a failed connection attempt
+    public static final int STATUS_ERROR                = 133;
+
+    private final ManualScheduler   mScheduler;
+    private ConnectionStateMachine  mMachine;
+
+    private boolean mInRange            = true;
+    private long    mConnectDelayMs     = 100;
+    private long    mSetupDelayMs       = 50;
+    private long    mAdvertisingIntervalMs = 100;
+    private boolean mSetupSucceeds      = true;
+    private int     mFailingConnects;
+
+    // Id of the current connection or attempt, 0 if none
+    private int     mConnectionId;
+    private boolean mConnected;
+    private boolean mScanning;
+    private String  mAddress;
+
+    private int     mConnectCount;
+    private int     mDisconnectCount;
+    private int     mCloseCount;
+    private int     mSetupCount;
+    private int     mScanCount;
+
+    public FakeGattLayer(ManualScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Sets the machine the outcomes are reported to.
+     */
+    public void setMachine(ConnectionStateMachine machine) {
+        mMachine = machine;
+    }
+
+    public void setInRange(boolean inRange) {
+        mInRange = inRange;
+        if (inRange && mScanning) {
+            scheduleScanResult();
+        }
+    }
+
+    public void setConnectDelay(long millis) {
+        mConnectDelayMs = millis;
+    }
+
+    public void setSetupDelay(long millis) {
+        mSetupDelayMs = millis;
+    }
+
+    public void setAdvertisingInterval(long millis) {
+        mAdvertisingIntervalMs = millis;
+    }
+
+    public void setSetupSucceeds(boolean succeeds) {
+        mSetupSucceeds = succeeds;
+    }
+
+    /**
+     * Makes the next connection attempts fail after the connect delay, even in range.
+     */
+    public void failNextConnects(int count) {
+        mFailingConnects = count;
+    }
+
+    /**
+     * Loses the current link.
+     */
+    public void drop() {
+        if (!mConnected) {
+            return;
+        }
+        mConnected = false;
+        mMachine.onDisconnected(mConnectionId, STATUS_CONNECTION_TIMEOUT);
+    }
+
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public boolean isScanning() {
+        return mScanning;
+    }
+
+    public int getConnectCount() {
+        return mConnectCount;
+    }
+
+    public int getDisconnectCount() {
+        return mDisconnectCount;
+    }
+
+    public int getCloseCount() {
+        return mCloseCount;
+    }
+
+    public int getSetupCount() {
+        return mSetupCount;
+    }
+
+    public int getScanCount() {
+        return mScanCount;
+    }
+
+    @Override
+    public void connect(String address, final int connectionId) {
+        mConnectCount++;
+        mAddress = address;
+        mConnectionId = connectionId;
+        mConnected = false;
+        if (!mInRange) {
+            return;
+        }
+        final boolean fails = mFailingConnects > 0;
+        if (fails) {
+            mFailingConnects--;
+        }
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (connectionId != mConnectionId) {
+                    return;
+                }
+                if (fails) {
+                    mMachine.onDisconnected(connectionId, STATUS_ERROR);
+                } else {
+                    mConnected = true;
+                    mMachine.onConnected(connectionId);
+                }
+            }
+        }, mConnectDelayMs);
+    }
+
+    @Override
+    public void disconnect() {
+        mDisconnectCount++;
+        mConnected = false;
+        mConnectionId = 0;
+    }
+
+    @Override
+    public void close() {
+        mCloseCount++;
+        mConnected = false;
+        mConnectionId = 0;
+    }
+
+    @Override
+    public void setUp() {
+        mSetupCount++;
+        final int connectionId = mConnectionId;
+        final boolean succeeds = mSetupSucceeds;
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (connectionId == mConnectionId && mConnected) {
+                    mMachine.onSetUp(connectionId, succeeds);
+                }
+            }
+        }, mSetupDelayMs);
+    }
+
+    @Override
+    public void startScan(String address) {
+        mScanCount++;
+        mAddress = address;
+        mScanning = true;
+        if (mInRange) {
+            scheduleScanResult();
+        }
+    }
+
+    @Override
+    public void stopScan() {
+        mScanning = false;
+    }
+
+    private void scheduleScanResult() {
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mScanning && mInRange) {
+                    mMachine.onScanResult(mAddress);
+                }
+            }
+        }, mAdvertisingIntervalMs);
+    }
+}
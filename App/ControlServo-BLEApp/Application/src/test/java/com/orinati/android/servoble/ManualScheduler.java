@@ -0,0 +1,112 @@
+package com.orinati.android.servoble;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deterministic {@link Scheduler} on a virtual clock, to run the timed classes on a plain
+ * JVM.  Nothing runs by itself: {@link #runPending()} runs the queued tasks and
+ * {@link #advanceBy(long)} moves the clock, running the tasks falling due in order.  Not
+ * thread safe; the caller's thread is the scheduler's thread.
+ */
+public class ManualScheduler implements Scheduler {
+
+    private static class Task {
+        final Runnable  runnable;
+        final long      dueNanos;
+        // Keeps tasks due at the same time in submission order
+        final long      order;
+
+        Task(Runnable runnable, long dueNanos, long order) {
+            this.runnable = runnable;
+            this.dueNanos = dueNanos;
+            this.order = order;
+        }
+    }
+
+    private final List<Task>    mTasks = new ArrayList<Task>();
+    private long                mNowNanos;
+    private long                mOrder;
+
+    @Override
+    public void execute(Runnable task) {
+        schedule(task, 0);
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        scheduleNanos(task, delayMillis * 1000000L);
+    }
+
+    /**
+     * Like {@link #schedule(Runnable, long)}, for delays shorter than a millisecond.
+     */
+    public void scheduleNanos(Runnable task, long delayNanos) {
+        mTasks.add(new Task(task, mNowNanos + delayNanos, mOrder++));
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        for (int i = mTasks.size() - 1; i >= 0; i--) {
+            if (mTasks.get(i).runnable == task) {
+                mTasks.remove(i);
+            }
+        }
+    }
+
+    @Override
+    public long nanoTime() {
+        return mNowNanos;
+    }
+
+    public long nowMillis() {
+        return mNowNanos / 1000000L;
+    }
+
+    /**
+     * Runs the tasks due now, including the ones they queue.
+     */
+    public void runPending() {
+        advanceBy(0);
+    }
+
+    /**
+     * Moves the clock forward, running every task falling due on the way at its due time.
+     */
+    public void advanceBy(long millis) {
+        advanceToNanos(mNowNanos + millis * 1000000L);
+    }
+
+    /**
+     * Moves the clock forward to the given time, see {@link #advanceBy(long)}.  Does nothing
+     * but run the due tasks if the time has passed.
+     */
+    public void advanceToNanos(long end) {
+        end = Math.max(end, mNowNanos);
+        Task next;
+        while ((next = nextDue(end)) != null) {
+            mTasks.remove(next);
+            mNowNanos = Math.max(mNowNanos, next.dueNanos);
+            next.runnable.run();
+        }
+        mNowNanos = end;
+    }
+
+    /**
+     * @return Number of tasks waiting, due or not.
+     */
+    public int getPendingCount() {
+        return mTasks.size();
+    }
+
+    private Task nextDue(long endNanos) {
+        Task next = null;
+        for (Task task : mTasks) {
+            if (task.dueNanos <= endNanos && (next == null || task.dueNanos < next.dueNanos
+                    || task.dueNanos == next.dueNanos && task.order < next.order)) {
+                next = task;
+            }
+        }
+        return next;
+    }
+}
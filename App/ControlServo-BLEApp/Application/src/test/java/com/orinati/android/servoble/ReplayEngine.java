@@ -0,0 +1,609 @@
+package com.orinati.android.servoble;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * Plays a recorded or scripted session against a simulated board, on a plain JVM and on a
+ * {@link ManualScheduler}, so latency and ordering bugs reproduce without a board.  Part of the
+ * unit tests: {@code ReplayEngineTest} checks scripted sessions, and
+ * {@code ./gradlew :Application:replay} plays session logs through {@link #main(String[])}.
+ *
+ * The session goes through the same code as a live one: the board's connection changes,
+ * notifications, reads and write acknowledgements reach the {@link BoardLink} like the GATT
+ * callbacks of {@code BluetoothLeService}, its events are handled by a {@link GameTracker} like
+ * {@code DeviceControlActivity} does, and flipper states and game commands go through the
+ * {@link GattWriteQueue}.  The board acknowledges each write after the ack delay, accepts
+ * connections after the connect delay and answers the setup's read of the game state.
+ *
+ * Events of {@link SessionRecorder} logs, or scripted with the same meaning, are played at
+ * their time:
+ * <ul>
+ *   <li>FLIPPER: the user moves the flippers, dropped while no board is set up, like
+ *       {@code PaddleManager} does.</li>
+ *   <li>GAME_STATE: the board's game state changes and it notifies it if connected.</li>
+ *   <li>CONNECTION: DISCONNECTED loses the link and takes the board out of range, CONNECTED
+ *       brings it back in range; the reconnection itself is up to the connection machine.</li>
+ *   <li>GAME_COMMAND: the user sends a command to the board.</li>
+ * </ul>
+ * Sessions start with the board set up.  Time is virtual: {@link #run()} plays as fast as
+ * possible unless {@link #setRealTime(boolean)} paces it to the session's own speed.  Not
+ * thread safe.
+ */
+public class ReplayEngine {
+    private static final String ADDRESS             = "00:00:00:00:00:00";
+    // Stack status of a lost link
+    private static final int STATUS_CONNECTION_TIMEOUT = 8;
+    // Longest the board is given to get set up before the session starts
+    private static final long SETUP_TIMEOUT_MS      = 10000;
+    // Time left after the last event for the writes in flight to complete
+    private static final long DRAIN_MS              = 1000;
+
+    private static final UUID GAME_STATE_UUID =
+            BoardProfile.getUuid(BoardProfile.ROLE_GAME_STATE);
+
+    // An event of the session
+    private static class Event {
+        final long  timeMicros;
+        final int   type;
+        final int   value;
+        int         lives;
+        int         ball;
+        long        score;
+        int         eventAge = -1;
+
+        Event(long timeMicros, int type, int value) {
+            this.timeMicros = timeMicros;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private final ManualScheduler           mScheduler = new ManualScheduler();
+    private final ReplayGattLayer           mGattLayer = new ReplayGattLayer();
+    private final ConnectionStateMachine    mConnection =
+            new ConnectionStateMachine(mGattLayer, mScheduler);
+    private final GattWriteQueue            mWriteQueue = new GattWriteQueue(
+            new GattWriteQueue.Sink() {
+                @Override
+                public boolean submit(int slot, long command) {
+                    return mGattLayer.write(slot, command);
+                }
+            });
+    // The scheduler plays the main thread's part
+    private final BoardEventBus             mEventBus = new BoardEventBus(new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            mScheduler.execute(task);
+        }
+    });
+    private final LatencyTracker            mLatencyTracker = new LatencyTracker();
+    private final BoardLink                 mLink = new BoardLink(mEventBus, mConnection,
+            mWriteQueue, mLatencyTracker, new EchoCorrelator(mLatencyTracker));
+    private final GameTracker               mGameTracker = new GameTracker(new GameState());
+    private final LatencyHistogram          mDrainLatency = new LatencyHistogram("drain");
+
+    private final ArrayList<Event>  mEvents = new ArrayList<Event>();
+    // End of the latest loaded session, the next one is appended after it
+    private long                    mEndMicros;
+
+    private boolean mRealTime;
+    private long    mAckDelayMicros     = 7500;
+
+    // Whether flipper states and game commands are sent, like PaddleManager's registration
+    private boolean mRegistered;
+    // The user's flipper state
+    private int     mFlipperState;
+
+    private long    mPlayedCount;
+    private long    mIgnoredInputCount;
+    private long    mWriteCount;
+    private long    mNotificationCount;
+    private long    mWallNanos;
+
+    private final BoardEventBus.Listener mListener = new BoardEventBus.Listener() {
+        @Override
+        public void onBoardEvent(BoardEvent event) {
+            switch (event.getType()) {
+                case BoardEvent.TYPE_DISCONNECTED:
+                    mRegistered = false;
+                    mGameTracker.onDisconnected();
+                    break;
+                case BoardEvent.TYPE_NOTIFICATION:
+                    if (GAME_STATE_UUID.equals(event.getCharacteristic())) {
+                        mGameTracker.onNotification(event, mScheduler.nanoTime());
+                    }
+                    break;
+                case BoardEvent.TYPE_READ:
+                    if (GAME_STATE_UUID.equals(event.getCharacteristic())) {
+                        mRegistered = true;
+                        mGameTracker.onRead(event);
+                    }
+                    break;
+            }
+        }
+    };
+
+    public ReplayEngine() {
+        mGameTracker.setDrainLatency(mDrainLatency);
+        mEventBus.register(mListener);
+    }
+
+    /**
+     * Paces the replay to the session's speed instead of playing it as fast as possible.
+     */
+    public void setRealTime(boolean realTime) {
+        mRealTime = realTime;
+    }
+
+    /**
+     * Sets how long the board takes to acknowledge a write, 7.5 ms by default, i.e. one
+     * connection interval.
+     */
+    public void setAckDelayMicros(long micros) {
+        mAckDelayMicros = micros;
+    }
+
+    // Scripted events, times in microseconds since the start of the replay
+
+    /**
+     * The user moves the flippers to the given state, see {@code FlipperStateFrame}.
+     */
+    public ReplayEngine flipper(long timeMicros, int state) {
+        return add(new Event(timeMicros, SessionRecorder.TYPE_FLIPPER, state));
+    }
+
+    /**
+     * The board's game state changes.
+     *
+     * @param eventAge See {@link GameState#getEventAgeMillis()}, -1 if unknown.
+     */
+    public ReplayEngine gameState(long timeMicros, int phase, int lives, int ball, long score,
+                                  int eventAge) {
+        final Event event = new Event(timeMicros, SessionRecorder.TYPE_GAME_STATE, phase);
+        event.lives = lives;
+        event.ball = ball;
+        event.score = score;
+        event.eventAge = eventAge;
+        return add(event);
+    }
+
+    /**
+     * The link is lost, the board gets out of range until {@link #boardReturns(long)}.
+     */
+    public ReplayEngine boardDrops(long timeMicros) {
+        return add(new Event(timeMicros, SessionRecorder.TYPE_CONNECTION,
+                BoardEvent.TYPE_DISCONNECTED));
+    }
+
+    public ReplayEngine boardReturns(long timeMicros) {
+        return add(new Event(timeMicros, SessionRecorder.TYPE_CONNECTION,
+                BoardEvent.TYPE_CONNECTED));
+    }
+
+    /**
+     * The user sends a game command, e.g. {@link GameState#COMMAND_NEW_GAME}.
+     */
+    public ReplayEngine gameCommand(long timeMicros, byte command) {
+        return add(new Event(timeMicros, SessionRecorder.TYPE_GAME_COMMAND, command));
+    }
+
+    /**
+     * Appends the events of a session log after the ones added so far.
+     *
+     * @return Number of events loaded.
+     */
+    public long load(SessionReader reader) throws IOException {
+        final long offset = mEndMicros;
+        long count = 0;
+        while (reader.next()) {
+            final long time = offset + reader.getTimeMicros();
+            switch (reader.getType()) {
+                case SessionRecorder.TYPE_FLIPPER:
+                    flipper(time, reader.getFlipperState());
+                    break;
+                case SessionRecorder.TYPE_GAME_STATE:
+                    gameState(time, reader.getPhase(), reader.getLives(), reader.getBall(),
+                            reader.getScore(), reader.getEventAgeMillis());
+                    break;
+                case SessionRecorder.TYPE_CONNECTION:
+                    add(new Event(time, SessionRecorder.TYPE_CONNECTION,
+                            reader.getConnectionEvent()));
+                    break;
+                case SessionRecorder.TYPE_GAME_COMMAND:
+                    gameCommand(time, reader.getGameCommand());
+                    break;
+                case SessionRecorder.TYPE_END:
+                    mEndMicros = Math.max(mEndMicros, time);
+                    continue;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Sets the board up, plays the events in time order and lets the writes in flight
+     * complete.  The events are consumed, more can be added for another run.
+     *
+     * @return false if the board couldn't be set up, nothing is played then.
+     */
+    public boolean run() {
+        final long wallStart = System.nanoTime();
+        if (!mConnection.isConnected()) {
+            mConnection.connect(ADDRESS);
+            final long deadline = mScheduler.nanoTime() + SETUP_TIMEOUT_MS * 1000000L;
+            while (mConnection.getState() != ConnectionStateMachine.STATE_READY
+                    && mScheduler.nanoTime() < deadline) {
+                mScheduler.advanceBy(1);
+            }
+            if (mConnection.getState() != ConnectionStateMachine.STATE_READY) {
+                return false;
+            }
+        }
+        // Stable, so events of the same time keep their order
+        Collections.sort(mEvents, new Comparator<Event>() {
+            @Override
+            public int compare(Event a, Event b) {
+                return a.timeMicros < b.timeMicros ? -1 : a.timeMicros > b.timeMicros ? 1 : 0;
+            }
+        });
+        final long startNanos = mScheduler.nanoTime();
+        final long playStart = System.nanoTime();
+        for (int i = 0; i < mEvents.size(); i++) {
+            final Event event = mEvents.get(i);
+            final long due = startNanos + event.timeMicros * 1000;
+            if (mRealTime) {
+                sleepUntil(playStart + due - startNanos);
+            }
+            mScheduler.advanceToNanos(due);
+            play(event);
+            mPlayedCount++;
+        }
+        mScheduler.advanceBy(DRAIN_MS);
+        mEvents.clear();
+        mEndMicros = 0;
+        mWallNanos += System.nanoTime() - wallStart;
+        return true;
+    }
+
+    public LatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    /**
+     * @return Latency of the drains, see {@link GameTracker#onNotification}.
+     */
+    public LatencyHistogram getDrainLatency() {
+        return mDrainLatency;
+    }
+
+    public GattWriteQueue getWriteQueue() {
+        return mWriteQueue;
+    }
+
+    public ConnectionStateMachine getConnection() {
+        return mConnection;
+    }
+
+    public GameState getGameState() {
+        return mGameTracker.getGameState();
+    }
+
+    public ManualScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    public long getPlayedCount() {
+        return mPlayedCount;
+    }
+
+    /**
+     * @return Number of flipper states and game commands dropped since no board was set up.
+     */
+    public long getIgnoredInputCount() {
+        return mIgnoredInputCount;
+    }
+
+    /**
+     * @return Number of writes the board received.
+     */
+    public long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * @return Real time spent in {@link #run()}, in nanoseconds.
+     */
+    public long getWallNanos() {
+        return mWallNanos;
+    }
+
+    private ReplayEngine add(Event event) {
+        mEvents.add(event);
+        mEndMicros = Math.max(mEndMicros, event.timeMicros);
+        return this;
+    }
+
+    private void play(Event event) {
+        switch (event.type) {
+            case SessionRecorder.TYPE_FLIPPER:
+                if (!mRegistered) {
+                    mIgnoredInputCount++;
+                    return;
+                }
+                mFlipperState = event.value;
+                // Input events are stamped in milliseconds, like MotionEvent's
+                final long eventTime = mScheduler.nowMillis();
+                mLink.onEnqueue(eventTime, mScheduler.nanoTime());
+                mWriteQueue.offer(GattWriteQueue.SLOT_FLIPPER_STATE,
+                        CommandEncoder.packState(mFlipperState, eventTime));
+                break;
+            case SessionRecorder.TYPE_GAME_STATE:
+                mGattLayer.setGameState(event);
+                break;
+            case SessionRecorder.TYPE_CONNECTION:
+                if (event.value == BoardEvent.TYPE_DISCONNECTED) {
+                    mGattLayer.drop();
+                } else {
+                    mGattLayer.setInRange(true);
+                }
+                break;
+            case SessionRecorder.TYPE_GAME_COMMAND:
+                if (!mRegistered) {
+                    mIgnoredInputCount++;
+                    return;
+                }
+                mWriteQueue.offer(GattWriteQueue.SLOT_GAME_COMMAND, event.value);
+                break;
+        }
+    }
+
+    private static void sleepUntil(long wallNanos) {
+        final long delay = wallNanos - System.nanoTime();
+        if (delay <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delay / 1000000L, (int) (delay % 1000000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The simulated board, as the connection machine and the write queue see it.  Reports go
+    // through the link, like the GATT callbacks.
+    private class ReplayGattLayer implements ConnectionStateMachine.GattLayer {
+        private static final long CONNECT_DELAY_MS          = 30;
+        private static final long ADVERTISING_INTERVAL_MS   = 100;
+
+        private final byte[]    mFrame = new byte[GameState.LENGTH + 2];
+
+        private boolean mInRange = true;
+        // Id of the current connection or attempt, 0 if none
+        private int     mConnectionId;
+        private boolean mConnected;
+        private boolean mScanning;
+        private String  mAddress;
+
+        // The board's game state
+        private int     mSequence;
+        private int     mPhase;
+        private int     mLives;
+        private int     mBall;
+        private long    mScore;
+        private int     mEventAge = -1;
+
+        void setInRange(boolean inRange) {
+            mInRange = inRange;
+            if (inRange && mScanning) {
+                scheduleScanResult();
+            }
+            // A pending attempt completes once the board is back, like a direct connect
+            if (inRange && mConnectionId != 0 && !mConnected) {
+                scheduleConnect(mConnectionId);
+            }
+        }
+
+        void drop() {
+            mInRange = false;
+            if (mConnected) {
+                mConnected = false;
+                mLink.onDisconnected(mConnectionId, STATUS_CONNECTION_TIMEOUT,
+                        mScheduler.nanoTime());
+            }
+        }
+
+        void setGameState(Event event) {
+            int changed = 0;
+            if (event.value != mPhase) {
+                changed |= GameState.PHASE;
+            }
+            if (event.lives != mLives) {
+                changed |= GameState.LIVES;
+            }
+            if (event.ball != mBall) {
+                changed |= GameState.BALL;
+            }
+            if (event.score != mScore) {
+                changed |= GameState.SCORE;
+            }
+            mPhase = event.value;
+            mLives = event.lives;
+            mBall = event.ball;
+            mScore = event.score;
+            mEventAge = event.eventAge;
+            mSequence++;
+            if (mConnected && changed != 0) {
+                final int length = GameState.encode(mFrame, mSequence, changed, mPhase, mLives,
+                        mBall, mScore, mEventAge);
+                mNotificationCount++;
+                mLink.onNotification(GAME_STATE_UUID, copy(length), mScheduler.nanoTime());
+            }
+        }
+
+        // Called by the write queue's sink
+        boolean write(int slot, long command) {
+            if (!mConnected) {
+                return false;
+            }
+            if (slot == GattWriteQueue.SLOT_FLIPPER_STATE) {
+                mLink.submitState(command, mScheduler.nanoTime());
+            } else {
+                mLink.submitUntimedWrite();
+            }
+            mWriteCount++;
+            final int connectionId = mConnectionId;
+            mScheduler.scheduleNanos(new Runnable() {
+                @Override
+                public void run() {
+                    if (connectionId == mConnectionId && mConnected) {
+                        mLink.onWriteComplete(true, mScheduler.nanoTime());
+                    }
+                }
+            }, mAckDelayMicros * 1000);
+            return true;
+        }
+
+        @Override
+        public void connect(String address, final int connectionId) {
+            mAddress = address;
+            mConnectionId = connectionId;
+            mConnected = false;
+            if (mInRange) {
+                scheduleConnect(connectionId);
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            // The service's late callback carries no attempt's id
+            if (mConnected) {
+                mConnected = false;
+                mLink.onDisconnected(0, 0, mScheduler.nanoTime());
+            }
+            mConnectionId = 0;
+        }
+
+        @Override
+        public void close() {
+            mConnected = false;
+            mConnectionId = 0;
+        }
+
+        // Subscribes and reads the game state after one write's round trip, like the service
+        @Override
+        public void setUp() {
+            final int connectionId = mConnectionId;
+            mScheduler.scheduleNanos(new Runnable() {
+                @Override
+                public void run() {
+                    if (connectionId != mConnectionId || !mConnected) {
+                        return;
+                    }
+                    mConnection.onSetUp(connectionId, true);
+                    final int length = GameState.encode(mFrame, mSequence, 0, mPhase, mLives,
+                            mBall, mScore, mEventAge);
+                    mLink.onRead(GAME_STATE_UUID, copy(length), mScheduler.nanoTime());
+                }
+            }, 2 * mAckDelayMicros * 1000);
+        }
+
+        @Override
+        public void startScan(String address) {
+            mAddress = address;
+            mScanning = true;
+            if (mInRange) {
+                scheduleScanResult();
+            }
+        }
+
+        @Override
+        public void stopScan() {
+            mScanning = false;
+        }
+
+        private void scheduleConnect(final int connectionId) {
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (connectionId == mConnectionId && !mConnected && mInRange) {
+                        mConnected = true;
+                        mLink.onConnected(connectionId, mScheduler.nanoTime());
+                    }
+                }
+            }, CONNECT_DELAY_MS);
+        }
+
+        private void scheduleScanResult() {
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (mScanning && mInRange) {
+                        mConnection.onScanResult(mAddress);
+                    }
+                }
+            }, ADVERTISING_INTERVAL_MS);
+        }
+
+        // Events own their data
+        private byte[] copy(int length) {
+            final byte[] data = new byte[length];
+            System.arraycopy(mFrame, 0, data, 0, length);
+            return data;
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder out = new StringBuilder("ReplayEngine{played=").append(mPlayedCount)
+                .append(", ignoredInput=").append(mIgnoredInputCount)
+                .append(", writes=").append(mWriteCount)
+                .append(", notifications=").append(mNotificationCount)
+                .append(", wallMs=").append(mWallNanos / 1000000L)
+                .append(", ").append(mConnection)
+                .append(", ").append(mWriteQueue)
+                .append(", ").append(mDrainLatency)
+                .append("}\n");
+        mLatencyTracker.appendSummary(out);
+        return out.toString();
+    }
+
+    /**
+     * Replays session logs as fast as possible and prints the results, e.g. for throughput
+     * regressions.  Usage: {@code ReplayEngine [--realtime] [--ack-delay-us N] FILE...}
+     */
+    public static void main(String[] args) throws IOException {
+        final ReplayEngine engine = new ReplayEngine();
+        final ArrayList<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--realtime".equals(args[i])) {
+                engine.setRealTime(true);
+            } else if ("--ack-delay-us".equals(args[i]) && i + 1 < args.length) {
+                engine.setAckDelayMicros(Long.parseLong(args[++i]));
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        for (File file : files) {
+            final SessionReader reader = SessionReader.open(file);
+            try {
+                engine.load(reader);
+            } finally {
+                reader.close();
+            }
+        }
+        if (!engine.run()) {
+            System.err.println("Board not set up: " + engine.getConnection());
+            System.exit(1);
+        }
+        final long wallNanos = Math.max(engine.getWallNanos(), 1);
+        System.out.println(engine);
+        System.out.println("events/s " + engine.getPlayedCount() * 1000000000L / wallNanos);
+    }
+}
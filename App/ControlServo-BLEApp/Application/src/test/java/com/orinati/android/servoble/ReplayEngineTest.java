@@ -0,0 +1,82 @@
+package com.orinati.android.servoble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReplayEngineTest {
+    private static final long ACK_DELAY_US = 7500;
+
+    private final ReplayEngine mEngine = new ReplayEngine();
+
+    @Test
+    public void flipperStatesAreWrittenAndAcknowledged() {
+        mEngine.setAckDelayMicros(ACK_DELAY_US);
+        mEngine.flipper(100000, FlipperStateFrame.LEFT_FLIPPER)
+                .flipper(200000, 0)
+                .flipper(300000, FlipperStateFrame.RIGHT_FLIPPER)
+                .flipper(400000, 0);
+
+        assertTrue(mEngine.run());
+        assertEquals(4, mEngine.getPlayedCount());
+        assertEquals(4, mEngine.getWriteCount());
+        assertEquals(0, mEngine.getIgnoredInputCount());
+        final LatencyHistogram ack = mEngine.getLatencyTracker()
+                .getHistogram(LatencyTracker.STAGE_SUBMIT_TO_CALLBACK);
+        assertEquals(4, ack.getCount());
+        assertEquals(ACK_DELAY_US, ack.getMaxMicros());
+        assertEquals(ConnectionStateMachine.STATE_READY, mEngine.getConnection().getState());
+    }
+
+    @Test
+    public void onlyLivesLostWhilePlayingAreDrains() {
+        // New game, drain, pause and resume, last drain ending the game, new game
+        mEngine.gameState(100000, GameState.PHASE_PLAYING, 3, 1, 0, 0)
+                .gameState(1000000, GameState.PHASE_PLAYING, 2, 2, 100, 12)
+                .gameState(2000000, GameState.PHASE_PAUSED, 2, 2, 100, 0)
+                .gameState(3000000, GameState.PHASE_PLAYING, 2, 2, 100, 0)
+                .gameState(4000000, GameState.PHASE_PLAYING, 1, 3, 200, 4)
+                .gameState(5000000, GameState.PHASE_GAME_OVER, 0, 3, 300, 8)
+                .gameState(6000000, GameState.PHASE_PLAYING, 3, 1, 0, 0);
+
+        assertTrue(mEngine.run());
+        final LatencyHistogram drains = mEngine.getDrainLatency();
+        assertEquals(3, drains.getCount());
+        assertEquals(8000, drains.getMeanMicros());
+        assertEquals(12000, drains.getMaxMicros());
+        assertEquals(GameState.PHASE_PLAYING, mEngine.getGameState().getPhase());
+        assertEquals(3, mEngine.getGameState().getLives());
+    }
+
+    @Test
+    public void inputIsDroppedWhileTheBoardIsAway() {
+        mEngine.flipper(100000, FlipperStateFrame.LEFT_FLIPPER)
+                .boardDrops(200000)
+                .flipper(300000, 0)
+                .gameCommand(400000, GameState.COMMAND_NEW_GAME)
+                .gameState(500000, GameState.PHASE_PLAYING, 3, 1, 0, 0)
+                .boardReturns(1000000)
+                .flipper(3000000, FlipperStateFrame.RIGHT_FLIPPER);
+
+        assertTrue(mEngine.run());
+        assertEquals(2, mEngine.getIgnoredInputCount());
+        assertEquals(2, mEngine.getWriteCount());
+        assertEquals(ConnectionStateMachine.STATE_READY, mEngine.getConnection().getState());
+        assertEquals(1, mEngine.getConnection().getTimeToReady().getCount());
+        // The change made while away arrives with the setup's read
+        assertEquals(GameState.PHASE_PLAYING, mEngine.getGameState().getPhase());
+        assertEquals(3, mEngine.getGameState().getLives());
+    }
+
+    @Test
+    public void sessionsPlayBackToBack() {
+        mEngine.flipper(100000, FlipperStateFrame.LEFT_FLIPPER).flipper(200000, 0);
+        assertTrue(mEngine.run());
+        mEngine.flipper(100000, FlipperStateFrame.RIGHT_FLIPPER).flipper(200000, 0);
+        assertTrue(mEngine.run());
+
+        assertEquals(4, mEngine.getPlayedCount());
+        assertEquals(4, mEngine.getWriteCount());
+    }
+}
@@ -0,0 +1,121 @@
+package com.orinati.android.servoble;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for the board's flipper path in echo mode, to exercise {@link EchoCorrelator} and
+ * the latency tracking without hardware.
+ *
+ * Flipper state frames written to the board arrive after the uplink delay, the servos
+ * move after the servo delay and the echo reaches the peer after the downlink delay.  Echoes
+ * can be dropped at random, as notifications may be when the link is congested.
+ */
+public class SimulatedBoard {
+
+    /**
+     * Receives the board's notifications.
+     */
+    public interface Peer {
+        /**
+         * Called on the board's executor with a value owned by the callee.
+         */
+        void onNotification(byte[] value, int length, long nanos);
+    }
+
+    private final ScheduledExecutorService  mExecutor;
+    private final Peer                      mPeer;
+    private final long                      mStartNanos = System.nanoTime();
+
+    private volatile long   mUplinkMicros       = 7500;
+    private volatile long   mServoMicros        = 100;
+    private volatile long   mDownlinkMicros     = 7500;
+    private volatile int    mTickPeriodMicros   = 10;
+    private volatile double mDropProbability;
+    private final Random    mRandom;
+
+    // Confined to the executor
+    private int             mFlipperState;
+    private int             mSequence = -1;
+
+    public SimulatedBoard(ScheduledExecutorService executor, Peer peer, long seed) {
+        mExecutor = executor;
+        mPeer = peer;
+        mRandom = new Random(seed);
+    }
+
+    public void setDelays(long uplinkMicros, long servoMicros, long downlinkMicros) {
+        mUplinkMicros = uplinkMicros;
+        mServoMicros = servoMicros;
+        mDownlinkMicros = downlinkMicros;
+    }
+
+    public void setTickPeriodMicros(int tickPeriodMicros) {
+        mTickPeriodMicros = tickPeriodMicros;
+    }
+
+    /**
+     * @param probability Chance of an echo getting lost, 0 to 1.
+     */
+    public void setDropProbability(double probability) {
+        mDropProbability = probability;
+    }
+
+    /**
+     * Writes a flipper state frame to the board.  The frame is copied.
+     */
+    public void write(byte[] frame, int length) {
+        final byte[] copy = new byte[length];
+        System.arraycopy(frame, 0, copy, 0, length);
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                receive(copy);
+            }
+        }, mUplinkMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * @return Actuator bitmask last applied to the servos.  Only valid on the executor.
+     */
+    public int getFlipperState() {
+        return mFlipperState;
+    }
+
+    /**
+     * @return Sequence number of the last frame received, -1 if none.  Only valid on the
+     *         executor.
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    private void receive(byte[] frame) {
+        if (!FlipperStateFrame.isValid(frame, frame.length)) {
+            // A legacy opcode, which isn't echoed
+            return;
+        }
+        final long rxTick = getTick();
+        mSequence = FlipperStateFrame.getSequence(frame);
+        mFlipperState = FlipperStateFrame.getState(frame);
+        final long pwmTick = rxTick + mServoMicros / mTickPeriodMicros;
+
+        if (mRandom.nextDouble() < mDropProbability) {
+            return;
+        }
+        final byte[] echo = new byte[EchoCorrelator.LENGTH];
+        EchoCorrelator.encode(echo, mSequence, rxTick, pwmTick, mTickPeriodMicros);
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mPeer.onNotification(echo, echo.length, System.nanoTime());
+            }
+        }, mServoMicros + mDownlinkMicros, TimeUnit.MICROSECONDS);
+    }
+
+    // Board ticks since the simulation started, wrapping at 32 bits like the board's
+    private long getTick() {
+        return (System.nanoTime() - mStartNanos) / 1000 / mTickPeriodMicros & 0xFFFFFFFFL;
+    }
+}
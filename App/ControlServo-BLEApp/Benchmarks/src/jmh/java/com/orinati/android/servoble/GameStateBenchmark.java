@@ -0,0 +1,62 @@
+package com.orinati.android.servoble;
+
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A game state notification from the GATT callback to the {@link GameState}: posted on the
+ * {@link BoardEventBus}, delivered to the listener and applied by the {@link GameTracker},
+ * drain latency included.  The bus runs its events right away instead of on a main thread.
+ */
+@State(Scope.Thread)
+public class GameStateBenchmark {
+    private static final int FRAMES = 256;
+    private static final UUID GAME_STATE_UUID =
+            BoardProfile.getUuid(BoardProfile.ROLE_GAME_STATE);
+
+    private final BoardEventBus mEventBus = new BoardEventBus(new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    });
+    private final GameTracker   mGameTracker = new GameTracker(new GameState());
+
+    private final byte[][]  mFrames = new byte[FRAMES][];
+    private int             mIndex;
+    private long            mNanos;
+    private int             mChanged;
+
+    @Setup
+    public void setUp() {
+        final byte[] frame = new byte[GameState.LENGTH + 2];
+        for (int i = 0; i < FRAMES; i++) {
+            // Every other drain loses a life, so the drain latency is recorded half the time
+            final int length = GameState.encode(frame, i, GameState.LIVES | GameState.SCORE,
+                    GameState.PHASE_PLAYING, 3 - (i / 2 & 1), 1, i * 10, 5);
+            mFrames[i] = new byte[length];
+            System.arraycopy(frame, 0, mFrames[i], 0, length);
+        }
+        mGameTracker.setDrainLatency(new LatencyHistogram("drain"));
+        mEventBus.register(new BoardEventBus.Listener() {
+            @Override
+            public void onBoardEvent(BoardEvent event) {
+                mChanged = mGameTracker.onNotification(event, mNanos);
+            }
+        });
+        mEventBus.post(BoardEvent.TYPE_READ, GAME_STATE_UUID, mFrames[FRAMES - 1], 0);
+    }
+
+    @Benchmark
+    public int notification() {
+        mNanos += 1000;
+        mEventBus.post(BoardEvent.TYPE_NOTIFICATION, GAME_STATE_UUID,
+                mFrames[mIndex++ & (FRAMES - 1)], mNanos);
+        return mChanged;
+    }
+}
@@ -0,0 +1,60 @@
+package com.orinati.android.servoble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding of the frames written to the board and decoding of its notifications, per frame.
+ * The flipper path shouldn't allocate, see gc.alloc.rate.norm.
+ */
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+    // One frame per sequence number, so every notification is the next one
+    private static final int FRAMES = 256;
+
+    private final CommandEncoder    mEncoder = new CommandEncoder();
+    private final GameState         mGameState = new GameState();
+    private final EchoCorrelator    mEchoCorrelator = new EchoCorrelator(new LatencyTracker());
+
+    private final byte[][]  mGameStateFrames = new byte[FRAMES][GameState.LENGTH + 2];
+    private final byte[][]  mEchoes = new byte[FRAMES][EchoCorrelator.LENGTH];
+    private int             mState;
+    private long            mEventTime;
+    private int             mIndex;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < FRAMES; i++) {
+            GameState.encode(mGameStateFrames[i], i, GameState.SCORE, GameState.PHASE_PLAYING,
+                    3, 1, i * 10, 5);
+            EchoCorrelator.encode(mEchoes[i], i, i, i + 100, 10);
+        }
+        mGameState.applySnapshot(mGameStateFrames[FRAMES - 1], GameState.LENGTH + 2);
+    }
+
+    /**
+     * A flipper edge from the state to the frame written, as the dispatch thread and the
+     * write queue's consumer do it.
+     */
+    @Benchmark
+    public byte[] encodeFlipperState() {
+        mState = CommandEncoder.setFlipper(mState, (mIndex & 1) == 0, (mIndex & 2) == 0);
+        mIndex++;
+        return mEncoder.encodeState(CommandEncoder.packState(mState, ++mEventTime));
+    }
+
+    @Benchmark
+    public int decodeGameState() {
+        final byte[] frame = mGameStateFrames[mIndex++ & (FRAMES - 1)];
+        return mGameState.applyNotification(frame, frame.length);
+    }
+
+    @Benchmark
+    public boolean decodeEcho() {
+        final int sequence = mIndex++ & (FRAMES - 1);
+        mEchoCorrelator.onSend(sequence, 1);
+        return mEchoCorrelator.onEcho(mEchoes[sequence], EchoCorrelator.LENGTH, 1000);
+    }
+}
@@ -0,0 +1,72 @@
+package com.orinati.android.servoble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The {@link GattWriteQueue} with a sink that completes nothing by itself, so the benchmark
+ * plays the GATT callback's part.
+ */
+@State(Scope.Thread)
+public class WriteQueueBenchmark {
+    /**
+     * Flipper states offered per write while the link is busy, the ones before the last are
+     * coalesced.
+     */
+    @Param({"1", "4"})
+    public int burst;
+
+    private GattWriteQueue  mQueue;
+    private Blackhole       mBlackhole;
+    private long            mCommand;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mQueue = new GattWriteQueue(new GattWriteQueue.Sink() {
+            @Override
+            public boolean submit(int slot, long command) {
+                mBlackhole.consume(command);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Offers on an idle link, i.e. submits directly, then completes the write.
+     */
+    @Benchmark
+    public void submitAndComplete() {
+        mQueue.offer(GattWriteQueue.SLOT_FLIPPER_STATE, ++mCommand);
+        mQueue.onWriteComplete(true);
+    }
+
+    /**
+     * Offers a burst while a write is in flight, then completes the writes until the queue
+     * drained: the in-flight one and the coalesced state.
+     */
+    @Benchmark
+    public void coalesceAndDrain() {
+        mQueue.offer(GattWriteQueue.SLOT_FLIPPER_STATE, ++mCommand);
+        for (int i = 0; i < burst; i++) {
+            mQueue.offer(GattWriteQueue.SLOT_FLIPPER_STATE, ++mCommand);
+        }
+        mQueue.onWriteComplete(true);
+        mQueue.onWriteComplete(true);
+    }
+
+    /**
+     * A game command queued behind a flipper state, as when a game starts mid-press.
+     */
+    @Benchmark
+    public void interleaveSlots() {
+        mQueue.offer(GattWriteQueue.SLOT_FLIPPER_STATE, ++mCommand);
+        mQueue.offer(GattWriteQueue.SLOT_GAME_COMMAND, GameState.COMMAND_NEW_GAME);
+        mQueue.onWriteComplete(true);
+        mQueue.onWriteComplete(true);
+    }
+}
@@ -54,6 +54,7 @@
 #include <ti/sysbios/knl/Clock.h>
 #include <ti/sysbios/knl/Semaphore.h>
 #include <ti/sysbios/knl/Queue.h>
+#include <ti/sysbios/hal/Hwi.h>
 
 #include "hci_tl.h"
 #include "gatt.h"
@@ -101,13 +102,108 @@
 #include <ti/sysbios/BIOS.h>
 #include <ti/sysbios/knl/Task.h>
 #include <ti/sysbios/knl/Semaphore.h>
+#include <ti/drivers/PWM.h>
+#include <ti/drivers/ADC.h>
 #define NUMBER_OF_INITIAL_LIVES 3
 
+/* Flipper servos, period and duty in microseconds */
+#define FLIPPER_PWM_PERIOD      3000
+#define PADDLE_DOWN             1000
+#define PADDLE_UP               2000
+
+/* Legacy one byte flipper opcodes */
+#define LPADDLE_UP              0x1B
+#define RPADDLE_UP              0x2B
+#define LPADDLE_DOWN            0x1A
+#define RPADDLE_DOWN            0x2A
+
+static PWM_Handle leftFlipperPwm = NULL;
+static PWM_Handle rightFlipperPwm = NULL;
+// Actuator bitmask currently applied to the servos
+static uint16_t flipperState = 0;
+// Sequence number of the last flipper state frame
+static uint8_t flipperSeq = 0;
+
+/* Flipper motion profiles, stepped once per servo period */
+#define MOTION_STEP_MS          3
+// Servo travel from rest to the fixed up position, in microseconds of duty
+#define PADDLE_TRAVEL           (PADDLE_UP - PADDLE_DOWN)
+
+// Phases of a flipper's motion
+#define MOTION_REST             0  // down, nothing to step
+#define MOTION_RISE             1  // ramping to the up angle
+#define MOTION_UP               2  // at the up angle for the hold delay
+#define MOTION_HOLD             3  // easing to the hold angle
+#define MOTION_HELD             4  // up until the down edge or the timeout
+#define MOTION_FALL             5  // ramping back to rest
+
+// A flipper's motion profile, positions in microseconds of travel from rest
+typedef struct
+{
+  bool     enabled;     // false: jump between rest and the fixed up position
+  uint16_t upPos;
+  uint16_t holdPos;
+  uint16_t riseMs;      // ramps are for the whole travel from rest to upPos,
+  uint16_t fallMs;      // shorter moves take proportionally less
+  uint16_t holdDelayMs;
+  uint16_t timeoutMs;   // auto-release after the up edge, 0 never
+} sbpMotionProfile_t;
+
+// A flipper's motion, each phase a move from one position to another
+typedef struct
+{
+  sbpMotionProfile_t profile;
+  uint8_t  phase;
+  uint16_t pos;         // last applied
+  uint16_t from;
+  uint16_t to;
+  uint32_t startTick;
+  uint32_t durationTicks;
+  uint32_t upTick;      // of the up edge
+} sbpMotion_t;
+
+// Indexed like the actuator bits, from the left flipper
+static sbpMotion_t flipperMotion[SIMPLEPROFILE_MOTION_MAX];
+static Clock_Struct motionClock;
+
 static PIN_Handle ledPinHandle;
 static PIN_Handle buttonPinHandle;
 static PIN_State buttonPinState;
-static uint8_t number_of_lives_left = NUMBER_OF_INITIAL_LIVES;
-static int notify = 0;
+// Authoritative game state, published through Characteristic 6
+static uint8_t gamePhase = SIMPLEPROFILE_PHASE_PLAYING;
+static uint8_t gameLives = NUMBER_OF_INITIAL_LIVES;
+static uint8_t gameBall = 1;
+static uint32_t gameScore = 0;
+// Sequence number of the last published game state
+static uint8_t gameSeq = 0;
+// Milliseconds from the sensor edge to publishing, 0 for commands
+static uint16_t gameEventAge = 0;
+
+/* Drain sensor, a ball passing it may bounce the input for a while */
+#define DRAIN_HOLDOFF_MS        300
+// Clock tick of the last accepted drain edge, written by the pin interrupt
+static volatile uint32_t drainTick = 0;
+static volatile bool drainArmed = true;
+
+/* Drain force sensor telemetry. The sensor's analog output, next to the
+ * comparator output on the drain pin, on the ADC input. */
+static ADC_Handle forceAdc = NULL;
+static Clock_Struct telemetryClock;
+// Samples per point, 0 while the stream is off
+static uint8_t telemetryWindow = 0;
+// Window being accumulated, written by the telemetry clock
+static uint8_t telemetryCount = 0;
+static uint16_t telemetryMin;
+static uint16_t telemetryMax;
+static uint32_t telemetrySum;
+// Packet being filled by the telemetry clock, and the one waiting for the
+// application; a packet still waiting when the next one is full is dropped
+static uint8_t telemetryPacket[2][SIMPLEPROFILE_CHAR9_LEN];
+static uint8_t telemetryFill = 0;
+static volatile bool telemetryReady = false;
+static uint8_t telemetrySeq = 0;
+
+static void SimpleBLEPeripheral_drainEdge(void);
 PIN_Config buttonPinTable[] = {
     Board_DIO12  | PIN_INPUT_EN | PIN_PULLDOWN | PIN_IRQ_NEGEDGE,
     Board_PIN_BUTTON0  | PIN_INPUT_EN | PIN_PULLUP | PIN_IRQ_NEGEDGE,
@@ -122,14 +218,13 @@ PIN_Config buttonPinTable[] = {
  *  callback function.
  */
 void buttonCallbackFxn(PIN_Handle handle, PIN_Id pinId) {
-    /* Debounce logic, only toggle if the button is still pushed (low) */
-    CPUdelay(8000*50);
+    /* Glitch filter, only accept the edge if the input is still low */
     if (!PIN_getInputValue(pinId)) {
         switch (pinId) {
             case Board_DIO12:
             case Board_PIN_BUTTON0:
             case Board_PIN_BUTTON1:
-                notify = 1;
+                SimpleBLEPeripheral_drainEdge();
                 //uint32_t currVal =  PIN_getOutputValue(Board_PIN_LED1);
                 //PIN_setOutputValue(ledPinHandle, Board_PIN_LED1, !currVal);
                 //originally commented. SimpleProfile_SetParameter( SIMPLEPROFILE_CHAR2, sizeof(uint8_t), &value);
@@ -190,8 +285,29 @@ void buttonCallbackFxn(PIN_Handle handle, PIN_Id pinId) {
 // Connection Pause Peripheral time value (in seconds)
 #define DEFAULT_CONN_PAUSE_PERIPHERAL         6
 
-// How often to perform periodic event (in msec)
-#define SBP_PERIODIC_EVT_PERIOD               200 // original 5000
+// Link profiles, selected by the game phase
+#define SBP_LINK_PROFILE_NONE                 0
+#define SBP_LINK_PROFILE_COMPETITIVE          1
+#define SBP_LINK_PROFILE_IDLE                 2
+
+// Competitive profile while a game is played: the shortest connection
+// interval (units of 1.25ms, 6=7.5ms) and no slave latency, so a flipper
+// command waits at most one interval
+#define SBP_COMPETITIVE_MIN_CONN_INTERVAL     6
+#define SBP_COMPETITIVE_MAX_CONN_INTERVAL     8
+#define SBP_COMPETITIVE_SLAVE_LATENCY         0
+
+// Idle profile in attract mode, pause and game over (units of 1.25ms,
+// 80=100ms, 160=200ms). Slave latency lets the board skip connection events
+// while it has nothing to send.
+#define SBP_IDLE_MIN_CONN_INTERVAL            80
+#define SBP_IDLE_MAX_CONN_INTERVAL            160
+#define SBP_IDLE_SLAVE_LATENCY                4
+
+// Suggested LE data length (octets, and microseconds on the 1M PHY), the
+// largest the spec allows. Takes effect up to the stack's MAX_PDU_SIZE.
+#define SBP_SUGGESTED_TX_OCTETS               251
+#define SBP_SUGGESTED_TX_TIME                 2120
 
 // Type of Display to open
 #if !defined(Display_DISABLE_ALL)
@@ -232,8 +348,10 @@ void buttonCallbackFxn(PIN_Handle handle, PIN_Id pinId) {
 // Internal Events for RTOS application
 #define SBP_STATE_CHANGE_EVT                  0x0001
 #define SBP_CHAR_CHANGE_EVT                   0x0002
-#define SBP_PERIODIC_EVT                      0x0004
+#define SBP_DRAIN_EVT                         0x0004
 #define SBP_CONN_EVT_END_EVT                  0x0008
+#define SBP_MOTION_EVT                        0x0010
+#define SBP_TELEMETRY_EVT                     0x0020
 
 /*********************************************************************
  * TYPEDEFS
@@ -262,9 +380,6 @@ static ICall_EntityID selfEntity;
 // Semaphore globally used to post events to the application thread
 static ICall_Semaphore sem;
 
-// Clock instances for internal periodic events.
-static Clock_Struct periodicClock;
-
 // Queue object used for app messages
 static Queue_Struct appMsg;
 static Queue_Handle appMsgQueue;
@@ -278,6 +393,9 @@ static Queue_Handle hOadQ;
 // events flag for internal application events.
 static uint16_t events;
 
+// Link profile last requested
+static uint8_t linkProfile = SBP_LINK_PROFILE_NONE;
+
 // Task configuration
 Task_Struct sbpTask;
 Char sbpTaskStack[SBP_TASK_STACK_SIZE];
@@ -373,8 +491,31 @@ static uint8_t SimpleBLEPeripheral_processGATTMsg(gattMsgEvent_t *pMsg);
 static void SimpleBLEPeripheral_processAppMsg(sbpEvt_t *pMsg);
 static void SimpleBLEPeripheral_processStateChangeEvt(gaprole_States_t newState);
 static void SimpleBLEPeripheral_processCharValueChangeEvt(uint8_t paramID);
-static void SimpleBLEPeripheral_performPeriodicTask(void);
-static void SimpleBLEPeripheral_clockHandler(UArg arg);
+static void SimpleBLEPeripheral_initFlippers(void);
+static void SimpleBLEPeripheral_processFlipperCmd(void);
+static void SimpleBLEPeripheral_applyFlipperState(uint16_t newState);
+static void SimpleBLEPeripheral_loadMotionProfiles(void);
+static void SimpleBLEPeripheral_moveFlipper(uint8_t index, bool up);
+static bool SimpleBLEPeripheral_stepFlipper(uint8_t index, uint32_t now);
+static void SimpleBLEPeripheral_beginPhase(sbpMotion_t *m, uint8_t phase,
+                                           uint16_t to, uint32_t durationTicks,
+                                           uint32_t now);
+static uint32_t SimpleBLEPeripheral_rampTicks(sbpMotion_t *m, uint16_t to,
+                                              uint16_t rampMs);
+static void SimpleBLEPeripheral_setFlipperPos(uint8_t index, uint16_t pos);
+static void SimpleBLEPeripheral_motionClockHandler(UArg arg);
+static void SimpleBLEPeripheral_processMotionEvt(void);
+static void SimpleBLEPeripheral_initTelemetry(void);
+static void SimpleBLEPeripheral_setTelemetry(uint8_t window);
+static void SimpleBLEPeripheral_telemetryClockHandler(UArg arg);
+static void SimpleBLEPeripheral_processTelemetryEvt(void);
+static void SimpleBLEPeripheral_echoFlipperCmd(uint8_t seq, uint32_t rxTick);
+static void SimpleBLEPeripheral_processGameCmd(void);
+static void SimpleBLEPeripheral_newGame(void);
+static void SimpleBLEPeripheral_ballDrained(void);
+static void SimpleBLEPeripheral_publishGameState(uint8_t changed);
+static void SimpleBLEPeripheral_updateLinkProfile(void);
+static void SimpleBLEPeripheral_processDrainEvt(void);
 
 static void SimpleBLEPeripheral_sendAttRsp(void);
 static void SimpleBLEPeripheral_freeAttRsp(uint8_t status);
@@ -495,10 +636,6 @@ static void SimpleBLEPeripheral_init(void)
   // Create an RTOS queue for message from profile to be sent to app.
   appMsgQueue = Util_constructQueue(&appMsg);
 
-  // Create one-shot clocks for internal periodic events.
-  Util_constructClock(&periodicClock, SimpleBLEPeripheral_clockHandler,
-                      SBP_PERIODIC_EVT_PERIOD, 0, false, SBP_PERIODIC_EVT);
-
   dispHandle = Display_open(SBP_DISPLAY_TYPE, NULL);
 
   // Setup the GAP
@@ -559,8 +696,12 @@ static void SimpleBLEPeripheral_init(void)
   {
     uint32_t passkey = 0; // passkey "000000"
     uint8_t pairMode = GAPBOND_PAIRING_MODE_WAIT_FOR_REQ;
-    uint8_t mitm = TRUE;
-    uint8_t ioCap = GAPBOND_IO_CAP_DISPLAY_ONLY;
+    // The board has no display: Just Works pairing, so the app can bond
+    // without asking the player for a passkey. Bonding keeps the client's
+    // configurations and lets the phone cache the services across
+    // reconnections.
+    uint8_t mitm = FALSE;
+    uint8_t ioCap = GAPBOND_IO_CAP_NO_INPUT_NO_OUTPUT;
     uint8_t bonding = TRUE;
 
     GAPBondMgr_SetParameter(GAPBOND_DEFAULT_PASSCODE, sizeof(uint32_t),
@@ -610,6 +751,7 @@ static void SimpleBLEPeripheral_init(void)
                                &charValue4);
     SimpleProfile_SetParameter(SIMPLEPROFILE_CHAR5, SIMPLEPROFILE_CHAR5_LEN,
                                charValue5);
+    SimpleBLEPeripheral_publishGameState(SIMPLEPROFILE_GAME_ALL);
   }
 
   // Register callback with SimpleGATTprofile
@@ -630,6 +772,12 @@ static void SimpleBLEPeripheral_init(void)
 
   HCI_LE_ReadMaxDataLenCmd();
 
+  // Use data length extension on new connections, so a whole ATT packet of
+  // the larger MTU fits into one packet on air. The stack is Bluetooth 4.2,
+  // the LE 2M PHY isn't available.
+  HCI_LE_WriteSuggestedDefaultDataLenCmd(SBP_SUGGESTED_TX_OCTETS,
+                                         SBP_SUGGESTED_TX_TIME);
+
 #if defined FEATURE_OAD
 #if defined (HAL_IMAGE_A)
   Display_print0(dispHandle, 0, 0, "BLE Peripheral A");
@@ -675,6 +823,9 @@ static void SimpleBLEPeripheral_taskFxn(UArg a0, UArg a1)
 
     //ledPinHandle = PIN_open(&ledPinState, ledPinTable); //open LED only once
 
+    SimpleBLEPeripheral_initFlippers();
+    SimpleBLEPeripheral_initTelemetry();
+
     /* DONE */
 
   // Application main loop
@@ -738,14 +889,34 @@ static void SimpleBLEPeripheral_taskFxn(UArg a0, UArg a1)
       }
     }
 
-    if (events & SBP_PERIODIC_EVT)
+    if (events & SBP_DRAIN_EVT)
+    {
+      // The drain sensor interrupt sets the event too
+      UInt key = Hwi_disable();
+      events &= ~SBP_DRAIN_EVT;
+      Hwi_restore(key);
+
+      SimpleBLEPeripheral_processDrainEvt();
+    }
+
+    if (events & SBP_MOTION_EVT)
     {
-      events &= ~SBP_PERIODIC_EVT;
+      // Set by the motion clock's interrupt
+      UInt key = Hwi_disable();
+      events &= ~SBP_MOTION_EVT;
+      Hwi_restore(key);
 
-      Util_startClock(&periodicClock);
+      SimpleBLEPeripheral_processMotionEvt();
+    }
+
+    if (events & SBP_TELEMETRY_EVT)
+    {
+      // Set by the telemetry clock's interrupt
+      UInt key = Hwi_disable();
+      events &= ~SBP_TELEMETRY_EVT;
+      Hwi_restore(key);
 
-      // Perform periodic application task
-      SimpleBLEPeripheral_performPeriodicTask();
+      SimpleBLEPeripheral_processTelemetryEvt();
     }
 
 #ifdef FEATURE_OAD
@@ -853,7 +1024,7 @@ static uint8_t SimpleBLEPeripheral_processGATTMsg(gattMsgEvent_t *pMsg)
   else if (pMsg->method == ATT_MTU_UPDATED_EVENT)
   {
     // MTU size updated
-    Display_print1(dispHandle, 5, 0, "MTU Size: $d", pMsg->msg.mtuEvt.MTU);
+    Display_print1(dispHandle, 5, 0, "MTU Size: %d", pMsg->msg.mtuEvt.MTU);
   }
 
   // Free message payload. Needed only for ATT Protocol messages
@@ -1062,8 +1233,6 @@ static void SimpleBLEPeripheral_processStateChangeEvt(gaprole_States_t newState)
         linkDBInfo_t linkInfo;
         uint8_t numActive = 0;
 
-        Util_startClock(&periodicClock);
-
         numActive = linkDB_NumActive();
 
         // Use numActive to determine the connection handle of the last
@@ -1112,8 +1281,8 @@ static void SimpleBLEPeripheral_processStateChangeEvt(gaprole_States_t newState)
       break;
 
     case GAPROLE_WAITING:
-      Util_stopClock(&periodicClock);
       SimpleBLEPeripheral_freeAttRsp(bleNotConnected);
+      SimpleBLEPeripheral_setTelemetry(0);
 
       Display_print0(dispHandle, 2, 0, "Disconnected");
 
@@ -1123,6 +1292,7 @@ static void SimpleBLEPeripheral_processStateChangeEvt(gaprole_States_t newState)
 
     case GAPROLE_WAITING_AFTER_TIMEOUT:
       SimpleBLEPeripheral_freeAttRsp(bleNotConnected);
+      SimpleBLEPeripheral_setTelemetry(0);
 
       Display_print0(dispHandle, 2, 0, "Timed Out");
 
@@ -1189,9 +1359,20 @@ static void SimpleBLEPeripheral_processCharValueChangeEvt(uint8_t paramID)
       break;
 
     case SIMPLEPROFILE_CHAR3:
-      SimpleProfile_GetParameter(SIMPLEPROFILE_CHAR3, &newValue);
+      SimpleBLEPeripheral_processFlipperCmd();
+      break;
+
+    case SIMPLEPROFILE_CHAR6:
+      SimpleBLEPeripheral_processGameCmd();
+      break;
 
-      Display_print1(dispHandle, 4, 0, "Char 3: %d", (uint16_t)newValue);
+    case SIMPLEPROFILE_CHAR8:
+      SimpleBLEPeripheral_loadMotionProfiles();
+      break;
+
+    case SIMPLEPROFILE_CHAR9:
+      SimpleProfile_GetParameter(SIMPLEPROFILE_CHAR9_WINDOW, &newValue);
+      SimpleBLEPeripheral_setTelemetry(newValue);
       break;
 
     default:
@@ -1202,39 +1383,890 @@ static void SimpleBLEPeripheral_processCharValueChangeEvt(uint8_t paramID)
 }
 
 /*********************************************************************
- * @fn      SimpleBLEPeripheral_performPeriodicTask
+ * @fn      SimpleBLEPeripheral_initFlippers
  *
- * @brief   Perform a periodic application task. This function gets called
- *          every five seconds (SBP_PERIODIC_EVT_PERIOD). In this example,
- *          the value of the third characteristic in the SimpleGATTProfile
- *          service is retrieved from the profile, and then copied into the
- *          value of the the fourth characteristic.
+ * @brief   Open and start the PWM outputs driving the flipper servos.
  *
  * @param   None.
  *
  * @return  None.
  */
-static void SimpleBLEPeripheral_performPeriodicTask(void)
+static void SimpleBLEPeripheral_initFlippers(void)
 {
-#ifndef FEATURE_OAD_ONCHIP
-  uint8_t valueToCopy;
-  if (notify)
+  PWM_Params params;
+
+  PWM_init();
+
+  PWM_Params_init(&params);
+  params.dutyUnits = PWM_DUTY_US;
+  params.dutyValue = 0;
+  params.periodUnits = PWM_PERIOD_US;
+  params.periodValue = FLIPPER_PWM_PERIOD;
+
+  leftFlipperPwm = PWM_open(Board_PWM0, &params);
+  if (leftFlipperPwm == NULL) {
+      /* Board_PWM0 did not open */
+      while (1);
+  }
+  PWM_start(leftFlipperPwm);
+
+  if (Board_PWM1 != Board_PWM0) {
+      rightFlipperPwm = PWM_open(Board_PWM1, &params);
+      if (rightFlipperPwm == NULL) {
+          /* Board_PWM1 did not open */
+          while (1);
+      }
+      PWM_start(rightFlipperPwm);
+  }
+
+  // Runs only while a flipper moves
+  Util_constructClock(&motionClock, SimpleBLEPeripheral_motionClockHandler,
+                      MOTION_STEP_MS, MOTION_STEP_MS, false, 0);
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_processFlipperCmd
+ *
+ * @brief   Apply the commands queued by characteristic 3, oldest first. A
+ *          command is either a flipper state frame carrying the state of
+ *          all actuators, or a legacy one byte opcode moving a single
+ *          flipper. Writes that arrived since the last call are all taken
+ *          now; their own change events then find the queue empty.
+ *
+ * @param   None.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_processFlipperCmd(void)
+{
+  uint8_t cmd[SIMPLEPROFILE_CHAR3_LEN];
+  uint8_t len;
+  uint32_t rxTick;
+
+  while (SimpleProfile_GetFlipperCmd(cmd, &len, &rxTick) == SUCCESS)
+  {
+    uint16_t newState = flipperState;
+
+    if (len >= SIMPLEPROFILE_FRAME_LEN &&
+        cmd[SIMPLEPROFILE_FRAME_VERSION_IDX] >= SIMPLEPROFILE_FRAME_VERSION)
+    {
+      // Newer frame versions only append fields
+      flipperSeq = cmd[SIMPLEPROFILE_FRAME_SEQ_IDX];
+      newState = BUILD_UINT16(cmd[SIMPLEPROFILE_FRAME_STATE_IDX],
+                              cmd[SIMPLEPROFILE_FRAME_STATE_IDX + 1]);
+
+      SimpleBLEPeripheral_applyFlipperState(newState);
+      SimpleBLEPeripheral_echoFlipperCmd(flipperSeq, rxTick);
+      continue;
+    }
+    else if (len == 1)
+    {
+      switch (cmd[0])
+      {
+        case LPADDLE_UP:
+          newState |= SIMPLEPROFILE_ACT_LEFT_FLIPPER;
+          break;
+        case LPADDLE_DOWN:
+          newState &= ~SIMPLEPROFILE_ACT_LEFT_FLIPPER;
+          break;
+        case RPADDLE_UP:
+          newState |= SIMPLEPROFILE_ACT_RIGHT_FLIPPER;
+          break;
+        case RPADDLE_DOWN:
+          newState &= ~SIMPLEPROFILE_ACT_RIGHT_FLIPPER;
+          break;
+        default:
+          break;
+      }
+    }
+    else
+    {
+      // Unknown command
+      continue;
+    }
+
+    SimpleBLEPeripheral_applyFlipperState(newState);
+  }
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_applyFlipperState
+ *
+ * @brief   Move the servos whose bit changed, along their motion profiles.
+ *          Actuators without a servo (plunger, nudge) are ignored for now.
+ *
+ * @param   newState - actuator bitmask.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_applyFlipperState(uint16_t newState)
+{
+  uint16_t changed = flipperState ^ newState;
+
+  if (changed & SIMPLEPROFILE_ACT_LEFT_FLIPPER)
+  {
+    SimpleBLEPeripheral_moveFlipper(0, (newState & SIMPLEPROFILE_ACT_LEFT_FLIPPER) != 0);
+  }
+  if (changed & SIMPLEPROFILE_ACT_RIGHT_FLIPPER)
+  {
+    SimpleBLEPeripheral_moveFlipper(1, (newState & SIMPLEPROFILE_ACT_RIGHT_FLIPPER) != 0);
+  }
+
+  flipperState = newState;
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_loadMotionProfiles
+ *
+ * @brief   Take over the motion profile table written to characteristic 8.
+ *          The profile checked its length and version. Angles beyond the
+ *          fixed up position are clamped. A move in progress keeps its
+ *          current phase.
+ *
+ * @param   None.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_loadMotionProfiles(void)
+{
+  uint8_t table[SIMPLEPROFILE_CHAR8_LEN];
+  uint8_t count;
+  uint8_t i;
+
+  SimpleProfile_GetParameter(SIMPLEPROFILE_CHAR8, table);
+  count = table[SIMPLEPROFILE_MOTION_COUNT_IDX];
+
+  for (i = 0; i < SIMPLEPROFILE_MOTION_MAX; i++)
+  {
+    sbpMotionProfile_t *p = &flipperMotion[i].profile;
+    uint8_t *src = &table[SIMPLEPROFILE_MOTION_HEADER_LEN + i * SIMPLEPROFILE_MOTION_LEN];
+    uint8_t upAngle = src[SIMPLEPROFILE_MOTION_ANGLE_IDX];
+    uint8_t holdAngle = src[SIMPLEPROFILE_MOTION_HOLD_IDX];
+
+    p->enabled = (i < count);
+    if (!p->enabled)
+    {
+      continue;
+    }
+
+    if (upAngle > SIMPLEPROFILE_MOTION_MAX_ANGLE)
+    {
+      upAngle = SIMPLEPROFILE_MOTION_MAX_ANGLE;
+    }
+    if (holdAngle > upAngle)
+    {
+      holdAngle = upAngle;
+    }
+    p->upPos = ((uint32_t)upAngle * PADDLE_TRAVEL) / SIMPLEPROFILE_MOTION_MAX_ANGLE;
+    p->holdPos = ((uint32_t)holdAngle * PADDLE_TRAVEL) / SIMPLEPROFILE_MOTION_MAX_ANGLE;
+    p->riseMs = src[SIMPLEPROFILE_MOTION_RISE_IDX];
+    p->holdDelayMs = src[SIMPLEPROFILE_MOTION_DELAY_IDX];
+    p->fallMs = src[SIMPLEPROFILE_MOTION_FALL_IDX];
+    p->timeoutMs = BUILD_UINT16(src[SIMPLEPROFILE_MOTION_TIMEOUT_IDX],
+                                src[SIMPLEPROFILE_MOTION_TIMEOUT_IDX + 1]);
+  }
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_moveFlipper
+ *
+ * @brief   Start a flipper's motion on an edge. The first step is applied
+ *          right away, the motion clock does the rest. Without a profile
+ *          the flipper jumps to the fixed position.
+ *
+ * @param   index - flipper, 0 for the left one.
+ * @param   up - the new state of its bit.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_moveFlipper(uint8_t index, bool up)
+{
+  sbpMotion_t *m = &flipperMotion[index];
+  uint32_t now = Clock_getTicks();
+
+  if (!m->profile.enabled)
+  {
+    m->phase = MOTION_REST;
+    SimpleBLEPeripheral_setFlipperPos(index, up ? PADDLE_TRAVEL : 0);
+    return;
+  }
+
+  if (up)
+  {
+    m->upTick = now;
+    SimpleBLEPeripheral_beginPhase(m, MOTION_RISE, m->profile.upPos,
+        SimpleBLEPeripheral_rampTicks(m, m->profile.upPos, m->profile.riseMs), now);
+  }
+  else
+  {
+    // From wherever the flipper is, also mid rise
+    SimpleBLEPeripheral_beginPhase(m, MOTION_FALL, 0,
+        SimpleBLEPeripheral_rampTicks(m, 0, m->profile.fallMs), now);
+  }
+
+  if (SimpleBLEPeripheral_stepFlipper(index, now) && !Util_isActive(&motionClock))
+  {
+    Util_startClock(&motionClock);
+  }
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_stepFlipper
+ *
+ * @brief   Apply a flipper's position for the current tick and move on to
+ *          the next phase when the current one is over.
+ *
+ * @param   index - flipper, 0 for the left one.
+ * @param   now - clock tick.
+ *
+ * @return  TRUE while the flipper still needs steps.
+ */
+static bool SimpleBLEPeripheral_stepFlipper(uint8_t index, uint32_t now)
+{
+  sbpMotion_t *m = &flipperMotion[index];
+  sbpMotionProfile_t *p = &m->profile;
+  uint32_t elapsed = now - m->startTick;
+  bool done = (elapsed >= m->durationTicks);
+
+  if (m->phase == MOTION_REST)
+  {
+    return FALSE;
+  }
+
+  if (m->phase != MOTION_FALL && p->timeoutMs &&
+      (now - m->upTick) >= ((uint32_t)p->timeoutMs * 1000) / Clock_tickPeriod)
+  {
+    // Auto-release, the bit stays set until the next down edge
+    SimpleBLEPeripheral_beginPhase(m, MOTION_FALL, 0,
+        SimpleBLEPeripheral_rampTicks(m, 0, p->fallMs), now);
+    elapsed = 0;
+    done = (m->durationTicks == 0);
+  }
+
+  if (m->phase == MOTION_HELD)
+  {
+    // Only waiting for the timeout
+    return (p->timeoutMs != 0);
+  }
+
+  if (done)
+  {
+    SimpleBLEPeripheral_setFlipperPos(index, m->to);
+  }
+  else
+  {
+    SimpleBLEPeripheral_setFlipperPos(index, (uint16_t)((int32_t)m->from +
+        ((int32_t)m->to - (int32_t)m->from) * (int32_t)elapsed /
+        (int32_t)m->durationTicks));
+    return TRUE;
+  }
+
+  switch (m->phase)
+  {
+    case MOTION_RISE:
+      SimpleBLEPeripheral_beginPhase(m, MOTION_UP, p->upPos,
+          ((uint32_t)p->holdDelayMs * 1000) / Clock_tickPeriod, now);
+      break;
+
+    case MOTION_UP:
+      if (p->holdPos != p->upPos)
+      {
+        SimpleBLEPeripheral_beginPhase(m, MOTION_HOLD, p->holdPos,
+            SimpleBLEPeripheral_rampTicks(m, p->holdPos, p->fallMs), now);
+      }
+      else
+      {
+        m->phase = MOTION_HELD;
+      }
+      break;
+
+    case MOTION_HOLD:
+      m->phase = MOTION_HELD;
+      break;
+
+    default:
+      m->phase = MOTION_REST;
+      return FALSE;
+  }
+
+  return (m->phase != MOTION_HELD || p->timeoutMs != 0);
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_beginPhase
+ *
+ * @brief   Start a phase moving from the flipper's current position.
+ *
+ * @param   m - the flipper's motion.
+ * @param   phase - the new phase.
+ * @param   to - position at its end.
+ * @param   durationTicks - its length in clock ticks.
+ * @param   now - clock tick.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_beginPhase(sbpMotion_t *m, uint8_t phase,
+                                           uint16_t to, uint32_t durationTicks,
+                                           uint32_t now)
+{
+  m->phase = phase;
+  m->from = m->pos;
+  m->to = to;
+  m->startTick = now;
+  m->durationTicks = durationTicks;
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_rampTicks
+ *
+ * @brief   Length of a ramp from the flipper's current position, the ramp
+ *          time being for the whole travel from rest to the up angle.
+ *
+ * @param   m - the flipper's motion.
+ * @param   to - position at the end of the ramp.
+ * @param   rampMs - ramp time in milliseconds.
+ *
+ * @return  The length in clock ticks.
+ */
+static uint32_t SimpleBLEPeripheral_rampTicks(sbpMotion_t *m, uint16_t to,
+                                              uint16_t rampMs)
+{
+  uint32_t distance = (m->pos > to) ? m->pos - to : to - m->pos;
+
+  if (m->profile.upPos == 0)
+  {
+    return 0;
+  }
+  if (distance > m->profile.upPos)
+  {
+    distance = m->profile.upPos;
+  }
+  return (((uint32_t)rampMs * 1000) / Clock_tickPeriod) * distance / m->profile.upPos;
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_setFlipperPos
+ *
+ * @brief   Set a flipper servo's duty.
+ *
+ * @param   index - flipper, 0 for the left one.
+ * @param   pos - microseconds of travel from rest.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_setFlipperPos(uint8_t index, uint16_t pos)
+{
+  flipperMotion[index].pos = pos;
+
+  if (index == 0)
+  {
+    if (leftFlipperPwm)
+    {
+      PWM_setDuty(leftFlipperPwm, PADDLE_DOWN + pos);
+    }
+  }
+  // The right servo is mounted mirrored
+  else if (rightFlipperPwm)
+  {
+    PWM_setDuty(rightFlipperPwm, PADDLE_UP - pos);
+  }
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_motionClockHandler
+ *
+ * @brief   Motion clock, once per servo period while a flipper moves.
+ *
+ * @param   arg - unused.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_motionClockHandler(UArg arg)
+{
+  // Store the event.
+  events |= SBP_MOTION_EVT;
+
+  // Wake up the application.
+  Semaphore_post(sem);
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_processMotionEvt
+ *
+ * @brief   Step the moving flippers, stop the clock once none moves.
+ *
+ * @param   None.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_processMotionEvt(void)
+{
+  uint32_t now = Clock_getTicks();
+  bool active = FALSE;
+  uint8_t i;
+
+  for (i = 0; i < SIMPLEPROFILE_MOTION_MAX; i++)
+  {
+    if (SimpleBLEPeripheral_stepFlipper(i, now))
+    {
+      active = TRUE;
+    }
+  }
+
+  if (!active)
   {
-      valueToCopy = --number_of_lives_left;
-      SimpleProfile_SetParameter(SIMPLEPROFILE_CHAR4, sizeof(uint8_t), &valueToCopy);
-      notify = 0;
+    Util_stopClock(&motionClock);
   }
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_initTelemetry
+ *
+ * @brief   Open the force sensor's ADC input. Without it the telemetry
+ *          stream stays off.
+ *
+ * @param   None.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_initTelemetry(void)
+{
+  ADC_Params params;
+
+  ADC_init();
+
+  ADC_Params_init(&params);
+  forceAdc = ADC_open(Board_ADC0, &params);
+
+  Util_constructClock(&telemetryClock, SimpleBLEPeripheral_telemetryClockHandler,
+                      SIMPLEPROFILE_TELEMETRY_SAMPLE_MS,
+                      SIMPLEPROFILE_TELEMETRY_SAMPLE_MS, false, 0);
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_setTelemetry
+ *
+ * @brief   Start, restart or stop the telemetry stream.
+ *
+ * @param   window - samples per point, 0 stops the stream.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_setTelemetry(uint8_t window)
+{
+  UInt key;
+
+  Util_stopClock(&telemetryClock);
+
+  if (window != 0 && window < SIMPLEPROFILE_TELEMETRY_MIN_WINDOW)
+  {
+    window = SIMPLEPROFILE_TELEMETRY_MIN_WINDOW;
+  }
+  if (forceAdc == NULL)
+  {
+    window = 0;
+  }
+
+  // The clock is stopped, but may have been running its handler
+  key = Hwi_disable();
+  telemetryWindow = window;
+  telemetryCount = 0;
+  telemetryPacket[telemetryFill][SIMPLEPROFILE_TELEMETRY_COUNT_IDX] = 0;
+  Hwi_restore(key);
+
+  if (window != 0)
+  {
+    Util_startClock(&telemetryClock);
+  }
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_telemetryClockHandler
+ *
+ * @brief   Telemetry clock, samples the force sensor and reduces the
+ *          samples to points. Runs in Swi context, ADC_convert polls the
+ *          conversion.
+ *
+ * @param   arg - unused.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_telemetryClockHandler(UArg arg)
+{
+  uint16_t sample;
+  uint8_t *packet = telemetryPacket[telemetryFill];
+  uint8_t *point;
+  uint8_t count;
+
+  if (telemetryWindow == 0 ||
+      ADC_convert(forceAdc, &sample) != ADC_STATUS_SUCCESS)
+  {
+    return;
+  }
+
+  if (telemetryCount == 0)
+  {
+    telemetryMin = sample;
+    telemetryMax = sample;
+    telemetrySum = 0;
+  }
+  else if (sample < telemetryMin)
+  {
+    telemetryMin = sample;
+  }
+  else if (sample > telemetryMax)
+  {
+    telemetryMax = sample;
+  }
+  telemetrySum += sample;
+
+  if (++telemetryCount < telemetryWindow)
+  {
+    return;
+  }
+  telemetryCount = 0;
+
+  // 12 bit samples to 8 bits
+  count = packet[SIMPLEPROFILE_TELEMETRY_COUNT_IDX];
+  point = &packet[SIMPLEPROFILE_TELEMETRY_HEADER_LEN +
+                  count * SIMPLEPROFILE_TELEMETRY_POINT_LEN];
+  point[0] = telemetryMin >> 4;
+  point[1] = telemetryMax >> 4;
+  point[2] = (telemetrySum / telemetryWindow) >> 4;
+  packet[SIMPLEPROFILE_TELEMETRY_COUNT_IDX] = ++count;
+
+  if (count < SIMPLEPROFILE_TELEMETRY_MAX_POINTS)
+  {
+    return;
+  }
+
+  packet[SIMPLEPROFILE_TELEMETRY_VERSION_IDX] = SIMPLEPROFILE_TELEMETRY_VERSION;
+  packet[SIMPLEPROFILE_TELEMETRY_SEQ_IDX] = telemetrySeq++;
+  packet[SIMPLEPROFILE_TELEMETRY_WINDOW_IDX] = telemetryWindow;
+
+  if (!telemetryReady)
+  {
+    telemetryFill ^= 1;
+    telemetryReady = true;
+
+    // Store the event.
+    events |= SBP_TELEMETRY_EVT;
+
+    // Wake up the application.
+    Semaphore_post(sem);
+  }
+  // else the application is behind, the packet is dropped and its sequence
+  // number skipped
+
+  telemetryPacket[telemetryFill][SIMPLEPROFILE_TELEMETRY_COUNT_IDX] = 0;
+}
 
-  // Call to retrieve the value of the third characteristic in the profile
-  if (SimpleProfile_GetParameter(SIMPLEPROFILE_CHAR3, &valueToCopy) == SUCCESS)
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_processTelemetryEvt
+ *
+ * @brief   Notify the telemetry packet the clock completed.
+ *
+ * @param   None.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_processTelemetryEvt(void)
+{
+  if (!telemetryReady)
   {
-    // Call to set that value of the fourth characteristic in the profile.
-    // Note that if notifications of the fourth characteristic have been
-    // enabled by a GATT client device, then a notification will be sent
-    // every time this function is called.
-    //SimpleProfile_SetParameter(SIMPLEPROFILE_CHAR4, sizeof(uint8_t),
-    //                           &valueToCopy);
+    return;
   }
+
+  // The clock fills the other packet meanwhile
+  SimpleProfile_SetParameter(SIMPLEPROFILE_CHAR9, SIMPLEPROFILE_CHAR9_LEN,
+                             telemetryPacket[telemetryFill ^ 1]);
+  telemetryReady = false;
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_echoFlipperCmd
+ *
+ * @brief   Echo a flipper state frame with the clock ticks at which it was
+ *          received and applied to the servos. Only notified if the client
+ *          enabled the echo mode.
+ *
+ * @param   seq - sequence number of the frame.
+ * @param   rxTick - clock tick at which the frame was received.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_echoFlipperCmd(uint8_t seq, uint32_t rxTick)
+{
+  uint8_t echo[SIMPLEPROFILE_CHAR7_LEN];
+  uint32_t pwmTick = Clock_getTicks();
+
+  echo[SIMPLEPROFILE_ECHO_VERSION_IDX] = SIMPLEPROFILE_ECHO_VERSION;
+  echo[SIMPLEPROFILE_ECHO_SEQ_IDX] = seq;
+  echo[SIMPLEPROFILE_ECHO_RX_IDX] = BREAK_UINT32(rxTick, 0);
+  echo[SIMPLEPROFILE_ECHO_RX_IDX + 1] = BREAK_UINT32(rxTick, 1);
+  echo[SIMPLEPROFILE_ECHO_RX_IDX + 2] = BREAK_UINT32(rxTick, 2);
+  echo[SIMPLEPROFILE_ECHO_RX_IDX + 3] = BREAK_UINT32(rxTick, 3);
+  echo[SIMPLEPROFILE_ECHO_PWM_IDX] = BREAK_UINT32(pwmTick, 0);
+  echo[SIMPLEPROFILE_ECHO_PWM_IDX + 1] = BREAK_UINT32(pwmTick, 1);
+  echo[SIMPLEPROFILE_ECHO_PWM_IDX + 2] = BREAK_UINT32(pwmTick, 2);
+  echo[SIMPLEPROFILE_ECHO_PWM_IDX + 3] = BREAK_UINT32(pwmTick, 3);
+  echo[SIMPLEPROFILE_ECHO_PERIOD_IDX] = LO_UINT16(Clock_tickPeriod);
+  echo[SIMPLEPROFILE_ECHO_PERIOD_IDX + 1] = HI_UINT16(Clock_tickPeriod);
+
+  SimpleProfile_SetParameter(SIMPLEPROFILE_CHAR7, SIMPLEPROFILE_CHAR7_LEN,
+                             echo);
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_processGameCmd
+ *
+ * @brief   Process a game command written to Characteristic 6.
+ *
+ * @param   None.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_processGameCmd(void)
+{
+  uint8_t cmd;
+
+  SimpleProfile_GetParameter(SIMPLEPROFILE_CHAR6_CMD, &cmd);
+
+  switch (cmd)
+  {
+    case SIMPLEPROFILE_GAME_CMD_NEW_GAME:
+      SimpleBLEPeripheral_newGame();
+      break;
+
+    case SIMPLEPROFILE_GAME_CMD_PAUSE:
+      if (gamePhase == SIMPLEPROFILE_PHASE_PLAYING)
+      {
+        gamePhase = SIMPLEPROFILE_PHASE_PAUSED;
+        SimpleBLEPeripheral_publishGameState(SIMPLEPROFILE_GAME_PHASE);
+      }
+      break;
+
+    case SIMPLEPROFILE_GAME_CMD_RESUME:
+      if (gamePhase == SIMPLEPROFILE_PHASE_PAUSED)
+      {
+        gamePhase = SIMPLEPROFILE_PHASE_PLAYING;
+        SimpleBLEPeripheral_publishGameState(SIMPLEPROFILE_GAME_PHASE);
+      }
+      break;
+
+    default:
+      // Unknown command
+      break;
+  }
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_newGame
+ *
+ * @brief   Reset the game state for a new game.
+ *
+ * @param   None.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_newGame(void)
+{
+  gamePhase = SIMPLEPROFILE_PHASE_PLAYING;
+  gameLives = NUMBER_OF_INITIAL_LIVES;
+  gameBall = 1;
+  gameScore = 0;
+
+  SimpleBLEPeripheral_publishGameState(SIMPLEPROFILE_GAME_ALL);
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_ballDrained
+ *
+ * @brief   Take a life for a drained ball, ending the game after the
+ *          last one. Drains outside of a game are ignored.
+ *
+ * @param   None.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_ballDrained(void)
+{
+  uint8_t changed = SIMPLEPROFILE_GAME_LIVES;
+
+  if (gamePhase != SIMPLEPROFILE_PHASE_PLAYING || gameLives == 0)
+  {
+    return;
+  }
+
+  if (--gameLives == 0)
+  {
+    gamePhase = SIMPLEPROFILE_PHASE_GAME_OVER;
+    changed |= SIMPLEPROFILE_GAME_PHASE;
+  }
+  else
+  {
+    gameBall++;
+    changed |= SIMPLEPROFILE_GAME_BALL;
+  }
+
+  SimpleBLEPeripheral_publishGameState(changed);
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_publishGameState
+ *
+ * @brief   Store the game state in Characteristic 6 under the next
+ *          sequence number, notifying it if notifications are enabled.
+ *          Every frame carries the whole state, so a client that missed
+ *          a frame can resynchronize from the next one.
+ *
+ * @param   changed - SIMPLEPROFILE_GAME_* bits of the fields that changed.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_publishGameState(uint8_t changed)
+{
+  uint8_t frame[SIMPLEPROFILE_CHAR6_LEN];
+
+  gameSeq++;
+
+  frame[SIMPLEPROFILE_GAME_VERSION_IDX] = SIMPLEPROFILE_GAME_VERSION;
+  frame[SIMPLEPROFILE_GAME_SEQ_IDX] = gameSeq;
+  frame[SIMPLEPROFILE_GAME_CHANGED_IDX] = changed;
+  frame[SIMPLEPROFILE_GAME_PHASE_IDX] = gamePhase;
+  frame[SIMPLEPROFILE_GAME_LIVES_IDX] = gameLives;
+  frame[SIMPLEPROFILE_GAME_BALL_IDX] = gameBall;
+  frame[SIMPLEPROFILE_GAME_SCORE_IDX] = BREAK_UINT32(gameScore, 0);
+  frame[SIMPLEPROFILE_GAME_SCORE_IDX + 1] = BREAK_UINT32(gameScore, 1);
+  frame[SIMPLEPROFILE_GAME_SCORE_IDX + 2] = BREAK_UINT32(gameScore, 2);
+  frame[SIMPLEPROFILE_GAME_SCORE_IDX + 3] = BREAK_UINT32(gameScore, 3);
+  frame[SIMPLEPROFILE_GAME_AGE_IDX] = LO_UINT16(gameEventAge);
+  frame[SIMPLEPROFILE_GAME_AGE_IDX + 1] = HI_UINT16(gameEventAge);
+
+  SimpleProfile_SetParameter(SIMPLEPROFILE_CHAR6, SIMPLEPROFILE_CHAR6_LEN,
+                             frame);
+
+  if (changed & SIMPLEPROFILE_GAME_PHASE)
+  {
+    SimpleBLEPeripheral_updateLinkProfile();
+  }
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_updateLinkProfile
+ *
+ * @brief   Select the link profile for the game phase: competitive while
+ *          playing, idle otherwise. The profile becomes the desired
+ *          connection parameters, used by the automatic update request of
+ *          new connections, and is requested right away when connected.
+ *
+ * @param   None.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_updateLinkProfile(void)
+{
+  uint8_t profile;
+  uint16_t minInterval;
+  uint16_t maxInterval;
+  uint16_t slaveLatency;
+  uint8_t state;
+  uint8_t updateReq = TRUE;
+
+  if (gamePhase == SIMPLEPROFILE_PHASE_PLAYING)
+  {
+    profile = SBP_LINK_PROFILE_COMPETITIVE;
+    minInterval = SBP_COMPETITIVE_MIN_CONN_INTERVAL;
+    maxInterval = SBP_COMPETITIVE_MAX_CONN_INTERVAL;
+    slaveLatency = SBP_COMPETITIVE_SLAVE_LATENCY;
+  }
+  else
+  {
+    profile = SBP_LINK_PROFILE_IDLE;
+    minInterval = SBP_IDLE_MIN_CONN_INTERVAL;
+    maxInterval = SBP_IDLE_MAX_CONN_INTERVAL;
+    slaveLatency = SBP_IDLE_SLAVE_LATENCY;
+  }
+
+  if (profile == linkProfile)
+  {
+    return;
+  }
+  linkProfile = profile;
+
+  GAPRole_SetParameter(GAPROLE_MIN_CONN_INTERVAL, sizeof(uint16_t),
+                       &minInterval);
+  GAPRole_SetParameter(GAPROLE_MAX_CONN_INTERVAL, sizeof(uint16_t),
+                       &maxInterval);
+  GAPRole_SetParameter(GAPROLE_SLAVE_LATENCY, sizeof(uint16_t),
+                       &slaveLatency);
+
+  GAPRole_GetParameter(GAPROLE_STATE, &state);
+  if (state == GAPROLE_CONNECTED || state == GAPROLE_CONNECTED_ADV)
+  {
+    if (GAPRole_SetParameter(GAPROLE_PARAM_UPDATE_REQ, sizeof(uint8_t),
+                             &updateReq) != SUCCESS)
+    {
+      // Too soon after the previous update, retry on the next phase change
+      linkProfile = SBP_LINK_PROFILE_NONE;
+    }
+  }
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_drainEdge
+ *
+ * @brief   Called from the pin interrupt on a drain sensor edge. Wakes the
+ *          application right away; edges within DRAIN_HOLDOFF_MS of an
+ *          accepted one are bounces of the same ball and are ignored.
+ *
+ * @param   None.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_drainEdge(void)
+{
+  uint32_t now = Clock_getTicks();
+
+  if (!drainArmed &&
+      (now - drainTick) < (DRAIN_HOLDOFF_MS * 1000) / Clock_tickPeriod)
+  {
+    return;
+  }
+  drainArmed = false;
+  drainTick = now;
+
+  // Store the event.
+  events |= SBP_DRAIN_EVT;
+
+  // Wake up the application.
+  Semaphore_post(sem);
+}
+
+/*********************************************************************
+ * @fn      SimpleBLEPeripheral_processDrainEvt
+ *
+ * @brief   Process a ball drain reported by the drain sensor interrupt.
+ *          The game state notification carries the time the event waited
+ *          on the board.
+ *
+ * @param   None.
+ *
+ * @return  None.
+ */
+static void SimpleBLEPeripheral_processDrainEvt(void)
+{
+#ifndef FEATURE_OAD_ONCHIP
+  uint8_t lives;
+  uint32_t age = ((Clock_getTicks() - drainTick) * Clock_tickPeriod) / 1000;
+
+  gameEventAge = (age > 0xFFFF) ? 0xFFFF : (uint16_t)age;
+  SimpleBLEPeripheral_ballDrained();
+  gameEventAge = 0;
+
+  // Legacy drain notification, carries the lives left
+  lives = gameLives;
+  SimpleProfile_SetParameter(SIMPLEPROFILE_CHAR4, sizeof(uint8_t), &lives);
 #endif //!FEATURE_OAD_ONCHIP
 }
 
@@ -1279,24 +2311,6 @@ void SimpleBLEPeripheral_processOadWriteCB(uint8_t event, uint16_t connHandle,
 }
 #endif //FEATURE_OAD
 
-/*********************************************************************
- * @fn      SimpleBLEPeripheral_clockHandler
- *
- * @brief   Handler function for clock timeouts.
- *
- * @param   arg - event type
- *
- * @return  None.
- */
-static void SimpleBLEPeripheral_clockHandler(UArg arg)
-{
-  // Store the event.
-  events |= arg;
-
-  // Wake up the application.
-  Semaphore_post(sem);
-}
-
 /*********************************************************************
  * @fn      SimpleBLEPeripheral_enqueueMsg
  *
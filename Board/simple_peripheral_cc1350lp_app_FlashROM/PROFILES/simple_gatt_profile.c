@@ -63,9 +63,6 @@
 #include <ti/drivers/GPIO.h>
 #include "Board.h"
 
-/* Driver Header files */
-#include <ti/drivers/PWM.h>
-
 /*
  *  ======== pinInterrupt.c ========
  */
@@ -76,19 +73,12 @@
 #include <ti/drivers/power/PowerCC26XX.h>
 #include <ti/drivers/PIN.h>
 #include <ti/drivers/pin/PINCC26XX.h>
+#include <ti/sysbios/knl/Clock.h>
 
 
 /* Global memory storage for a PIN_Config table */
 static PIN_State buttonPinState;
 static PIN_State ledPinState;
-static uint16_t   duty = 1500;
-static PWM_Handle pwm1 = NULL;
-static PWM_Handle pwm2 = NULL;
-static PWM_Params params;
-
-/* Constants for servo */
-#define PADDLE_DOWN 1000
-#define PADDLE_UP   2000
 
 /* Pin driver handles */
 static PIN_Handle buttonPinHandle;
@@ -113,12 +103,20 @@ PIN_Config ledPinTable[] = {
  * CONSTANTS
  */
 
-#define SERVAPP_NUM_ATTR_SUPPORTED        17
+#define SERVAPP_NUM_ATTR_SUPPORTED        32
 
 /*********************************************************************
  * TYPEDEFS
  */
 
+// A queued write to Characteristic 3
+typedef struct
+{
+  uint8 cmd[SIMPLEPROFILE_CHAR3_LEN];
+  uint8 len;
+  uint32 rxTick;   // Clock tick at which it was written
+} simpleProfileFlipperCmd_t;
+
 /*********************************************************************
  * GLOBAL VARIABLES
  */
@@ -158,6 +156,30 @@ CONST uint8 simpleProfilechar5UUID[ATT_BT_UUID_SIZE] =
   LO_UINT16(SIMPLEPROFILE_CHAR5_UUID), HI_UINT16(SIMPLEPROFILE_CHAR5_UUID)
 };
 
+// Characteristic 6 UUID: 0xFFF6
+CONST uint8 simpleProfilechar6UUID[ATT_BT_UUID_SIZE] =
+{ 
+  LO_UINT16(SIMPLEPROFILE_CHAR6_UUID), HI_UINT16(SIMPLEPROFILE_CHAR6_UUID)
+};
+
+// Characteristic 7 UUID: 0xFFF7
+CONST uint8 simpleProfilechar7UUID[ATT_BT_UUID_SIZE] =
+{ 
+  LO_UINT16(SIMPLEPROFILE_CHAR7_UUID), HI_UINT16(SIMPLEPROFILE_CHAR7_UUID)
+};
+
+// Characteristic 8 UUID: 0xFFF8
+CONST uint8 simpleProfilechar8UUID[ATT_BT_UUID_SIZE] =
+{ 
+  LO_UINT16(SIMPLEPROFILE_CHAR8_UUID), HI_UINT16(SIMPLEPROFILE_CHAR8_UUID)
+};
+
+// Characteristic 9 UUID: 0xFFF9
+CONST uint8 simpleProfilechar9UUID[ATT_BT_UUID_SIZE] =
+{ 
+  LO_UINT16(SIMPLEPROFILE_CHAR9_UUID), HI_UINT16(SIMPLEPROFILE_CHAR9_UUID)
+};
+
 /*********************************************************************
  * EXTERNAL VARIABLES
  */
@@ -201,10 +223,18 @@ static uint8 simpleProfileChar2UserDesp[17] = "Characteristic 2";
 
 
 // Simple Profile Characteristic 3 Properties
-static uint8 simpleProfileChar3Props = GATT_PROP_WRITE;
+// Write without response lets the app send flipper commands without waiting
+// a connection event for the acknowledgement
+static uint8 simpleProfileChar3Props = GATT_PROP_WRITE | GATT_PROP_WRITE_NO_RSP;
 
 // Characteristic 3 Value
-static uint8 simpleProfileChar3 = 0;
+static uint8 simpleProfileChar3[SIMPLEPROFILE_CHAR3_LEN] = { 0 };
+
+// Flipper commands the application didn't take yet. The write callback
+// only advances the head, SimpleProfile_GetFlipperCmd only the tail.
+static simpleProfileFlipperCmd_t simpleProfileChar3Queue[SIMPLEPROFILE_CHAR3_QUEUE_LEN];
+static volatile uint8 simpleProfileChar3Head = 0;
+static volatile uint8 simpleProfileChar3Tail = 0;
 
 // Simple Profile Characteristic 3 User Description
 static uint8 simpleProfileChar3UserDesp[17] = "Characteristic 3";
@@ -235,6 +265,71 @@ static uint8 simpleProfileChar5[SIMPLEPROFILE_CHAR5_LEN] = { 0, 0, 0, 0, 0 };
 // Simple Profile Characteristic 5 User Description
 static uint8 simpleProfileChar5UserDesp[17] = "Characteristic 5";
 
+
+// Simple Profile Characteristic 6 Properties
+// The game state is read after (re)connecting and notified on every change;
+// writes carry game commands
+static uint8 simpleProfileChar6Props = GATT_PROP_READ | GATT_PROP_WRITE | GATT_PROP_NOTIFY;
+
+// Characteristic 6 Value, the game state frame
+static uint8 simpleProfileChar6[SIMPLEPROFILE_CHAR6_LEN] = { 0 };
+
+// Last game command written to Characteristic 6
+static uint8 simpleProfileChar6Cmd = 0;
+
+// Simple Profile Characteristic 6 Configuration
+static gattCharCfg_t *simpleProfileChar6Config;
+
+// Simple Profile Characteristic 6 User Description
+static uint8 simpleProfileChar6UserDesp[11] = "Game State";
+
+
+// Simple Profile Characteristic 7 Properties
+static uint8 simpleProfileChar7Props = GATT_PROP_NOTIFY;
+
+// Characteristic 7 Value, the last flipper command echo
+static uint8 simpleProfileChar7[SIMPLEPROFILE_CHAR7_LEN] = { 0 };
+
+// Simple Profile Characteristic 7 Configuration
+static gattCharCfg_t *simpleProfileChar7Config;
+
+// Simple Profile Characteristic 7 User Description
+static uint8 simpleProfileChar7UserDesp[5] = "Echo";
+
+
+// Simple Profile Characteristic 8 Properties
+// Written with a response, the table must not get lost
+static uint8 simpleProfileChar8Props = GATT_PROP_READ | GATT_PROP_WRITE;
+
+// Characteristic 8 Value, the motion profile table; empty until written
+static uint8 simpleProfileChar8[SIMPLEPROFILE_CHAR8_LEN] = { SIMPLEPROFILE_MOTION_VERSION, 0 };
+
+// Number of valid bytes in Characteristic 8
+static uint8 simpleProfileChar8Len = SIMPLEPROFILE_MOTION_HEADER_LEN;
+
+// Simple Profile Characteristic 8 User Description
+static uint8 simpleProfileChar8UserDesp[16] = "Motion Profiles";
+
+
+// Simple Profile Characteristic 9 Properties
+// Notifies the telemetry packets; writes set the window
+static uint8 simpleProfileChar9Props = GATT_PROP_WRITE | GATT_PROP_NOTIFY;
+
+// Characteristic 9 Value, the last telemetry packet
+static uint8 simpleProfileChar9[SIMPLEPROFILE_CHAR9_LEN] = { 0 };
+
+// Number of valid bytes in Characteristic 9
+static uint8 simpleProfileChar9Len = 0;
+
+// Telemetry window last written to Characteristic 9
+static uint8 simpleProfileChar9Window = 0;
+
+// Simple Profile Characteristic 9 Configuration
+static gattCharCfg_t *simpleProfileChar9Config;
+
+// Simple Profile Characteristic 9 User Description
+static uint8 simpleProfileChar9UserDesp[10] = "Telemetry";
+
 /*********************************************************************
  * Profile Attributes - Table
  */
@@ -310,7 +405,7 @@ static gattAttribute_t simpleProfileAttrTbl[SERVAPP_NUM_ATTR_SUPPORTED] =
         { ATT_BT_UUID_SIZE, simpleProfilechar3UUID },
         GATT_PERMIT_WRITE, 
         0, 
-        &simpleProfileChar3 
+        simpleProfileChar3 
       },
 
       // Characteristic 3 User Description
@@ -376,6 +471,126 @@ static gattAttribute_t simpleProfileAttrTbl[SERVAPP_NUM_ATTR_SUPPORTED] =
         0, 
         simpleProfileChar5UserDesp 
       },
+
+    // Characteristic 6 Declaration
+    { 
+      { ATT_BT_UUID_SIZE, characterUUID },
+      GATT_PERMIT_READ, 
+      0,
+      &simpleProfileChar6Props 
+    },
+
+      // Characteristic Value 6
+      { 
+        { ATT_BT_UUID_SIZE, simpleProfilechar6UUID },
+        GATT_PERMIT_READ | GATT_PERMIT_WRITE, 
+        0, 
+        simpleProfileChar6 
+      },
+
+      // Characteristic 6 configuration
+      { 
+        { ATT_BT_UUID_SIZE, clientCharCfgUUID },
+        GATT_PERMIT_READ | GATT_PERMIT_WRITE, 
+        0, 
+        (uint8 *)&simpleProfileChar6Config 
+      },
+
+      // Characteristic 6 User Description
+      { 
+        { ATT_BT_UUID_SIZE, charUserDescUUID },
+        GATT_PERMIT_READ, 
+        0, 
+        simpleProfileChar6UserDesp 
+      },
+
+    // Characteristic 7 Declaration
+    { 
+      { ATT_BT_UUID_SIZE, characterUUID },
+      GATT_PERMIT_READ, 
+      0,
+      &simpleProfileChar7Props 
+    },
+
+      // Characteristic Value 7
+      { 
+        { ATT_BT_UUID_SIZE, simpleProfilechar7UUID },
+        0, 
+        0, 
+        simpleProfileChar7 
+      },
+
+      // Characteristic 7 configuration
+      { 
+        { ATT_BT_UUID_SIZE, clientCharCfgUUID },
+        GATT_PERMIT_READ | GATT_PERMIT_WRITE, 
+        0, 
+        (uint8 *)&simpleProfileChar7Config 
+      },
+
+      // Characteristic 7 User Description
+      { 
+        { ATT_BT_UUID_SIZE, charUserDescUUID },
+        GATT_PERMIT_READ, 
+        0, 
+        simpleProfileChar7UserDesp 
+      },
+
+    // Characteristic 8 Declaration
+    { 
+      { ATT_BT_UUID_SIZE, characterUUID },
+      GATT_PERMIT_READ, 
+      0,
+      &simpleProfileChar8Props 
+    },
+
+      // Characteristic Value 8
+      { 
+        { ATT_BT_UUID_SIZE, simpleProfilechar8UUID },
+        GATT_PERMIT_READ | GATT_PERMIT_WRITE, 
+        0, 
+        simpleProfileChar8 
+      },
+
+      // Characteristic 8 User Description
+      { 
+        { ATT_BT_UUID_SIZE, charUserDescUUID },
+        GATT_PERMIT_READ, 
+        0, 
+        simpleProfileChar8UserDesp 
+      },
+
+    // Characteristic 9 Declaration
+    { 
+      { ATT_BT_UUID_SIZE, characterUUID },
+      GATT_PERMIT_READ, 
+      0,
+      &simpleProfileChar9Props 
+    },
+
+      // Characteristic Value 9
+      { 
+        { ATT_BT_UUID_SIZE, simpleProfilechar9UUID },
+        GATT_PERMIT_WRITE, 
+        0, 
+        simpleProfileChar9 
+      },
+
+      // Characteristic 9 configuration
+      { 
+        { ATT_BT_UUID_SIZE, clientCharCfgUUID },
+        GATT_PERMIT_READ | GATT_PERMIT_WRITE, 
+        0, 
+        (uint8 *)&simpleProfileChar9Config 
+      },
+
+      // Characteristic 9 User Description
+      { 
+        { ATT_BT_UUID_SIZE, charUserDescUUID },
+        GATT_PERMIT_READ, 
+        0, 
+        simpleProfileChar9UserDesp 
+      },
 };
 
 /*********************************************************************
@@ -437,8 +652,38 @@ bStatus_t SimpleProfile_AddService( uint32 services )
     return ( bleMemAllocError );
   }
   
+  simpleProfileChar6Config = (gattCharCfg_t *)ICall_malloc( sizeof(gattCharCfg_t) *
+                                                            linkDBNumConns );
+  if ( simpleProfileChar6Config == NULL )
+  {
+    ICall_free( simpleProfileChar4Config );
+    return ( bleMemAllocError );
+  }
+
+  simpleProfileChar7Config = (gattCharCfg_t *)ICall_malloc( sizeof(gattCharCfg_t) *
+                                                            linkDBNumConns );
+  if ( simpleProfileChar7Config == NULL )
+  {
+    ICall_free( simpleProfileChar4Config );
+    ICall_free( simpleProfileChar6Config );
+    return ( bleMemAllocError );
+  }
+
+  simpleProfileChar9Config = (gattCharCfg_t *)ICall_malloc( sizeof(gattCharCfg_t) *
+                                                            linkDBNumConns );
+  if ( simpleProfileChar9Config == NULL )
+  {
+    ICall_free( simpleProfileChar4Config );
+    ICall_free( simpleProfileChar6Config );
+    ICall_free( simpleProfileChar7Config );
+    return ( bleMemAllocError );
+  }
+
   // Initialize Client Characteristic Configuration attributes
   GATTServApp_InitCharCfg( INVALID_CONNHANDLE, simpleProfileChar4Config );
+  GATTServApp_InitCharCfg( INVALID_CONNHANDLE, simpleProfileChar6Config );
+  GATTServApp_InitCharCfg( INVALID_CONNHANDLE, simpleProfileChar7Config );
+  GATTServApp_InitCharCfg( INVALID_CONNHANDLE, simpleProfileChar9Config );
   
   if ( services & SIMPLEPROFILE_SERVICE )
   {
@@ -522,9 +767,9 @@ bStatus_t SimpleProfile_SetParameter( uint8 param, uint8 len, void *value )
       break;
 
     case SIMPLEPROFILE_CHAR3:
-      if ( len == sizeof ( uint8 ) ) 
+      if ( len >= sizeof ( uint8 ) && len <= SIMPLEPROFILE_CHAR3_LEN ) 
       {
-        simpleProfileChar3 = *((uint8*)value);
+        VOID memcpy( simpleProfileChar3, value, len );
       }
       else
       {
@@ -558,6 +803,66 @@ bStatus_t SimpleProfile_SetParameter( uint8 param, uint8 len, void *value )
         ret = bleInvalidRange;
       }
       break;
+
+    case SIMPLEPROFILE_CHAR6:
+      if ( len == SIMPLEPROFILE_CHAR6_LEN ) 
+      {
+        VOID memcpy( simpleProfileChar6, value, SIMPLEPROFILE_CHAR6_LEN );
+
+        // See if Notification has been enabled
+        GATTServApp_ProcessCharCfg( simpleProfileChar6Config, simpleProfileChar6, FALSE,
+                                    simpleProfileAttrTbl, GATT_NUM_ATTRS( simpleProfileAttrTbl ),
+                                    INVALID_TASK_ID, simpleProfile_ReadAttrCB );
+      }
+      else
+      {
+        ret = bleInvalidRange;
+      }
+      break;
+
+    case SIMPLEPROFILE_CHAR7:
+      if ( len == SIMPLEPROFILE_CHAR7_LEN ) 
+      {
+        VOID memcpy( simpleProfileChar7, value, SIMPLEPROFILE_CHAR7_LEN );
+
+        // Only sent in echo mode, i.e. if Notification has been enabled
+        GATTServApp_ProcessCharCfg( simpleProfileChar7Config, simpleProfileChar7, FALSE,
+                                    simpleProfileAttrTbl, GATT_NUM_ATTRS( simpleProfileAttrTbl ),
+                                    INVALID_TASK_ID, simpleProfile_ReadAttrCB );
+      }
+      else
+      {
+        ret = bleInvalidRange;
+      }
+      break;
+
+    case SIMPLEPROFILE_CHAR9:
+      if ( len <= SIMPLEPROFILE_CHAR9_LEN )
+      {
+        VOID memcpy( simpleProfileChar9, value, len );
+        simpleProfileChar9Len = len;
+
+        // See if Notification has been enabled
+        GATTServApp_ProcessCharCfg( simpleProfileChar9Config, simpleProfileChar9, FALSE,
+                                    simpleProfileAttrTbl, GATT_NUM_ATTRS( simpleProfileAttrTbl ),
+                                    INVALID_TASK_ID, simpleProfile_ReadAttrCB );
+      }
+      else
+      {
+        ret = bleInvalidRange;
+      }
+      break;
+
+    case SIMPLEPROFILE_CHAR9_WINDOW:
+      if ( len == sizeof ( uint8 ) )
+      {
+        simpleProfileChar9Window = *((uint8*)value);
+      }
+      else
+      {
+        ret = bleInvalidRange;
+      }
+      break;
       
     default:
       ret = INVALIDPARAMETER;
@@ -594,7 +899,7 @@ bStatus_t SimpleProfile_GetParameter( uint8 param, void *value )
       break;      
 
     case SIMPLEPROFILE_CHAR3:
-      *((uint8*)value) = simpleProfileChar3;
+      VOID memcpy( value, simpleProfileChar3, SIMPLEPROFILE_CHAR3_LEN );
       break;  
 
     case SIMPLEPROFILE_CHAR4:
@@ -604,6 +909,26 @@ bStatus_t SimpleProfile_GetParameter( uint8 param, void *value )
     case SIMPLEPROFILE_CHAR5:
       VOID memcpy( value, simpleProfileChar5, SIMPLEPROFILE_CHAR5_LEN );
       break;      
+
+    case SIMPLEPROFILE_CHAR6:
+      VOID memcpy( value, simpleProfileChar6, SIMPLEPROFILE_CHAR6_LEN );
+      break;
+
+    case SIMPLEPROFILE_CHAR6_CMD:
+      *((uint8*)value) = simpleProfileChar6Cmd;
+      break;
+
+    case SIMPLEPROFILE_CHAR8:
+      VOID memcpy( value, simpleProfileChar8, SIMPLEPROFILE_CHAR8_LEN );
+      break;
+
+    case SIMPLEPROFILE_CHAR8_SIZE:
+      *((uint8*)value) = simpleProfileChar8Len;
+      break;
+
+    case SIMPLEPROFILE_CHAR9_WINDOW:
+      *((uint8*)value) = simpleProfileChar9Window;
+      break;
       
     default:
       ret = INVALIDPARAMETER;
@@ -613,6 +938,37 @@ bStatus_t SimpleProfile_GetParameter( uint8 param, void *value )
   return ( ret );
 }
 
+/*********************************************************************
+ * @fn      SimpleProfile_GetFlipperCmd
+ *
+ * @brief   Take the oldest flipper command written to Characteristic 3
+ *          from the queue.
+ *
+ * @param   cmd - buffer of SIMPLEPROFILE_CHAR3_LEN bytes for the command
+ * @param   len - number of valid bytes in cmd
+ * @param   rxTick - clock tick at which the command was written
+ *
+ * @return  SUCCESS, or FAILURE if the queue is empty
+ */
+bStatus_t SimpleProfile_GetFlipperCmd( uint8 *cmd, uint8 *len, uint32 *rxTick )
+{
+  uint8 tail = simpleProfileChar3Tail;
+  simpleProfileFlipperCmd_t *pCmd;
+
+  if ( tail == simpleProfileChar3Head )
+  {
+    return ( FAILURE );
+  }
+
+  pCmd = &simpleProfileChar3Queue[tail % SIMPLEPROFILE_CHAR3_QUEUE_LEN];
+  VOID memcpy( cmd, pCmd->cmd, SIMPLEPROFILE_CHAR3_LEN );
+  *len = pCmd->len;
+  *rxTick = pCmd->rxTick;
+  simpleProfileChar3Tail = tail + 1;
+
+  return ( SUCCESS );
+}
+
 /*********************************************************************
  * @fn          simpleProfile_ReadAttrCB
  *
@@ -667,6 +1023,29 @@ static bStatus_t simpleProfile_ReadAttrCB(uint16_t connHandle,
         *pLen = SIMPLEPROFILE_CHAR5_LEN;
         VOID memcpy( pValue, pAttr->pValue, SIMPLEPROFILE_CHAR5_LEN );
         break;
+
+      case SIMPLEPROFILE_CHAR6_UUID:
+        *pLen = SIMPLEPROFILE_CHAR6_LEN;
+        VOID memcpy( pValue, pAttr->pValue, SIMPLEPROFILE_CHAR6_LEN );
+        break;
+
+      // characteristic 7 is notify only, like characteristic 4
+      case SIMPLEPROFILE_CHAR7_UUID:
+        *pLen = SIMPLEPROFILE_CHAR7_LEN;
+        VOID memcpy( pValue, pAttr->pValue, SIMPLEPROFILE_CHAR7_LEN );
+        break;
+
+      // the motion profile table as last written
+      case SIMPLEPROFILE_CHAR8_UUID:
+        *pLen = simpleProfileChar8Len;
+        VOID memcpy( pValue, pAttr->pValue, simpleProfileChar8Len );
+        break;
+
+      // characteristic 9 is only read for notifications, packets vary in length
+      case SIMPLEPROFILE_CHAR9_UUID:
+        *pLen = simpleProfileChar9Len;
+        VOID memcpy( pValue, pAttr->pValue, simpleProfileChar9Len );
+        break;
         
       default:
         // Should never get here! (characteristics 3 and 4 do not have read permissions)
@@ -685,12 +1064,6 @@ static bStatus_t simpleProfile_ReadAttrCB(uint16_t connHandle,
   return ( status );
 }
 
-/*Move these definitions elsewhere*/
-#define LPADDLE_UP  0x1B
-#define RPADDLE_UP  0x2B
-#define LPADDLE_DOWN  0x1A
-#define RPADDLE_DOWN  0x2A
-
 /*********************************************************************
  * @fn      simpleProfile_WriteAttrCB
  *
@@ -713,78 +1086,6 @@ static bStatus_t simpleProfile_WriteAttrCB(uint16_t connHandle,
   bStatus_t status = SUCCESS;
   uint8 notifyApp = 0xFF;
   
-  /*TODO: remove and init as PWM*/
-  /* Open LED pins */
-if(!pwm1)
-{
-  /* Period and duty in microseconds */
-   uint16_t   pwmPeriod = 3000;
-   //uint16_t   dutyInc = 100;
-   /* Sleep time in microseconds */
-          //uint32_t   time = 50000;
-          //PWM_Handle pwm1 = NULL;
-          //PWM_Handle pwm2 = NULL;
-
-          /* Call driver init functions. */
-          PWM_init();
-
-          PWM_Params_init(&params);
-          params.dutyUnits = PWM_DUTY_US;
-          params.dutyValue = 0;
-          params.periodUnits = PWM_PERIOD_US;
-          params.periodValue = pwmPeriod;
-          pwm1 = PWM_open(Board_PWM0, &params);
-          if (pwm1 == NULL) {
-              /* Board_PWM0 did not open */
-              while (1);
-          }
-
-          PWM_start(pwm1);
-
-          if (Board_PWM1 != Board_PWM0) {
-              pwm2 = PWM_open(Board_PWM1, &params);
-
-              if (pwm2 == NULL) {
-                  /* Board_PWM0 did not open */
-                  while (1);
-              }
-
-              PWM_start(pwm2);
-          }
-}
-
-/*
-  if(!ledPinHandle)
-      ledPinHandle = PIN_open(&ledPinState, ledPinTable);
-  if(!ledPinHandle) {
-      // Error initializing board LED pins
-      while(1);
-  }
-*/
-  if (*pValue != '0')
-      PIN_setOutputValue(ledPinHandle, Board_PIN_LED0, 1);
-  else
-      PIN_setOutputValue(ledPinHandle, Board_PIN_LED0, 0);
-
-
-  switch(*pValue){
-      case RPADDLE_UP:
-          PWM_setDuty(pwm2, PADDLE_DOWN);
-          break;
-      case LPADDLE_UP:
-          PWM_setDuty(pwm1, PADDLE_UP);
-          break;
-      case RPADDLE_DOWN:
-          PWM_setDuty(pwm2, PADDLE_UP);
-          break;
-      case LPADDLE_DOWN:
-          PWM_setDuty(pwm1, PADDLE_DOWN);
-          break;
-      default:
-          break;
-  }
-
-
   if ( pAttr->type.len == ATT_BT_UUID_SIZE )
   {
     // 16-bit UUID
@@ -802,8 +1103,6 @@ if(!pwm1)
           System_flush();*/
 
 
-      case SIMPLEPROFILE_CHAR3_UUID:
-
         //Validate the value
         // Make sure it's not a blob oper
         if ( offset == 0 )
@@ -824,16 +1123,133 @@ if(!pwm1)
           uint8 *pCurValue = (uint8 *)pAttr->pValue;        
           *pCurValue = pValue[0];
 
-          if( pAttr->pValue == &simpleProfileChar1 )
+          notifyApp = SIMPLEPROFILE_CHAR1;        
+        }
+             
+        break;
+
+      case SIMPLEPROFILE_CHAR3_UUID:
+
+        // Either a legacy one byte flipper opcode or a flipper state frame
+        if ( offset == 0 )
+        {
+          if ( len < 1 || len > SIMPLEPROFILE_CHAR3_LEN )
           {
-            notifyApp = SIMPLEPROFILE_CHAR1;        
+            status = ATT_ERR_INVALID_VALUE_SIZE;
           }
-          else
+        }
+        else
+        {
+          status = ATT_ERR_ATTR_NOT_LONG;
+        }
+
+        // Refuse the write rather than drop a queued command, a legacy
+        // opcode can't be superseded by a later one
+        if ( status == SUCCESS &&
+             (uint8)(simpleProfileChar3Head - simpleProfileChar3Tail) ==
+               SIMPLEPROFILE_CHAR3_QUEUE_LEN )
+        {
+          status = ATT_ERR_INSUFFICIENT_RESOURCES;
+        }
+
+        //Queue the value, the application parses it
+        if ( status == SUCCESS )
+        {
+          uint8 head = simpleProfileChar3Head;
+          simpleProfileFlipperCmd_t *pCmd;
+
+          pCmd = &simpleProfileChar3Queue[head % SIMPLEPROFILE_CHAR3_QUEUE_LEN];
+          VOID memcpy( pCmd->cmd, pValue, len );
+          pCmd->len = len;
+          pCmd->rxTick = Clock_getTicks();
+          simpleProfileChar3Head = head + 1;
+
+          VOID memcpy( simpleProfileChar3, pValue, len );
+
+          notifyApp = SIMPLEPROFILE_CHAR3;
+        }
+
+        break;
+
+      case SIMPLEPROFILE_CHAR6_UUID:
+
+        // A one byte game command; the game state itself is owned by the
+        // application and only changed through SimpleProfile_SetParameter
+        if ( offset == 0 )
+        {
+          if ( len != 1 )
           {
-            notifyApp = SIMPLEPROFILE_CHAR3;           
+            status = ATT_ERR_INVALID_VALUE_SIZE;
           }
         }
-             
+        else
+        {
+          status = ATT_ERR_ATTR_NOT_LONG;
+        }
+
+        if ( status == SUCCESS )
+        {
+          simpleProfileChar6Cmd = pValue[0];
+
+          notifyApp = SIMPLEPROFILE_CHAR6;
+        }
+
+        break;
+
+      case SIMPLEPROFILE_CHAR8_UUID:
+
+        // A complete motion profile table, the application applies it
+        if ( offset == 0 )
+        {
+          if ( len < SIMPLEPROFILE_MOTION_HEADER_LEN || len > SIMPLEPROFILE_CHAR8_LEN ||
+               len != SIMPLEPROFILE_MOTION_HEADER_LEN +
+                      pValue[SIMPLEPROFILE_MOTION_COUNT_IDX] * SIMPLEPROFILE_MOTION_LEN )
+          {
+            status = ATT_ERR_INVALID_VALUE_SIZE;
+          }
+          else if ( pValue[SIMPLEPROFILE_MOTION_VERSION_IDX] != SIMPLEPROFILE_MOTION_VERSION )
+          {
+            status = ATT_ERR_INVALID_VALUE;
+          }
+        }
+        else
+        {
+          status = ATT_ERR_ATTR_NOT_LONG;
+        }
+
+        if ( status == SUCCESS )
+        {
+          VOID memcpy( simpleProfileChar8, pValue, len );
+          simpleProfileChar8Len = len;
+
+          notifyApp = SIMPLEPROFILE_CHAR8;
+        }
+
+        break;
+
+      case SIMPLEPROFILE_CHAR9_UUID:
+
+        // A one byte telemetry window; the packets are only changed through
+        // SimpleProfile_SetParameter
+        if ( offset == 0 )
+        {
+          if ( len != 1 )
+          {
+            status = ATT_ERR_INVALID_VALUE_SIZE;
+          }
+        }
+        else
+        {
+          status = ATT_ERR_ATTR_NOT_LONG;
+        }
+
+        if ( status == SUCCESS )
+        {
+          simpleProfileChar9Window = pValue[0];
+
+          notifyApp = SIMPLEPROFILE_CHAR9;
+        }
+
         break;
 
       case GATT_CLIENT_CHAR_CFG_UUID:
@@ -67,6 +67,13 @@ extern "C"
 #define SIMPLEPROFILE_CHAR3                   2  // RW uint8 - Profile Characteristic 3 value
 #define SIMPLEPROFILE_CHAR4                   3  // RW uint8 - Profile Characteristic 4 value
 #define SIMPLEPROFILE_CHAR5                   4  // RW uint8 - Profile Characteristic 4 value
+#define SIMPLEPROFILE_CHAR6                   6  // RW uint8 array - Game state (R/notify), game command (W)
+#define SIMPLEPROFILE_CHAR6_CMD               7  // R uint8 - Last game command written to Characteristic 6
+#define SIMPLEPROFILE_CHAR7                   9  // N uint8 array - Flipper command echo
+#define SIMPLEPROFILE_CHAR8                   10 // RW uint8 array - Motion profile table
+#define SIMPLEPROFILE_CHAR8_SIZE              11 // R uint8 - Number of valid bytes in Characteristic 8
+#define SIMPLEPROFILE_CHAR9                   12 // N uint8 array - Force sensor telemetry packet
+#define SIMPLEPROFILE_CHAR9_WINDOW            13 // RW uint8 - Telemetry samples per point, 0 off
   
 // Simple Profile Service UUID
 #define SIMPLEPROFILE_SERV_UUID               0xFFF0
@@ -77,6 +84,10 @@ extern "C"
 #define SIMPLEPROFILE_CHAR3_UUID            0xFFF3
 #define SIMPLEPROFILE_CHAR4_UUID            0xFFF4
 #define SIMPLEPROFILE_CHAR5_UUID            0xFFF5
+#define SIMPLEPROFILE_CHAR6_UUID            0xFFF6
+#define SIMPLEPROFILE_CHAR7_UUID            0xFFF7
+#define SIMPLEPROFILE_CHAR8_UUID            0xFFF8
+#define SIMPLEPROFILE_CHAR9_UUID            0xFFF9
   
 // Simple Keys Profile Services bit fields
 #define SIMPLEPROFILE_SERVICE               0x00000001
@@ -84,6 +95,149 @@ extern "C"
 // Length of Characteristic 5 in bytes
 #define SIMPLEPROFILE_CHAR5_LEN           5  
 
+// Maximum length of Characteristic 3 (flipper commands) in bytes
+#define SIMPLEPROFILE_CHAR3_LEN           8
+
+// Flipper commands written to Characteristic 3 wait in a queue until the
+// application takes them with SimpleProfile_GetFlipperCmd, so a write that
+// arrives before the application ran doesn't overwrite an unprocessed one.
+// Writes are refused while the queue is full. Power of two.
+#define SIMPLEPROFILE_CHAR3_QUEUE_LEN     4
+
+// Flipper state frame written to Characteristic 3. A one byte write is a
+// legacy flipper opcode instead.
+//   byte 0   version
+//   byte 1   sequence number
+//   byte 2-3 actuator bitmask (little endian)
+//   byte 4-5 milliseconds since the previous frame (little endian)
+// Later versions may only append fields.
+#define SIMPLEPROFILE_FRAME_VERSION       0x01
+#define SIMPLEPROFILE_FRAME_LEN           6
+#define SIMPLEPROFILE_FRAME_VERSION_IDX   0
+#define SIMPLEPROFILE_FRAME_SEQ_IDX       1
+#define SIMPLEPROFILE_FRAME_STATE_IDX     2
+#define SIMPLEPROFILE_FRAME_DELTA_IDX     4
+
+// Actuator bits of the flipper state frame
+#define SIMPLEPROFILE_ACT_LEFT_FLIPPER    0x0001
+#define SIMPLEPROFILE_ACT_RIGHT_FLIPPER   0x0002
+#define SIMPLEPROFILE_ACT_PLUNGER         0x0004
+#define SIMPLEPROFILE_ACT_NUDGE           0x0008
+
+// Game state frame held by Characteristic 6, read or notified as a whole.
+//   byte 0   version
+//   byte 1   sequence number, incremented on every change
+//   byte 2   fields changed since the previous sequence number
+//   byte 3   game phase
+//   byte 4   lives left
+//   byte 5   current ball
+//   byte 6-9 score (little endian)
+//   byte 10-11 milliseconds from the sensor event that caused the change to
+//            publishing it, 0 for other changes (little endian)
+// Later versions may only append fields.
+#define SIMPLEPROFILE_CHAR6_LEN           12
+#define SIMPLEPROFILE_GAME_VERSION        0x01
+#define SIMPLEPROFILE_GAME_VERSION_IDX    0
+#define SIMPLEPROFILE_GAME_SEQ_IDX        1
+#define SIMPLEPROFILE_GAME_CHANGED_IDX    2
+#define SIMPLEPROFILE_GAME_PHASE_IDX      3
+#define SIMPLEPROFILE_GAME_LIVES_IDX      4
+#define SIMPLEPROFILE_GAME_BALL_IDX       5
+#define SIMPLEPROFILE_GAME_SCORE_IDX      6
+#define SIMPLEPROFILE_GAME_AGE_IDX        10
+
+// Changed field bits of the game state frame
+#define SIMPLEPROFILE_GAME_LIVES          0x01
+#define SIMPLEPROFILE_GAME_BALL           0x02
+#define SIMPLEPROFILE_GAME_SCORE          0x04
+#define SIMPLEPROFILE_GAME_PHASE          0x08
+#define SIMPLEPROFILE_GAME_ALL            0x0F
+
+// Game phases
+#define SIMPLEPROFILE_PHASE_IDLE          0x00
+#define SIMPLEPROFILE_PHASE_PLAYING       0x01
+#define SIMPLEPROFILE_PHASE_GAME_OVER     0x02
+#define SIMPLEPROFILE_PHASE_PAUSED        0x03
+
+// One byte game commands written to Characteristic 6
+#define SIMPLEPROFILE_GAME_CMD_NEW_GAME   0x01
+#define SIMPLEPROFILE_GAME_CMD_PAUSE      0x02
+#define SIMPLEPROFILE_GAME_CMD_RESUME     0x03
+
+// Echo of a flipper state frame, notified by Characteristic 7 once the
+// servos were updated. Clients enable the echo mode by enabling its
+// notifications.
+//   byte 0    version
+//   byte 1    sequence number of the echoed flipper state frame
+//   byte 2-5  clock tick at which the frame was received (little endian)
+//   byte 6-9  clock tick at which the servos were updated (little endian)
+//   byte 10-11 clock tick period in microseconds (little endian)
+#define SIMPLEPROFILE_CHAR7_LEN           12
+#define SIMPLEPROFILE_ECHO_VERSION        0x01
+#define SIMPLEPROFILE_ECHO_VERSION_IDX    0
+#define SIMPLEPROFILE_ECHO_SEQ_IDX        1
+#define SIMPLEPROFILE_ECHO_RX_IDX         2
+#define SIMPLEPROFILE_ECHO_PWM_IDX        6
+#define SIMPLEPROFILE_ECHO_PERIOD_IDX     10
+
+// Motion profile table held by Characteristic 8, written once per connection
+// and run by the board on every flipper edge. A flipper without a profile
+// jumps between the fixed up and down positions.
+//   byte 0   version
+//   byte 1   number of profiles, for the actuator bits from the left flipper
+//   profiles, SIMPLEPROFILE_MOTION_LEN bytes each:
+//     byte 0   up angle, degrees of servo travel from the rest position
+//     byte 1   milliseconds to ramp up to the up angle, 0 jumps
+//     byte 2   hold angle, eased to after the hold delay; below the up
+//              angle the servo pushes with less force
+//     byte 3   hold delay, milliseconds at the up angle
+//     byte 4   milliseconds to ramp back to rest, 0 jumps
+//     byte 5   reserved, 0
+//     byte 6-7 auto-release timeout, milliseconds after the up edge the
+//              flipper drops by itself, 0 never (little endian)
+// Later versions may only append fields.
+#define SIMPLEPROFILE_MOTION_VERSION      0x01
+#define SIMPLEPROFILE_MOTION_MAX          2
+#define SIMPLEPROFILE_MOTION_LEN          8
+#define SIMPLEPROFILE_MOTION_HEADER_LEN   2
+#define SIMPLEPROFILE_CHAR8_LEN           (SIMPLEPROFILE_MOTION_HEADER_LEN + \
+                                           SIMPLEPROFILE_MOTION_MAX * SIMPLEPROFILE_MOTION_LEN)
+#define SIMPLEPROFILE_MOTION_VERSION_IDX  0
+#define SIMPLEPROFILE_MOTION_COUNT_IDX    1
+#define SIMPLEPROFILE_MOTION_ANGLE_IDX    0
+#define SIMPLEPROFILE_MOTION_RISE_IDX     1
+#define SIMPLEPROFILE_MOTION_HOLD_IDX     2
+#define SIMPLEPROFILE_MOTION_DELAY_IDX    3
+#define SIMPLEPROFILE_MOTION_FALL_IDX     4
+#define SIMPLEPROFILE_MOTION_TIMEOUT_IDX  6
+
+// Largest angle of a motion profile, the fixed up position
+#define SIMPLEPROFILE_MOTION_MAX_ANGLE    90
+
+// Force sensor telemetry notified by Characteristic 9. The sensor is sampled
+// every SIMPLEPROFILE_TELEMETRY_SAMPLE_MS while a client has written a
+// window, the number of samples reduced to one point, to it; writing 0 stops
+// the stream. Each point is the minimum, maximum and mean of its window, the
+// 12 bit samples scaled to 8 bits. A packet fits the default ATT MTU.
+//   byte 0   version
+//   byte 1   sequence number, incremented per packet, also for dropped ones
+//   byte 2   samples per point
+//   byte 3   number of points
+//   points, SIMPLEPROFILE_TELEMETRY_POINT_LEN bytes each: min, max, mean
+#define SIMPLEPROFILE_CHAR9_LEN           19
+#define SIMPLEPROFILE_TELEMETRY_VERSION   0x01
+#define SIMPLEPROFILE_TELEMETRY_VERSION_IDX 0
+#define SIMPLEPROFILE_TELEMETRY_SEQ_IDX   1
+#define SIMPLEPROFILE_TELEMETRY_WINDOW_IDX 2
+#define SIMPLEPROFILE_TELEMETRY_COUNT_IDX 3
+#define SIMPLEPROFILE_TELEMETRY_HEADER_LEN 4
+#define SIMPLEPROFILE_TELEMETRY_POINT_LEN 3
+#define SIMPLEPROFILE_TELEMETRY_MAX_POINTS 5
+#define SIMPLEPROFILE_TELEMETRY_SAMPLE_MS 1
+// Smallest window, keeps the stream at 40 packets per second at most so it
+// leaves room for the flipper traffic; smaller windows are raised to it
+#define SIMPLEPROFILE_TELEMETRY_MIN_WINDOW 5
+
 /*********************************************************************
  * TYPEDEFS
  */
@@ -153,6 +307,18 @@ extern bStatus_t SimpleProfile_SetParameter( uint8 param, uint8 len, void *value
  */
 extern bStatus_t SimpleProfile_GetParameter( uint8 param, void *value );
 
+/*
+ * SimpleProfile_GetFlipperCmd - Take the oldest flipper command written to
+ *          Characteristic 3 from the queue.
+ *
+ *    cmd - buffer of SIMPLEPROFILE_CHAR3_LEN bytes for the command
+ *    len - number of valid bytes in cmd
+ *    rxTick - clock tick at which the command was written
+ *
+ *    Returns FAILURE if the queue is empty.
+ */
+extern bStatus_t SimpleProfile_GetFlipperCmd( uint8 *cmd, uint8 *len, uint32 *rxTick );
+
 
 /*********************************************************************
 *********************************************************************/